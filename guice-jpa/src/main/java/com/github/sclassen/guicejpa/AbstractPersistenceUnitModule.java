@@ -17,10 +17,14 @@
 package com.github.sclassen.guicejpa;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
 
 import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
 
 import org.aopalliance.intercept.MethodInterceptor;
 
@@ -45,11 +49,75 @@ abstract class AbstractPersistenceUnitModule extends PrivateModule {
   private Class<? extends Annotation> annotation;
 
   /** The method interceptor for transactional methods. */
-  private MethodInterceptor transactionInterceptor;
+  private AbstractTxnInterceptor transactionInterceptor;
 
   /** This defines if the PU uses resource local or jta transactions. */
   private TransactionType transactionType = TransactionType.RESOURCE_LOCAL;
 
+  /** Logger for slow transactions. May be {@code null}. */
+  private SlowTransactionLogger slowTransactionLogger;
+
+  /** {@code true} if statistics of the transactions should be collected per method. */
+  private boolean collectTransactionStatistics = false;
+
+  /** Statistics of the transactions per method. {@code null} if not collected. */
+  private TransactionStatistics transactionStatistics;
+
+  /** {@code true} if active units of work should be tracked in a {@link UnitOfWorkRegistry}. */
+  private boolean trackUnitsOfWork = false;
+
+  /** {@code true} if the stack trace of {@link UnitOfWork#begin()} should be recorded. */
+  private boolean recordBeginSite = false;
+
+  /** Units of work older than this are reported. Negative if units of work are not reaped. */
+  private long maxUnitOfWorkAgeNanos = -1;
+
+  /** {@code true} if the entity manager of units of work which are too old should be closed. */
+  private boolean closeExpiredUnitsOfWork = false;
+
+  /** Accessor for the JDBC connection. {@code null} if nested transactions use no savepoints. */
+  private JdbcConnectionAccessor savepointConnectionAccessor;
+
+  /** The synchronization for registering callbacks on the outer transaction. */
+  private final TransactionSynchronizationImpl synchronization =
+      new TransactionSynchronizationImpl();
+
+  /** Proxy observing the JDBC connections. {@code null} if the connections are not observed. */
+  private JdbcProxy jdbcProxy;
+
+  /** Counter for the executed JDBC statements. {@code null} if statements are not counted. */
+  private StatementCounter statementCounter;
+
+  /** Defaults for entity managers and queries. {@code null} if no default has been set. */
+  private QueryDefaults queryDefaults;
+
+  /** The persistence service of this persistence unit. Created on first access. */
+  private PersistenceUnitService persistenceService;
+
+  /** The maximal number of concurrently active units of work. Non positive if not limited. */
+  private int maxConcurrentUnitsOfWork = 0;
+
+  /** The maximal time to wait for the admission of a unit of work in nanos. */
+  private long admissionTimeoutNanos;
+
+  /** The maximal number of concurrently active background units of work. Zero if not limited. */
+  private int maxBackgroundUnitsOfWork = 0;
+
+  /** Background units of work are held back while interactive ones wait longer than this. */
+  private long backgroundThrottleThresholdNanos = -1;
+
+  /** The maximal time to wait for active units of work when stopping. Negative if not waiting. */
+  private long drainTimeoutNanos = -1;
+
+  /** The query used to probe the database. {@code null} if the health is not checked. */
+  private String healthValidationQuery;
+
+  /** The interval between two health probes in nanos. */
+  private long healthCheckIntervalNanos;
+
+  /** The health check of the persistence unit. {@code null} if the health is not checked. */
+  private HealthProbe healthProbe;
+
 
   // ---- Constructors
 
@@ -67,10 +135,70 @@ abstract class AbstractPersistenceUnitModule extends PrivateModule {
 
   // ---- Methods
 
+  /**
+   * @return the persistence service controlling the {@link javax.persistence.EntityManagerFactory}
+   *         of the persistence unit.
+   */
+  abstract PersistenceService getEntityManagerFactoryService();
+
   /**
    * @return the persistence service for the persistence unit.
    */
-  abstract PersistenceService getPersistenceService();
+  final PersistenceUnitService getPersistenceService() {
+    if (null == persistenceService) {
+      persistenceService = new PersistenceUnitService(getEntityManagerFactoryService());
+      emProvider.setUnitName(getUnitName());
+      UnitOfWorkRegistry registry = null;
+      if (trackUnitsOfWork) {
+        registry = new UnitOfWorkRegistry(getUnitName(), recordBeginSite,
+            maxUnitOfWorkAgeNanos, closeExpiredUnitsOfWork);
+        emProvider.setUnitOfWorkRegistry(registry);
+        persistenceService.add(registry);
+      }
+      checkState(0 < maxConcurrentUnitsOfWork || 0 == maxBackgroundUnitsOfWork,
+          "limiting background units of work requires limiting the concurrent units of work.");
+      checkState(maxBackgroundUnitsOfWork < maxConcurrentUnitsOfWork
+          || 0 == maxConcurrentUnitsOfWork,
+          "the background quota must be smaller than the maximal number of units of work.");
+      if (0 < maxConcurrentUnitsOfWork) {
+        final AdmissionController admissionController = new AdmissionController(getUnitName(),
+            maxConcurrentUnitsOfWork, admissionTimeoutNanos, maxBackgroundUnitsOfWork,
+            backgroundThrottleThresholdNanos);
+        emProvider.setAdmissionController(admissionController);
+        persistenceService.add(admissionController);
+      }
+      if (null != getTransactionStatistics()) {
+        persistenceService.add(getTransactionStatistics());
+      }
+      if (null != healthValidationQuery) {
+        healthProbe = new HealthProbe(getUnitName(), emProvider.getEntityManagerFactoryProvider(),
+            healthValidationQuery, healthCheckIntervalNanos);
+        persistenceService.add(healthProbe);
+      }
+      if (0 <= drainTimeoutNanos) {
+        // must be added last to be stopped first
+        persistenceService.drainOnStop(new UnitOfWorkDrainer(getUnitName(), emProvider, registry,
+            drainTimeoutNanos));
+      }
+    }
+    return persistenceService;
+  }
+
+  /**
+   * @return the health check of the persistence unit or {@code null} if the health is not
+   *         checked.
+   */
+  final PersistenceUnitHealthCheck getHealthCheck() {
+    getPersistenceService();
+    return healthProbe;
+  }
+
+  /**
+   * @return the entity manager provider of the persistence unit.
+   */
+  final EntityManagerProviderImpl getEntityManagerProvider() {
+    return emProvider;
+  }
 
   /**
    * @return the unit of work for the persistence unit.
@@ -96,8 +224,217 @@ abstract class AbstractPersistenceUnitModule extends PrivateModule {
     this.transactionType = transactionType;
   }
 
+  /**
+   * Enables logging of outer transactions which take longer than the given threshold.
+   *
+   * @param thresholdNanos the threshold in nanos.
+   */
+  final void logSlowTransactions(long thresholdNanos) {
+    slowTransactionLogger = new SlowTransactionLogger(thresholdNanos);
+  }
+
+  /**
+   * Enables collecting statistics of the transactions per method.
+   */
+  final void collectTransactionStatistics() {
+    this.collectTransactionStatistics = true;
+  }
+
+  /**
+   * Enables tracking of the active units of work.
+   *
+   * @param recordBeginSite {@code true} if the stack trace of {@link UnitOfWork#begin()} should
+   *        be recorded.
+   */
+  final void trackUnitsOfWork(boolean recordBeginSite) {
+    this.trackUnitsOfWork = true;
+    this.recordBeginSite = recordBeginSite;
+  }
+
+  /**
+   * Enables the reaper for units of work which are open for too long.
+   *
+   * @param maxAgeNanos units of work older than this are reported.
+   * @param close {@code true} if the entity manager of units of work which are too old should
+   *        be closed.
+   */
+  final void reapUnitsOfWork(long maxAgeNanos, boolean close) {
+    this.trackUnitsOfWork = true;
+    this.maxUnitOfWorkAgeNanos = maxAgeNanos;
+    this.closeExpiredUnitsOfWork = close;
+  }
+
+  /**
+   * Limits the number of concurrently active units of work.
+   *
+   * @param maxConcurrent the maximal number of concurrently active units of work.
+   * @param timeoutNanos the maximal time to wait for admission in nanos.
+   */
+  final void limitConcurrentUnitsOfWork(int maxConcurrent, long timeoutNanos) {
+    this.maxConcurrentUnitsOfWork = maxConcurrent;
+    this.admissionTimeoutNanos = timeoutNanos;
+  }
+
+  /**
+   * Limits the number of concurrently active background units of work.
+   *
+   * @param maxConcurrent the maximal number of concurrently active background units of work.
+   * @param throttleThresholdNanos background units of work are held back while interactive ones
+   *        wait longer than this for admission. Negative if they are never held back.
+   */
+  final void limitBackgroundUnitsOfWork(int maxConcurrent, long throttleThresholdNanos) {
+    this.maxBackgroundUnitsOfWork = maxConcurrent;
+    this.backgroundThrottleThresholdNanos = throttleThresholdNanos;
+  }
+
+  /**
+   * Enables draining the active units of work when the persistence unit is stopped.
+   *
+   * @param timeoutNanos the maximal time to wait for the active units of work in nanos.
+   */
+  final void drainUnitsOfWorkOnStop(long timeoutNanos) {
+    this.drainTimeoutNanos = timeoutNanos;
+  }
+
+  /**
+   * Enables the health check of the persistence unit.
+   *
+   * @param validationQuery the native SQL query used to probe the database.
+   * @param intervalNanos the interval between two probes in nanos.
+   */
+  final void checkHealth(String validationQuery, long intervalNanos) {
+    this.healthValidationQuery = validationQuery;
+    this.healthCheckIntervalNanos = intervalNanos;
+  }
+
+  /**
+   * Enables JDBC savepoints for nested transactions.
+   *
+   * @param connectionAccessor the accessor for the JDBC connection.
+   */
+  final void useSavepointsForNestedTransactions(JdbcConnectionAccessor connectionAccessor) {
+    this.savepointConnectionAccessor = connectionAccessor;
+  }
+
+  /**
+   * Enables skipping the commit round trip of transactions which created no JDBC statements.
+   */
+  final void skipCommitsWithoutStatements() {
+    getJdbcProxy().skipCommitsWithoutStatements();
+  }
+
+  /**
+   * Enables counting of the executed JDBC statements.
+   *
+   * @param failIfBudgetExceeded {@code true} if exceeding the statement budget of a transactional
+   *        method fails the transaction.
+   * @param repeatedStatementThreshold statements executed at least this often in a unit of work
+   *        or an outer transaction are reported.
+   */
+  final void countStatements(boolean failIfBudgetExceeded, int repeatedStatementThreshold) {
+    statementCounter = new StatementCounter(failIfBudgetExceeded, repeatedStatementThreshold);
+    getJdbcProxy().countStatements(statementCounter);
+    emProvider.setStatementCounter(statementCounter);
+  }
+
+  /**
+   * Sets the JDBC fetch size of every query.
+   *
+   * @param fetchSize the number of rows fetched in one round trip.
+   */
+  final void setDefaultFetchSize(int fetchSize) {
+    getQueryDefaults().setFetchSize(fetchSize);
+  }
+
+  /**
+   * Sets the timeout of every query.
+   *
+   * @param timeoutMillis the timeout in milliseconds.
+   */
+  final void setDefaultQueryTimeout(long timeoutMillis) {
+    getQueryDefaults().setQueryTimeout(timeoutMillis);
+  }
+
+  /**
+   * Sets whether the entities loaded by queries are read only by default.
+   *
+   * @param readOnly {@code true} to load the entities in read only mode.
+   */
+  final void setReadOnlyQueries(boolean readOnly) {
+    getQueryDefaults().setReadOnly(readOnly);
+  }
+
+  /**
+   * Sets the flush mode of every entity manager.
+   *
+   * @param flushMode the flush mode.
+   */
+  final void setDefaultFlushMode(FlushModeType flushMode) {
+    getQueryDefaults().setFlushMode(flushMode);
+  }
+
+  /**
+   * Sets the JDBC batch size of the entity manager factory.
+   *
+   * @param batchSize the maximal number of statements sent to the database in one batch.
+   */
+  final void setJdbcBatchSize(int batchSize) {
+    addEntityManagerFactoryProperty(QueryDefaults.JDBC_BATCH_SIZE_PROPERTY,
+        String.valueOf(batchSize));
+  }
+
+  /**
+   * @return the defaults for entity managers and queries. Created and installed on first access.
+   */
+  private QueryDefaults getQueryDefaults() {
+    if (null == queryDefaults) {
+      queryDefaults = new QueryDefaults();
+      emProvider.setQueryDefaults(queryDefaults);
+    }
+    return queryDefaults;
+  }
+
+  /**
+   * Adds a property used when creating the entity manager factory of the persistence unit.
+   * Subclasses which create the entity manager factory themselves must override this method.
+   *
+   * @param key the key of the property.
+   * @param value the value of the property.
+   * @throws IllegalStateException if the persistence unit does not create its entity manager
+   *         factory.
+   */
+  void addEntityManagerFactoryProperty(String key, String value) {
+    throw new IllegalStateException("setting properties of the EntityManagerFactory is only "
+        + "supported for application managed persistence units.");
+  }
+
+  /**
+   * @return the proxy observing the JDBC connections. Created and installed on first access.
+   */
+  private JdbcProxy getJdbcProxy() {
+    if (null == jdbcProxy) {
+      jdbcProxy = new JdbcProxy();
+      installJdbcProxy(jdbcProxy);
+    }
+    return jdbcProxy;
+  }
+
+  /**
+   * Installs the proxy observing the JDBC connections of the persistence unit. Subclasses which
+   * have access to the data source of the persistence unit must override this method.
+   *
+   * @param proxy the proxy to install.
+   * @throws IllegalStateException if the persistence unit does not support observing its JDBC
+   *         connections.
+   */
+  void installJdbcProxy(JdbcProxy proxy) {
+    throw new IllegalStateException("observing the JDBC connections is only supported for "
+        + "application managed persistence units.");
+  }
+
   /**
    * The method interceptor for intercepting transactional methods.
+   * Must be called before the module is installed.
    *
    * @param utFacade the {@link UserTransactionFacade}.
    *        May be {@code null} if {@link #transactionType} is {@link TransactionType#RESOURCE_LOCAL}.
@@ -121,19 +458,52 @@ abstract class AbstractPersistenceUnitModule extends PrivateModule {
    *        May be {@code null} and then exception translation will be not enabled.
    * @return the interceptor for intercepting transactional methods. Never {@code null}.
    */
-  private MethodInterceptor getTxnInterceptor(UserTransactionFacade utFacade, PersistenceExceptionTranslator<?> peTranslator) {
+  private AbstractTxnInterceptor getTxnInterceptor(UserTransactionFacade utFacade, PersistenceExceptionTranslator<?> peTranslator) {
     if (TransactionType.RESOURCE_LOCAL == transactionType) {
-      return new ResourceLocalTxnInterceptor(emProvider, getAnnotation(), peTranslator);
+      return new ResourceLocalTxnInterceptor(emProvider, getAnnotation(), peTranslator,
+          getTraceListener(), synchronization, savepointConnectionAccessor, statementCounter);
     }
     if (TransactionType.JTA == transactionType) {
       checkNotNull(utFacade, "the JNDI name of the user transaction must be specified if a "
           + "persistence unit wants to use JTA transactions");
-      return new JtaTxnInterceptor(emProvider, getAnnotation(), utFacade, peTranslator);
+      return new JtaTxnInterceptor(emProvider, getAnnotation(), utFacade, peTranslator,
+          getTraceListener(), synchronization, statementCounter);
     }
 
     throw new IllegalStateException("invalid transaction type: " + transactionType);
   }
 
+  /**
+   * @return the listener notified after every outer transaction. {@code null} if there is none.
+   */
+  private TransactionTraceListener getTraceListener() {
+    final List<TransactionTraceListener> listeners = new ArrayList<TransactionTraceListener>();
+    if (null != slowTransactionLogger) {
+      listeners.add(slowTransactionLogger);
+    }
+    if (null != getTransactionStatistics()) {
+      listeners.add(getTransactionStatistics());
+    }
+    if (listeners.isEmpty()) {
+      return null;
+    }
+    if (1 == listeners.size()) {
+      return listeners.get(0);
+    }
+    return new CompositeTransactionTraceListener(listeners);
+  }
+
+  /**
+   * @return the statistics of the transactions. Created on first access.
+   *         {@code null} if no statistics are collected.
+   */
+  private TransactionStatistics getTransactionStatistics() {
+    if (collectTransactionStatistics && null == transactionStatistics) {
+      transactionStatistics = new TransactionStatistics(getUnitName());
+    }
+    return transactionStatistics;
+  }
+
   /**
    * Binds the given type annotated with the annotation of this persistence unit and
    * exposes it at the same time.
@@ -175,28 +545,72 @@ abstract class AbstractPersistenceUnitModule extends PrivateModule {
    */
   @Override
   protected final void configure() {
+    checkState(null != transactionInterceptor,
+        "the transaction interceptor must be created before the module is installed.");
+    final TransactionRunner runner = new TransactionRunnerImpl(transactionInterceptor);
+
     bind(UnitOfWork.class).toInstance(emProvider);
     bind(EntityManagerProvider.class).toInstance(emProvider);
     bind(PersistenceService.class).toInstance(getPersistenceService());
+    bind(TransactionSynchronization.class).toInstance(synchronization);
+    bind(TransactionRunner.class).toInstance(runner);
 
     if (null == annotation) {
       expose(UnitOfWork.class);
       expose(EntityManagerProvider.class);
       expose(PersistenceService.class);
+      expose(TransactionSynchronization.class);
+      expose(TransactionRunner.class);
     }
     else {
       bind(UnitOfWork.class).annotatedWith(annotation).toInstance(emProvider);
       bind(EntityManagerProvider.class).annotatedWith(annotation).toInstance(emProvider);
       bind(PersistenceService.class).annotatedWith(annotation).toInstance(getPersistenceService());
+      bind(TransactionSynchronization.class).annotatedWith(annotation).toInstance(synchronization);
+      bind(TransactionRunner.class).annotatedWith(annotation).toInstance(runner);
 
       expose(UnitOfWork.class).annotatedWith(annotation);
       expose(EntityManagerProvider.class).annotatedWith(annotation);
       expose(PersistenceService.class).annotatedWith(annotation);
+      expose(TransactionSynchronization.class).annotatedWith(annotation);
+      expose(TransactionRunner.class).annotatedWith(annotation);
     }
 
+    bindAndExposeInstance(UnitOfWorkPropagation.class, new UnitOfWorkPropagationImpl(emProvider));
+    bindAndExposeInstance(StreamingQueries.class,
+        new StreamingQueriesImpl(emProvider, Runtime.getRuntime().availableProcessors()));
+    if (null != getHealthCheck()) {
+      bindAndExposeInstance(PersistenceUnitHealthCheck.class, getHealthCheck());
+    }
+    configureEntityManagerFactory();
     configurePersistence();
   }
 
+  /**
+   * Binds and exposes the classes specific to the type of the persistence unit.
+   */
+  void configureEntityManagerFactory() {
+    // do nothing
+  }
+
+  /**
+   * Binds the given instance with and without the annotation of this persistence unit and exposes
+   * the binding of the persistence unit.
+   *
+   * @param type the type to bind and expose.
+   * @param instance the instance to bind.
+   */
+  final <T> void bindAndExposeInstance(Class<T> type, T instance) {
+    bind(type).toInstance(instance);
+    if (null == annotation) {
+      expose(type);
+    }
+    else {
+      bind(type).annotatedWith(annotation).toInstance(instance);
+      expose(type).annotatedWith(annotation);
+    }
+  }
+
   /**
    * Subclasses can overwrite this method to bind (and expose) classes within the context of the
    * private module which defines the current persistence unit.
@@ -224,4 +638,14 @@ abstract class AbstractPersistenceUnitModule extends PrivateModule {
     return annotation;
   }
 
+  /**
+   * @return the name of the persistence unit used for JMX and logging.
+   */
+  final String getUnitName() {
+    if (null == annotation) {
+      return "default";
+    }
+    return annotation.getSimpleName();
+  }
+
 }
@@ -20,14 +20,22 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Method;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 import javax.persistence.EntityManager;
 
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
 
+import com.github.sclassen.guicejpa.TransactionalInvoker.Proceed;
 import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
 
 /**
  * Abstract super class for all @{@link Transactional} annotation interceptors.
@@ -38,11 +46,8 @@ abstract class AbstractTxnInterceptor implements MethodInterceptor {
 
   // ---- Members
 
-  /** Unit of work. */
-  private final UnitOfWork unitOfWork;
-
-  /** Provider for {@link EntityManager}. */
-  private final EntityManagerProvider emProvider;
+  /** Provider for {@link EntityManager} and unit of work. */
+  private final EntityManagerProviderImpl emProvider;
 
   /** Annotation of the persistence unit this interceptor belongs to. */
   private final Class<? extends Annotation> puAnntoation;
@@ -53,27 +58,48 @@ abstract class AbstractTxnInterceptor implements MethodInterceptor {
   /** Translator for PersistenceException's. */
   private final PersistenceExceptionTranslator<?> peTranslator;
 
+  /** Listener notified after every outer transaction. May be {@code null}. */
+  private final TransactionTraceListener traceListener;
+
+  /** Synchronization notified about the start and end of every outer transaction. */
+  private final TransactionSynchronizationImpl synchronization;
+
+  /** Counter for the executed JDBC statements. May be {@code null}. */
+  private final StatementCounter statementCounter;
+
+  /** Name of the persistence unit used in flight recorder events. */
+  private final String unitName;
+
 
   // ---- Constructor
 
   /**
    * Constructor.
    *
-   * @param emProvider the provider for {@link EntityManager}. Must not be {@code null}.
-   * @param unitOfWork the unit of work. Must not be {@code null}.
+   * @param emProvider the provider for {@link EntityManager} and unit of work.
+   *        Must not be {@code null}.
    * @param puAnntoation the annotation of the persistence unit the interceptor belongs to.
    *        May be {@code null}.
    * @param peTranslator the {@link PersistenceExceptionTranslator}. Can be {@code null}.
+   * @param traceListener the listener notified after every outer transaction. Can be {@code null}.
+   * @param synchronization the synchronization notified about every outer transaction.
+   *        Must not be {@code null}.
+   * @param statementCounter the counter for the executed JDBC statements. Can be {@code null}.
    */
-  public AbstractTxnInterceptor(EntityManagerProvider emProvider, UnitOfWork unitOfWork,
-      Class<? extends Annotation> puAnntoation, PersistenceExceptionTranslator<?> peTranslator) {
-    checkNotNull(unitOfWork);
+  public AbstractTxnInterceptor(EntityManagerProviderImpl emProvider,
+      Class<? extends Annotation> puAnntoation, PersistenceExceptionTranslator<?> peTranslator,
+      TransactionTraceListener traceListener, TransactionSynchronizationImpl synchronization,
+      StatementCounter statementCounter) {
     checkNotNull(emProvider);
+    checkNotNull(synchronization);
 
-    this.unitOfWork = unitOfWork;
     this.emProvider = emProvider;
     this.puAnntoation = puAnntoation;
     this.peTranslator = peTranslator;
+    this.traceListener = traceListener;
+    this.synchronization = synchronization;
+    this.statementCounter = statementCounter;
+    this.unitName = (null == puAnntoation) ? "default" : puAnntoation.getSimpleName();
   }
 
 
@@ -83,22 +109,73 @@ abstract class AbstractTxnInterceptor implements MethodInterceptor {
    * {@inheritDoc}
    */
   @Override
-  public final Object invoke(MethodInvocation methodInvocation) throws Throwable {
+  public final Object invoke(final MethodInvocation methodInvocation) throws Throwable {
 
     if (!transactionCoversThisPersistenceUnit(methodInvocation)) {
       return methodInvocation.proceed();
     }
 
-    final boolean weStartedTheUnitOfWork = !unitOfWork.isActive();
+    final Transactional transactional = readTransactionMetadata(methodInvocation);
+    return invoke(transactional, methodInvocation.getMethod(), new Proceed() {
+      @Override
+      public Object proceed() throws Throwable {
+        return methodInvocation.proceed();
+      }
+    });
+  }
+
+  /**
+   * Invoke the given work in a transaction of this persistence unit.
+   *
+   * @param transactional the metadata of the transaction.
+   * @param method the method which is reported as the source of the transaction.
+   * @param work the work to execute within the transaction.
+   * @return the result of the work.
+   * @throws Throwable if an exception occurs during the execution of the work.
+   */
+  final Object invoke(Transactional transactional, Method method, Proceed work)
+    throws Throwable {
+    final Propagation propagation = transactional.propagation();
+    final EntityManager suspended = suspendIfRequired(propagation);
+    try {
+      return invokeInUnitOfWork(transactional, method, work);
+    }
+    finally {
+      if (null != suspended) {
+        emProvider.resume(suspended);
+      }
+    }
+  }
+
+  /**
+   * Invoke the work within a unit of work. Starts a new unit of work if necessary.
+   *
+   * @param transactional the metadata of the transaction.
+   * @param method the method which is reported as the source of the transaction.
+   * @param work the work to execute within the transaction.
+   * @return the result of the work.
+   * @throws Throwable if an exception occurs during the execution of the work.
+   */
+  private Object invokeInUnitOfWork(Transactional transactional, Method method, Proceed work)
+    throws Throwable {
+
+    final boolean weStartedTheUnitOfWork = !emProvider.isActive();
     if (weStartedTheUnitOfWork) {
-      unitOfWork.begin();
+      emProvider.begin();
     }
 
     try {
       final EntityManager em = emProvider.get();
       final TransactionFacade transactionFacade = getTransactionFacade(em);
 
-      return invoke(methodInvocation, transactionFacade);
+      final Propagation propagation = transactional.propagation();
+      if (transactionFacade.isOuter()
+          && (Propagation.SUPPORTS == propagation || Propagation.NOT_SUPPORTED == propagation)) {
+        return work.proceed();
+      }
+      final boolean mayDefer = weStartedTheUnitOfWork && canDeferCompletion()
+          && ListenableFuture.class == method.getReturnType();
+      return invoke(transactional, method, work, transactionFacade, mayDefer);
     } catch (RuntimeException e) {
       if (peTranslator != null) {
         RuntimeException te = peTranslator.translateExceptionIfPossible(e);
@@ -110,11 +187,52 @@ abstract class AbstractTxnInterceptor implements MethodInterceptor {
       throw e;
     } finally {
       if (weStartedTheUnitOfWork) {
-        unitOfWork.end();
+        emProvider.end();
       }
     }
   }
 
+  /**
+   * Suspends the entity manager of the current unit of work if the propagation requires it.
+   *
+   * @param propagation the propagation of the transaction.
+   * @return the suspended entity manager or {@code null} if nothing has been suspended.
+   */
+  private EntityManager suspendIfRequired(Propagation propagation) {
+    if (Propagation.REQUIRES_NEW != propagation && Propagation.NOT_SUPPORTED != propagation) {
+      return null;
+    }
+    if (!emProvider.isActive()) {
+      return null;
+    }
+
+    final boolean transactionIsActive = !getTransactionFacade(emProvider.get()).isOuter();
+    if (Propagation.NOT_SUPPORTED == propagation && !transactionIsActive) {
+      return null;
+    }
+    if (transactionIsActive && !canSuspendTransaction()) {
+      throw new IllegalStateException("propagation " + propagation + " requires to suspend the "
+          + "active transaction which is not supported by " + getClass().getSimpleName());
+    }
+    return emProvider.suspend();
+  }
+
+  /**
+   * @return {@code true} if an active transaction can be suspended by detaching its entity
+   *         manager from the current thread. {@code false} otherwise.
+   */
+  protected boolean canSuspendTransaction() {
+    return true;
+  }
+
+  /**
+   * @return {@code true} if an outer transaction can be completed by a thread other than the one
+   *         which started it. {@code false} otherwise.
+   */
+  protected boolean canDeferCompletion() {
+    return true;
+  }
+
   /**
    * Check whether the persistence unit of this interceptor participates in the transaction or not.
    *
@@ -122,7 +240,7 @@ abstract class AbstractTxnInterceptor implements MethodInterceptor {
    * @return {@code true} if the persistence unit participates in the transaction
    *         {@code false} otherwise.
    */
-  private boolean transactionCoversThisPersistenceUnit(MethodInvocation methodInvocation) {
+  final boolean transactionCoversThisPersistenceUnit(MethodInvocation methodInvocation) {
     if (null == puAnntoation) {
       return true;
     }
@@ -152,57 +270,381 @@ abstract class AbstractTxnInterceptor implements MethodInterceptor {
   protected abstract TransactionFacade getTransactionFacade(final EntityManager em);
 
   /**
-   * Invoke the original method surrounded by a transaction.
+   * Invoke the work surrounded by a transaction.
    *
-   * @param methodInvocation the original method invocation.
+   * @param transactional the metadata of the transaction.
+   * @param method the method which is reported as the source of the transaction.
+   * @param work the work to execute within the transaction.
    * @param transactionFacade the facade to the underling resource local or jta transaction.
-   * @return the result of the invocation of the original method.
-   * @throws Throwable if an exception occurs during the call to the original method.
+   * @param mayDefer {@code true} if the completion of an outer transaction may be deferred until
+   *        the future returned by the work completes.
+   * @return the result of the work.
+   * @throws Throwable if an exception occurs during the execution of the work.
    */
-  private Object invoke(MethodInvocation methodInvocation, TransactionFacade transactionFacade)
-    throws Throwable {
+  private Object invoke(Transactional transactional, Method method, Proceed work,
+      TransactionFacade transactionFacade, boolean mayDefer) throws Throwable {
+    final Object event = FlightRecorderEvents.TRANSACTION.begin();
+    if (null == event) {
+      return invokeInTransaction(transactional, method, work, transactionFacade, mayDefer);
+    }
 
-    transactionFacade.begin();
-    final Object result = doTransactional(methodInvocation, transactionFacade);
-    transactionFacade.commit();
+    final RecordingTransactionFacade recordingFacade =
+        new RecordingTransactionFacade(transactionFacade);
+    recordingFacade.recordEvent(event, method.getDeclaringClass().getName() + "."
+        + method.getName(), transactionFacade.isOuter());
+    String exception = "";
+    try {
+      return invokeInTransaction(transactional, method, work, recordingFacade, mayDefer);
+    }
+    catch (Throwable e) {
+      exception = e.getClass().getName();
+      throw e;
+    }
+    finally {
+      recordingFacade.commitEvent(unitName, exception);
+    }
+  }
 
-    return result;
+  /**
+   * Invoke the work surrounded by a transaction.
+   *
+   * @param transactional the metadata of the transaction.
+   * @param method the method which is reported as the source of the transaction.
+   * @param work the work to execute within the transaction.
+   * @param transactionFacade the facade to the underling resource local or jta transaction.
+   * @param mayDefer {@code true} if the completion of an outer transaction may be deferred until
+   *        the future returned by the work completes.
+   * @return the result of the work.
+   * @throws Throwable if an exception occurs during the execution of the work.
+   */
+  private Object invokeInTransaction(Transactional transactional, Method method, Proceed work,
+      TransactionFacade transactionFacade, boolean mayDefer) throws Throwable {
+
+    final Proceed budgetedWork = withStatementBudget(transactional, method, work);
+    if (!transactionFacade.isOuter()) {
+      transactionFacade.begin();
+      final Object result = doTransactional(transactional, budgetedWork, transactionFacade, null);
+      transactionFacade.commit();
+
+      return result;
+    }
+
+    final RecordingTransactionFacade outerFacade = RecordingTransactionFacade.of(transactionFacade);
+    final TransactionTrace trace = startTrace(method);
+    outerFacade.begin();
+    if (null != trace) {
+      trace.beginCompleted();
+    }
+    synchronization.transactionStarted();
+    if (null != statementCounter) {
+      statementCounter.beginScope("transaction " + method.getDeclaringClass().getName() + "."
+          + method.getName());
+    }
+    boolean deferred = false;
+    try {
+      final Object result = doTransactional(transactional, budgetedWork, outerFacade, trace);
+      if (mayDefer && result instanceof ListenableFuture) {
+        deferred = true;
+        return deferCompletion(transactional, (ListenableFuture<?>) result, outerFacade, trace);
+      }
+      commit(outerFacade, trace);
+
+      return result;
+    }
+    finally {
+      if (!deferred) {
+        if (null != statementCounter) {
+          statementCounter.endScope();
+        }
+        synchronization.transactionCompleted(outerFacade.isCommitted());
+        completeTrace(trace);
+      }
+    }
+  }
+
+  /**
+   * Detaches the transaction and its unit of work from the current thread and completes them
+   * once the given future completes.
+   *
+   * @param transactional the metadata of the transaction.
+   * @param future the future returned by the intercepted method.
+   * @param transactionFacade the facade to the underlying resource local or jta transaction.
+   * @param trace the trace of the transaction. May be {@code null}.
+   * @return a future which completes with the result of the given future after the transaction
+   *         has been committed or rolled back.
+   */
+  private ListenableFuture<Object> deferCompletion(final Transactional transactional,
+      final ListenableFuture<?> future, final RecordingTransactionFacade transactionFacade,
+      final TransactionTrace trace) {
+    if (null != statementCounter) {
+      statementCounter.endScope();
+    }
+    final List<?> callbacks = synchronization.detachTransaction();
+    final EntityManager em = emProvider.detach();
+    transactionFacade.deferEvent();
+    final SettableFuture<Object> completion = SettableFuture.create();
+    future.addListener(new Runnable() {
+      @Override
+      public void run() {
+        completeDeferred(transactional, future, transactionFacade, trace, callbacks, em,
+            completion);
+      }
+    }, MoreExecutors.sameThreadExecutor());
+    return completion;
+  }
+
+  /**
+   * Commits or rolls back a detached transaction depending on the outcome of the future returned
+   * by the intercepted method and ends its unit of work. While the transaction completes its
+   * {@link EntityManager} is attached to the current thread unless the thread has its own unit of
+   * work.
+   */
+  private void completeDeferred(Transactional transactional, ListenableFuture<?> future,
+      RecordingTransactionFacade transactionFacade, TransactionTrace trace, List<?> callbacks,
+      EntityManager em, SettableFuture<Object> completion) {
+    Object value = null;
+    Throwable failure = null;
+    try {
+      value = Uninterruptibles.getUninterruptibly(future);
+    }
+    catch (ExecutionException e) {
+      failure = e.getCause();
+    }
+    catch (CancellationException e) {
+      failure = e;
+    }
+
+    final boolean attach = !emProvider.isActive();
+    if (attach) {
+      emProvider.resume(em);
+    }
+    RuntimeException completionFailure = null;
+    try {
+      if (null != failure && rollbackIsNecessary(transactional, failure)) {
+        rollback(transactionFacade, trace);
+      }
+      else {
+        commit(transactionFacade, trace);
+      }
+    }
+    catch (RuntimeException e) {
+      completionFailure = e;
+    }
+    finally {
+      try {
+        synchronization.transactionCompleted(callbacks, transactionFacade.isCommitted());
+        completeTrace(trace);
+      }
+      finally {
+        if (attach) {
+          emProvider.suspend();
+        }
+        emProvider.endDetached(em);
+        final Throwable reported = (null != completionFailure) ? completionFailure : failure;
+        transactionFacade.commitDeferredEvent(unitName,
+            (null == reported) ? "" : reported.getClass().getName());
+      }
+    }
+
+    if (null != completionFailure) {
+      completion.setException(completionFailure);
+    }
+    else if (failure instanceof CancellationException) {
+      completion.cancel(false);
+    }
+    else if (null != failure) {
+      completion.setException(failure);
+    }
+    else {
+      completion.set(value);
+    }
+  }
+
+  /**
+   * @return {@code true} if the current thread has an active transaction on this persistence unit.
+   */
+  final boolean isTransactionActive() {
+    return emProvider.isActive() && !getTransactionFacade(emProvider.get()).isOuter();
+  }
+
+  /**
+   * Begins an outer transaction whose completion is controlled by the caller. Starts a unit of
+   * work if necessary. The caller must call {@link CoordinatedTransaction#end()} in any case.
+   *
+   * @param method the method which is reported as the source of the transaction.
+   * @return the begun transaction. Never {@code null}.
+   * @throws IllegalStateException if a transaction is already active.
+   */
+  final CoordinatedTransaction beginCoordinated(Method method) {
+    final boolean weStartedTheUnitOfWork = !emProvider.isActive();
+    if (weStartedTheUnitOfWork) {
+      emProvider.begin();
+    }
+    try {
+      final TransactionFacade transactionFacade = getTransactionFacade(emProvider.get());
+      if (!transactionFacade.isOuter()) {
+        throw new IllegalStateException("a transaction is already active.");
+      }
+      final RecordingTransactionFacade recordingFacade =
+          RecordingTransactionFacade.of(transactionFacade);
+      final Object event = FlightRecorderEvents.TRANSACTION.begin();
+      if (null != event) {
+        recordingFacade.recordEvent(event, method.getDeclaringClass().getName() + "."
+            + method.getName(), true);
+      }
+      final TransactionTrace trace = startTrace(method);
+      recordingFacade.begin();
+      if (null != trace) {
+        trace.beginCompleted();
+      }
+      synchronization.transactionStarted();
+      if (null != statementCounter) {
+        statementCounter.beginScope("transaction " + method.getDeclaringClass().getName() + "."
+            + method.getName());
+      }
+      return new CoordinatedTransaction(recordingFacade, trace, weStartedTheUnitOfWork);
+    }
+    catch (RuntimeException e) {
+      if (weStartedTheUnitOfWork) {
+        emProvider.end();
+      }
+      throw e;
+    }
   }
 
   /**
-   * Invoke the original method assuming a transaction has already been started.
+   * Wraps the work to check the statement budget defined by {@link Transactional#maxStatements()}
+   * after the work completed.
+   *
+   * @param transactional the metadata of the transaction.
+   * @param method the method which is reported as the source of the transaction.
+   * @param work the work to execute within the transaction.
+   * @return the wrapped work or the given work if no budget needs to be checked.
+   */
+  final Proceed withStatementBudget(final Transactional transactional, final Method method,
+      final Proceed work) {
+    if (null == statementCounter || transactional.maxStatements() < 0) {
+      return work;
+    }
+    final long start = statementCounter.getStatementCount();
+    return new Proceed() {
+      @Override
+      public Object proceed() throws Throwable {
+        final Object result = work.proceed();
+        statementCounter.checkBudget(transactional, method, start);
+        return result;
+      }
+    };
+  }
+
+  /**
+   * Invoke the work assuming a transaction has already been started.
    * This method is responsible of calling rollback if necessary.
    *
-   * @param methodInvocation the original method invocation.
+   * @param transactional the metadata of the transaction.
+   * @param work the work to execute within the transaction.
    * @param transactionFacade the facade to the underlying resource local or jta transaction.
-   * @return the result of the invocation of the original method.
-   * @throws Throwable if an exception occurs during the call to the original method.
+   * @param trace the trace of the transaction. May be {@code null}.
+   * @return the result of the work.
+   * @throws Throwable if an exception occurs during the execution of the work.
    */
-  private Object doTransactional(MethodInvocation methodInvocation,
-    TransactionFacade transactionFacade) throws Throwable {
+  private Object doTransactional(Transactional transactional, Proceed work,
+    TransactionFacade transactionFacade, TransactionTrace trace) throws Throwable {
     try {
-      return methodInvocation.proceed();
+      final Object result = work.proceed();
+      if (null != trace) {
+        trace.methodCompleted(null);
+      }
+      return result;
     }
     catch (Throwable e) {
-      final Transactional t = readTransactionMetadata(methodInvocation);
-      if (rollbackIsNecessary(t, e)) {
-        transactionFacade.rollback();
+      if (null != trace) {
+        trace.methodCompleted(e);
+      }
+      if (rollbackIsNecessary(transactional, e)) {
+        rollback(transactionFacade, trace);
       }
       else {
-        transactionFacade.commit();
+        commit(transactionFacade, trace);
       }
       // In any case: throw the original exception.
       throw e;
     }
   }
 
+  /**
+   * Commits the transaction and records the duration in the trace.
+   *
+   * @param transactionFacade the facade to the underlying resource local or jta transaction.
+   * @param trace the trace of the transaction. May be {@code null}.
+   */
+  private void commit(TransactionFacade transactionFacade, TransactionTrace trace) {
+    if (null == trace) {
+      transactionFacade.commit();
+      return;
+    }
+
+    final boolean rollbackOnly = transactionFacade.isRollbackOnly();
+    boolean succeeded = false;
+    try {
+      transactionFacade.commit();
+      succeeded = true;
+    }
+    finally {
+      trace.commitCompleted(rollbackOnly, succeeded);
+    }
+  }
+
+  /**
+   * Rolls the transaction back and records the duration in the trace.
+   *
+   * @param transactionFacade the facade to the underlying resource local or jta transaction.
+   * @param trace the trace of the transaction. May be {@code null}.
+   */
+  private void rollback(TransactionFacade transactionFacade, TransactionTrace trace) {
+    try {
+      transactionFacade.rollback();
+    }
+    finally {
+      if (null != trace) {
+        trace.rollbackCompleted();
+      }
+    }
+  }
+
+  /**
+   * Starts the trace of an outer transaction if a listener is registered. No time stamps are
+   * taken otherwise.
+   *
+   * @param method the method which is reported as the source of the transaction.
+   * @return the trace or {@code null} if no listener is registered.
+   */
+  private TransactionTrace startTrace(Method method) {
+    if (null == traceListener) {
+      return null;
+    }
+    return new TransactionTrace(method, puAnntoation);
+  }
+
+  /**
+   * Marks the end of the transaction and passes the trace to the listener.
+   *
+   * @param trace the trace of the transaction. May be {@code null}.
+   */
+  private void completeTrace(TransactionTrace trace) {
+    if (null != trace) {
+      trace.transactionCompleted();
+      traceListener.transactionCompleted(trace);
+    }
+  }
+
   /**
    * Reads the @{@link Transactional} of a given method invocation.
    *
    * @param methodInvocation the method invocation for which to obtain the @{@link Transactional}.
    * @return the @{@link Transactional} of the given method invocation. Never {@code null}.
    */
-  private Transactional readTransactionMetadata(MethodInvocation methodInvocation) {
+  final Transactional readTransactionMetadata(MethodInvocation methodInvocation) {
     final Method method = methodInvocation.getMethod();
     Transactional result;
 
@@ -229,7 +671,7 @@ abstract class AbstractTxnInterceptor implements MethodInterceptor {
    * @param e The exception to test for rollback.
    * @return {@code true} if a rollback is necessary, {@code false} otherwise.
    */
-  private boolean rollbackIsNecessary(Transactional transactional, Throwable e) {
+  static boolean rollbackIsNecessary(Transactional transactional, Throwable e) {
     for (Class<? extends Exception> rollbackOn : transactional.rollbackOn()) {
       if (rollbackOn.isInstance(e)) {
         for (Class<? extends Exception> ignore : transactional.ignore()) {
@@ -243,6 +685,215 @@ abstract class AbstractTxnInterceptor implements MethodInterceptor {
     return false;
   }
 
+
+
+  // ---- Inner Classes
+
+  /**
+   * An outer transaction of this persistence unit which is completed by a
+   * {@link CoordinatedTxnInterceptor} together with the transactions of other persistence units.
+   */
+  final class CoordinatedTransaction {
+    private final RecordingTransactionFacade transactionFacade;
+    private final TransactionTrace trace;
+    private final boolean weStartedTheUnitOfWork;
+
+    CoordinatedTransaction(RecordingTransactionFacade transactionFacade, TransactionTrace trace,
+        boolean weStartedTheUnitOfWork) {
+      this.transactionFacade = transactionFacade;
+      this.trace = trace;
+      this.weStartedTheUnitOfWork = weStartedTheUnitOfWork;
+    }
+
+    /**
+     * @return the name of the persistence unit.
+     */
+    String getUnitName() {
+      return unitName;
+    }
+
+    /**
+     * @return the annotation of the persistence unit. May be {@code null}.
+     */
+    Class<? extends Annotation> getPersistenceUnitAnnotation() {
+      return puAnntoation;
+    }
+
+    /**
+     * Marks the end of the invocation of the intercepted method.
+     *
+     * @param e the exception thrown by the method. {@code null} if it returned normally.
+     */
+    void methodCompleted(Throwable e) {
+      if (null != trace) {
+        trace.methodCompleted(e);
+      }
+    }
+
+    /**
+     * @return {@code true} if the transaction has been marked as rollbackOnly.
+     */
+    boolean isRollbackOnly() {
+      return transactionFacade.isRollbackOnly();
+    }
+
+    /**
+     * Commits the transaction.
+     */
+    void commit() {
+      AbstractTxnInterceptor.this.commit(transactionFacade, trace);
+    }
+
+    /**
+     * Rolls the transaction back.
+     */
+    void rollback() {
+      AbstractTxnInterceptor.this.rollback(transactionFacade, trace);
+    }
+
+    /**
+     * Notifies the listeners about the completion of the transaction and ends the unit of work if
+     * it has been started for this transaction.
+     *
+     * @param exception the name of the exception thrown by the coordinated invocation. An empty
+     *        string if it returned normally.
+     */
+    void end(String exception) {
+      try {
+        if (null != statementCounter) {
+          statementCounter.endScope();
+        }
+        synchronization.transactionCompleted(transactionFacade.isCommitted());
+        completeTrace(trace);
+        transactionFacade.commitEvent(unitName, exception);
+      }
+      finally {
+        if (weStartedTheUnitOfWork) {
+          emProvider.end();
+        }
+      }
+    }
+  }
+
+  /**
+   * TransactionFacade which records whether the transaction has been committed or rolled back.
+   * Used for the synchronization callbacks and flight recorder events.
+   */
+  private static class RecordingTransactionFacade implements TransactionFacade {
+    private final TransactionFacade delegate;
+    private String outcome = "incomplete";
+
+    /** {@code true} if the transaction has been committed and was not marked rollbackOnly. */
+    private boolean committed = false;
+
+    /** The flight recorder event of the transaction. {@code null} if not recording. */
+    private Object event;
+    private String eventMethod;
+    private boolean eventOuter;
+
+    /** {@code true} while the event waits for the deferred completion of the transaction. */
+    private boolean eventDeferred = false;
+
+    RecordingTransactionFacade(TransactionFacade delegate) {
+      this.delegate = delegate;
+    }
+
+    /**
+     * @return the given facade if it already records the outcome. A new recording facade
+     *         otherwise.
+     */
+    static RecordingTransactionFacade of(TransactionFacade transactionFacade) {
+      if (transactionFacade instanceof RecordingTransactionFacade) {
+        return (RecordingTransactionFacade) transactionFacade;
+      }
+      return new RecordingTransactionFacade(transactionFacade);
+    }
+
+    boolean isCommitted() {
+      return committed;
+    }
+
+    /**
+     * Sets the flight recorder event which is committed with the outcome of the transaction.
+     */
+    void recordEvent(Object recordedEvent, String method, boolean outer) {
+      this.event = recordedEvent;
+      this.eventMethod = method;
+      this.eventOuter = outer;
+    }
+
+    /**
+     * Holds the event back until {@link #commitDeferredEvent(String, String)} is called.
+     */
+    void deferEvent() {
+      eventDeferred = true;
+    }
+
+    /**
+     * Commits the flight recorder event unless it has been deferred.
+     */
+    void commitEvent(String unitName, String exception) {
+      if (null == event || eventDeferred) {
+        return;
+      }
+      FlightRecorderEvents.TRANSACTION.commit(event, unitName, eventMethod, eventOuter, outcome,
+          exception);
+      event = null;
+    }
+
+    /**
+     * Commits the flight recorder event of a transaction whose completion has been deferred.
+     */
+    void commitDeferredEvent(String unitName, String exception) {
+      eventDeferred = false;
+      commitEvent(unitName, exception);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void begin() {
+      delegate.begin();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void commit() {
+      final boolean rollbackOnly = delegate.isRollbackOnly();
+      delegate.commit();
+      committed = !rollbackOnly;
+      outcome = rollbackOnly ? "rolled back (rollback only)" : "committed";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void rollback() {
+      delegate.rollback();
+      outcome = "rolled back";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOuter() {
+      return delegate.isOuter();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRollbackOnly() {
+      return delegate.isRollbackOnly();
+    }
+  }
+
   /** Helper class for obtaining the default of @{@link Transactional}. */
   @Transactional
   private static class DefaultTransactional {
@@ -0,0 +1,360 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+/**
+ * Limits the number of concurrently active units of work of a persistence unit.
+ * <p/>
+ * Every unit of work must acquire a permit of a fair semaphore before its
+ * {@link javax.persistence.EntityManager} is created. Threads wait in arrival order. If no permit
+ * becomes available within the wait timeout a {@link UnitOfWorkRejectedException} is thrown.
+ * This protects the connection pool and the database from more concurrent work than they can
+ * handle and makes an overloaded application fail fast instead of piling up threads.
+ * <p/>
+ * Units of work begun with {@link UnitOfWorkPriority#BACKGROUND} can additionally be limited to a
+ * smaller quota. This reserves the remaining permits for interactive units of work. Background
+ * units of work can also be held back while interactive units of work recently had to wait longer
+ * than a threshold for their admission.
+ * <p/>
+ * While the persistence service is running the admission control is exposed via JMX.
+ *
+ * @author Stephan Classen
+ */
+final class AdmissionController implements AdmissionControllerMBean, PersistenceService {
+
+  // ---- Members
+
+  /** Interactive wait times older than this do not throttle background units of work. */
+  private static final long THROTTLE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /** The interval in which a throttled background unit of work checks the interactive wait. */
+  private static final long THROTTLE_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+  /** Name of the persistence unit used for JMX and error messages. */
+  private final String unitName;
+
+  /** The maximal number of concurrently active units of work. */
+  private final int maxConcurrent;
+
+  /** The maximal time to wait for admission in nanos. */
+  private final long timeoutNanos;
+
+  /** The permits of the units of work. */
+  private final Semaphore permits;
+
+  /** The maximal number of concurrently active background units of work. */
+  private final int maxBackground;
+
+  /** The additional permits of background units of work. {@code null} if not limited. */
+  private final Semaphore backgroundPermits;
+
+  /** Background units of work are held back while interactive ones wait longer than this. */
+  private final long throttleThresholdNanos;
+
+  /** Moving average of the time interactive units of work waited for admission in nanos. */
+  private final AtomicLong recentInteractiveWaitNanos = new AtomicLong();
+
+  /** The time stamp of the last admission of an interactive unit of work. */
+  private volatile long lastInteractiveAdmission;
+
+  private final AtomicLong admittedCount = new AtomicLong();
+  private final AtomicLong rejectedCount = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  /** The name under which the controller is registered with JMX. {@code null} if not registered. */
+  private ObjectName objectName;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param unitName the name of the persistence unit used for JMX and error messages.
+   * @param maxConcurrent the maximal number of concurrently active units of work.
+   * @param timeoutNanos the maximal time to wait for admission in nanos.
+   * @param maxBackground the maximal number of concurrently active background units of work.
+   *        Zero if background units of work are only limited by {@code maxConcurrent}.
+   * @param throttleThresholdNanos background units of work are held back while interactive ones
+   *        wait longer than this for admission. Negative if background units of work are never
+   *        held back.
+   */
+  AdmissionController(String unitName, int maxConcurrent, long timeoutNanos, int maxBackground,
+      long throttleThresholdNanos) {
+    checkNotNull(unitName);
+    checkArgument(maxConcurrent > 0);
+    checkArgument(timeoutNanos >= 0);
+    checkArgument(maxBackground >= 0 && maxBackground < maxConcurrent);
+    this.unitName = unitName;
+    this.maxConcurrent = maxConcurrent;
+    this.timeoutNanos = timeoutNanos;
+    this.permits = new Semaphore(maxConcurrent, true);
+    this.maxBackground = maxBackground;
+    this.backgroundPermits = 0 < maxBackground ? new Semaphore(maxBackground, true) : null;
+    this.throttleThresholdNanos = throttleThresholdNanos;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * Waits until a unit of work with the priority of the current thread may be begun. Every
+   * successful call must be followed by exactly one call to
+   * {@link #release(UnitOfWorkPriority)}.
+   *
+   * @return the priority with which the unit of work has been admitted.
+   * @throws UnitOfWorkRejectedException if the unit of work was not admitted within the wait
+   *         timeout or the thread was interrupted while waiting.
+   */
+  UnitOfWorkPriority acquire() {
+    final UnitOfWorkPriority priority = UnitOfWorkPriority.getCurrent();
+    final long start = System.nanoTime();
+    final boolean admitted;
+    try {
+      if (UnitOfWorkPriority.BACKGROUND == priority) {
+        admitted = acquireBackground(start + timeoutNanos);
+      }
+      else {
+        // the timed variant also honors the fairness of the semaphore if a permit is available
+        admitted = permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS);
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      rejectedCount.incrementAndGet();
+      throw new UnitOfWorkRejectedException("interrupted while waiting for admission of a unit "
+          + "of work of persistence unit " + unitName);
+    }
+    final long waitNanos = System.nanoTime() - start;
+    if (!admitted) {
+      rejectedCount.incrementAndGet();
+      throw new UnitOfWorkRejectedException("no " + priority.name().toLowerCase()
+          + " unit of work of persistence unit " + unitName + " was admitted within "
+          + TimeUnit.NANOSECONDS.toMillis(waitNanos) + " ms. " + getActiveUnitOfWorkCount()
+          + " units of work are active and " + getWaitingThreadCount() + " threads are waiting.");
+    }
+    recordWait(waitNanos);
+    if (UnitOfWorkPriority.INTERACTIVE == priority) {
+      recordInteractiveWait(waitNanos);
+    }
+    return priority;
+  }
+
+  private boolean acquireBackground(long deadline) throws InterruptedException {
+    while (isBackgroundThrottled()) {
+      final long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.sleep(Math.min(remaining, THROTTLE_POLL_NANOS));
+    }
+    if (null == backgroundPermits) {
+      return permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+    if (!backgroundPermits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+      return false;
+    }
+    boolean admitted = false;
+    try {
+      admitted = permits.tryAcquire(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+      return admitted;
+    }
+    finally {
+      if (!admitted) {
+        backgroundPermits.release();
+      }
+    }
+  }
+
+  /**
+   * Releases the permit of a unit of work.
+   *
+   * @param priority the priority returned by {@link #acquire()}.
+   */
+  void release(UnitOfWorkPriority priority) {
+    permits.release();
+    if (UnitOfWorkPriority.BACKGROUND == priority && null != backgroundPermits) {
+      backgroundPermits.release();
+    }
+  }
+
+  private void recordInteractiveWait(long waitNanos) {
+    long average = recentInteractiveWaitNanos.get();
+    while (!recentInteractiveWaitNanos.compareAndSet(average, average - average / 8
+        + waitNanos / 8)) {
+      average = recentInteractiveWaitNanos.get();
+    }
+    lastInteractiveAdmission = System.nanoTime();
+  }
+
+  private void recordWait(long waitNanos) {
+    admittedCount.incrementAndGet();
+    totalWaitNanos.addAndGet(waitNanos);
+    long max = maxWaitNanos.get();
+    while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+      max = maxWaitNanos.get();
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getMaxConcurrentUnitsOfWork() {
+    return maxConcurrent;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getActiveUnitOfWorkCount() {
+    return maxConcurrent - permits.availablePermits();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getWaitingThreadCount() {
+    return permits.getQueueLength();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getMaxConcurrentBackgroundUnitsOfWork() {
+    return null == backgroundPermits ? maxConcurrent : maxBackground;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getActiveBackgroundUnitOfWorkCount() {
+    if (null == backgroundPermits) {
+      return -1;
+    }
+    return maxBackground - backgroundPermits.availablePermits();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public double getRecentInteractiveWaitMillis() {
+    return recentInteractiveWaitNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isBackgroundThrottled() {
+    return 0 <= throttleThresholdNanos
+        && recentInteractiveWaitNanos.get() > throttleThresholdNanos
+        && System.nanoTime() - lastInteractiveAdmission < THROTTLE_WINDOW_NANOS;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getAdmittedCount() {
+    return admittedCount.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public long getRejectedCount() {
+    return rejectedCount.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public double getAverageWaitMillis() {
+    final long count = admittedCount.get();
+    if (0 == count) {
+      return 0;
+    }
+    return totalWaitNanos.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public double getMaxWaitMillis() {
+    return maxWaitNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void resetStatistics() {
+    admittedCount.set(0);
+    rejectedCount.set(0);
+    totalWaitNanos.set(0);
+    maxWaitNanos.set(0);
+    recentInteractiveWaitNanos.set(0);
+  }
+
+  /**
+   * Registers the admission control with JMX.
+   */
+  @Override
+  public synchronized void start() {
+    if (isRunning()) {
+      throw new IllegalStateException("AdmissionController is already running.");
+    }
+    objectName = MBeanRegistration.register(this, AdmissionControllerMBean.class,
+        "AdmissionControl", unitName);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized boolean isRunning() {
+    return null != objectName;
+  }
+
+  /**
+   * Unregisters the admission control from JMX.
+   */
+  @Override
+  public synchronized void stop() {
+    MBeanRegistration.unregister(objectName);
+    objectName = null;
+  }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+/**
+ * JMX management interface of the admission control of a persistence unit.
+ * <p/>
+ * The admission control is registered with the platform MBean server under the name
+ * {@code com.github.sclassen.guicejpa:type=AdmissionControl,unit=<annotation>} when the
+ * {@link PersistenceService} of the persistence unit is started.
+ * See {@link PersistenceUnitBuilder#limitConcurrentUnitsOfWork(int, long,
+ * java.util.concurrent.TimeUnit)}.
+ *
+ * @author Stephan Classen
+ */
+public interface AdmissionControllerMBean {
+
+  /**
+   * @return the maximal number of concurrently active units of work.
+   */
+  int getMaxConcurrentUnitsOfWork();
+
+  /**
+   * @return the number of currently admitted units of work.
+   */
+  int getActiveUnitOfWorkCount();
+
+  /**
+   * @return the estimated number of threads waiting to begin a unit of work.
+   */
+  int getWaitingThreadCount();
+
+  /**
+   * @return the maximal number of concurrently active background units of work.
+   */
+  int getMaxConcurrentBackgroundUnitsOfWork();
+
+  /**
+   * @return the number of currently admitted background units of work or -1 if background units
+   *         of work have no separate quota.
+   */
+  int getActiveBackgroundUnitOfWorkCount();
+
+  /**
+   * @return the moving average of the time in milliseconds interactive units of work waited for
+   *         admission.
+   */
+  double getRecentInteractiveWaitMillis();
+
+  /**
+   * @return {@code true} if background units of work are currently held back because interactive
+   *         units of work had to wait too long for admission.
+   */
+  boolean isBackgroundThrottled();
+
+  /**
+   * @return the number of units of work admitted since the persistence unit was created.
+   */
+  long getAdmittedCount();
+
+  /**
+   * @return the number of units of work rejected since the persistence unit was created.
+   */
+  long getRejectedCount();
+
+  /**
+   * @return the average time in milliseconds a unit of work waited for admission.
+   */
+  double getAverageWaitMillis();
+
+  /**
+   * @return the longest time in milliseconds a unit of work waited for admission.
+   */
+  double getMaxWaitMillis();
+
+  /**
+   * Resets the admitted and rejected counts and the wait times.
+   */
+  void resetStatistics();
+
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Combines the health checks of all persistence units. All persistence units must be healthy
+ * for the combination to be healthy. The latency is the one of the slowest check and the last
+ * failure is the most recent failure of any persistence unit.
+ *
+ * @author Stephan Classen
+ */
+final class AggregatedHealthCheck implements PersistenceUnitHealthCheck {
+
+  // ---- Members
+
+  /** The health checks of the persistence units. */
+  private final List<PersistenceUnitHealthCheck> healthChecks =
+      new ArrayList<PersistenceUnitHealthCheck>();
+
+
+  // ---- Methods
+
+  /**
+   * Adds the health check of a persistence unit.
+   *
+   * @param healthCheck the health check to add. Must not be {@code null}.
+   */
+  void add(PersistenceUnitHealthCheck healthCheck) {
+    checkNotNull(healthCheck);
+    healthChecks.add(healthCheck);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public HealthStatus getStatus() {
+    boolean healthy = true;
+    long checkTimeMillis = Long.MAX_VALUE;
+    long latencyNanos = -1;
+    String lastFailure = null;
+    long lastFailureTimeMillis = 0;
+    for (PersistenceUnitHealthCheck healthCheck : healthChecks) {
+      final HealthStatus status = healthCheck.getStatus();
+      healthy &= status.isHealthy();
+      checkTimeMillis = Math.min(checkTimeMillis, status.getCheckTimeMillis());
+      latencyNanos = Math.max(latencyNanos, status.getLatencyNanos());
+      if (null != status.getLastFailure()
+          && status.getLastFailureTimeMillis() >= lastFailureTimeMillis) {
+        lastFailure = status.getUnitName() + ": " + status.getLastFailure();
+        lastFailureTimeMillis = status.getLastFailureTimeMillis();
+      }
+    }
+    if (healthChecks.isEmpty()) {
+      checkTimeMillis = 0;
+    }
+    return new HealthStatus("all", healthy, checkTimeMillis, latencyNanos, lastFailure,
+        lastFailureTimeMillis);
+  }
+
+}
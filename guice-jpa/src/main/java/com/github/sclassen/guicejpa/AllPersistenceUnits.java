@@ -28,6 +28,9 @@ import com.google.inject.BindingAnnotation;
  * Annotation for {@link PersistenceService} and {@link UnitOfWork}. This is a special annotation for
  * retrieving a container holding all registered persistence units. Calling a method on such a container
  * will trigger the method call on all registered instances. In other words on all persistence units.
+ * <p/>
+ * The {@link PersistenceUnitHealthCheck} annotated with this annotation combines the health checks
+ * of all persistence units.
  *
  * @author Stephan Classen
  */
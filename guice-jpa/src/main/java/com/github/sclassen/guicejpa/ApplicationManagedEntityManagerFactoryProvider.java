@@ -38,10 +38,13 @@ final class ApplicationManagedEntityManagerFactoryProvider implements EntityMana
   private final String puName;
 
   /** Additional properties. Theses override the ones defined in the persistence.xml. */
-  private final Properties properties;
+  private Properties properties;
+
+  /** Proxy for the data source. {@code null} if the data source is not wrapped. */
+  private JdbcProxy jdbcProxy;
 
   /** EntityManagerFactory. */
-  private EntityManagerFactory emf;
+  private volatile EntityManagerFactory emf;
 
 
   // ---- Constructor
@@ -68,8 +71,9 @@ final class ApplicationManagedEntityManagerFactoryProvider implements EntityMana
    */
   @Override
   public EntityManagerFactory get() {
-    if (isRunning()) {
-      return emf;
+    final EntityManagerFactory current = emf;
+    if (null != current) {
+      return current;
     }
 
     throw new IllegalStateException("PersistenceService is not running.");
@@ -79,11 +83,67 @@ final class ApplicationManagedEntityManagerFactoryProvider implements EntityMana
    * {@inheritDoc}
    */
   @Override
-  public void start() {
+  public synchronized void start() {
     if (isRunning()) {
       throw new IllegalStateException("PersistenceService is already running.");
     }
-    emf = Persistence.createEntityManagerFactory(puName, properties);
+    emf = createEntityManagerFactory(properties);
+  }
+
+  /**
+   * Creates a new factory and replaces the current one. The caller is responsible for closing the
+   * replaced factory.
+   *
+   * @param additionalProperties properties to add to the properties of the persistence unit.
+   *        Must not be {@code null}.
+   * @return the replaced factory.
+   * @throws IllegalStateException if the persistence service is not running.
+   */
+  synchronized EntityManagerFactory replace(Properties additionalProperties) {
+    checkNotNull(additionalProperties);
+    if (!isRunning()) {
+      throw new IllegalStateException("PersistenceService is not running.");
+    }
+    final Properties newProperties = new Properties();
+    newProperties.putAll(properties);
+    newProperties.putAll(additionalProperties);
+    final EntityManagerFactory newEmf = createEntityManagerFactory(newProperties);
+
+    final EntityManagerFactory oldEmf = emf;
+    properties = newProperties;
+    emf = newEmf;
+    return oldEmf;
+  }
+
+  private EntityManagerFactory createEntityManagerFactory(Properties emfProperties) {
+    return Persistence.createEntityManagerFactory(puName,
+        (null == jdbcProxy) ? emfProperties : jdbcProxy.wrapDataSource(emfProperties));
+  }
+
+  /**
+   * Adds a property used when the factory is created. The properties passed to the constructor
+   * are not modified.
+   *
+   * @param key the key of the property. Must not be {@code null}.
+   * @param value the value of the property. Must not be {@code null}.
+   */
+  synchronized void addProperty(String key, String value) {
+    checkNotNull(key);
+    checkNotNull(value);
+    final Properties newProperties = new Properties();
+    newProperties.putAll(properties);
+    newProperties.setProperty(key, value);
+    properties = newProperties;
+  }
+
+  /**
+   * Sets the proxy which wraps the data source defined in the properties.
+   *
+   * @param jdbcProxy the proxy. Must not be {@code null}.
+   */
+  void setJdbcProxy(JdbcProxy jdbcProxy) {
+    checkNotNull(jdbcProxy);
+    this.jdbcProxy = jdbcProxy;
   }
 
   /**
@@ -98,7 +158,7 @@ final class ApplicationManagedEntityManagerFactoryProvider implements EntityMana
    * {@inheritDoc}
    */
   @Override
-  public void stop() {
+  public synchronized void stop() {
     if (isRunning()) {
       emf.close();
       emf = null;
@@ -32,6 +32,12 @@ import javax.persistence.EntityManagerFactory;
  *    <li>{@link UnitOfWork}</li>
  *    <li>{@link EntityManagerProvider}</li>
  *    <li>{@link PersistenceService}</li>
+ *    <li>{@link TransactionSynchronization}</li>
+ *    <li>{@link TransactionRunner}</li>
+ *    <li>{@link UnitOfWorkPropagation}</li>
+ *    <li>{@link StreamingQueries}</li>
+ *    <li>{@link PersistenceUnitHealthCheck} (only if the health is checked)</li>
+ *    <li>{@link EntityManagerFactoryReloader}</li>
  * </ul>
  * If an annotation has been defined for this module the above classes are exposed with this
  * annotation. Within the private module the above classes are also binded without any annotation.
@@ -91,8 +97,34 @@ public class ApplicationManagedPersistenceUnitModule extends AbstractPersistence
    * {@inheritDoc}
    */
   @Override
-  final PersistenceService getPersistenceService() {
+  final PersistenceService getEntityManagerFactoryService() {
     return emfProvider;
   }
 
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  final void installJdbcProxy(JdbcProxy proxy) {
+    emfProvider.setJdbcProxy(proxy);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  final void addEntityManagerFactoryProperty(String key, String value) {
+    emfProvider.addProperty(key, value);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  final void configureEntityManagerFactory() {
+    bindAndExposeInstance(EntityManagerFactoryReloader.class,
+        new EntityManagerFactoryReloaderImpl(getUnitName(), emfProvider,
+            getEntityManagerProvider()));
+  }
+
 }
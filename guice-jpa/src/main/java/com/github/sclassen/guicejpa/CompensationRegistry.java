@@ -0,0 +1,63 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.lang.annotation.Annotation;
+
+/**
+ * Allows to register compensations for the current coordinated transaction.
+ * <p/>
+ * If commits are coordinated (see {@link PersistenceModule#coordinateCommits(Class...)}) the
+ * transactions of all persistence units covered by a method annotated with @{@link Transactional}
+ * are committed one after the other in the configured order. If a commit fails the transactions
+ * which have not yet been committed are rolled back. The transactions which have already been
+ * committed cannot be rolled back anymore. For these persistence units the registered
+ * compensations are executed in the reverse order of their registration. A compensation should
+ * undo the changes of its persistence unit, typically in a new transaction.
+ * <p/>
+ * Exceptions thrown by compensations are logged and do not prevent the execution of the other
+ * compensations. Every failed commit of a coordinated transaction which leaves committed changes
+ * behind is reported to the logger {@value CoordinatedTxnInterceptor#INCONSISTENCY_LOGGER}.
+ * <p/>
+ * An instance of this interface is bound by the {@link PersistenceModule} if commits are
+ * coordinated. It is thread save.
+ *
+ * @author Stephan Classen
+ */
+public interface CompensationRegistry {
+
+  /**
+   * @return {@code true} if the current thread is within a coordinated transaction to which
+   *         compensations can be registered. {@code false} otherwise.
+   */
+  boolean isCoordinatedTransactionActive();
+
+  /**
+   * Registers a compensation which is executed if the transaction of the given persistence unit
+   * has been committed but the commit of a persistence unit later in the commit order failed.
+   *
+   * @param persistenceUnit the annotation of the persistence unit whose changes are compensated.
+   *        Must not be {@code null}.
+   * @param compensation the compensation. Must not be {@code null}.
+   * @throws IllegalStateException if {@link #isCoordinatedTransactionActive()} returns
+   *         {@code false}.
+   * @throws IllegalArgumentException if the persistence unit does not participate in the current
+   *         coordinated transaction.
+   */
+  void registerCompensation(Class<? extends Annotation> persistenceUnit, Runnable compensation)
+    throws IllegalStateException, IllegalArgumentException;
+
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link TransactionTraceListener} which notifies several listeners.
+ *
+ * @author Stephan Classen
+ */
+final class CompositeTransactionTraceListener implements TransactionTraceListener {
+
+  // ---- Members
+
+  /** The listeners to notify. */
+  private final List<TransactionTraceListener> listeners;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param listeners the listeners to notify.
+   */
+  CompositeTransactionTraceListener(List<TransactionTraceListener> listeners) {
+    this.listeners = new ArrayList<TransactionTraceListener>(listeners);
+  }
+
+
+  // ---- Methods
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void transactionCompleted(TransactionTrace trace) {
+    for (TransactionTraceListener listener : listeners) {
+      listener.transactionCompleted(trace);
+    }
+  }
+
+}
@@ -32,6 +32,11 @@ import javax.persistence.EntityManagerFactory;
  *    <li>{@link UnitOfWork}</li>
  *    <li>{@link EntityManagerProvider}</li>
  *    <li>{@link PersistenceService}</li>
+ *    <li>{@link TransactionSynchronization}</li>
+ *    <li>{@link TransactionRunner}</li>
+ *    <li>{@link UnitOfWorkPropagation}</li>
+ *    <li>{@link StreamingQueries}</li>
+ *    <li>{@link PersistenceUnitHealthCheck} (only if the health is checked)</li>
  * </ul>
  * If an annotation has been defined for this module the above classes are exposed with this
  * annotation. Within the private module the above classes are also binded without any annotation.
@@ -92,7 +97,7 @@ public class ContainerManagedPersistenceUnitModule extends AbstractPersistenceUn
    * {@inheritDoc}
    */
   @Override
-  PersistenceService getPersistenceService() {
+  PersistenceService getEntityManagerFactoryService() {
     return emfProvider;
   }
 
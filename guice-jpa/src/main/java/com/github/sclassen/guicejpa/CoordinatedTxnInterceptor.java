@@ -0,0 +1,355 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import com.github.sclassen.guicejpa.AbstractTxnInterceptor.CoordinatedTransaction;
+import com.github.sclassen.guicejpa.TransactionalInvoker.Proceed;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ListMultimap;
+
+/**
+ * Interceptor which coordinates the transactions of several resource local persistence units.
+ * <p/>
+ * If a method annotated with @{@link Transactional} covers more than one persistence unit and
+ * none of them has an active transaction the interceptor begins the transactions of all covered
+ * persistence units, executes the method and commits the transactions one after the other in the
+ * configured commit order (best effort one phase commit). If a commit fails the remaining
+ * transactions are rolled back, the compensations registered for the already committed
+ * persistence units are executed and the inconsistency is logged.
+ * <p/>
+ * All other invocations are passed to the transaction interceptors of the persistence units in
+ * the order in which the persistence units have been defined.
+ *
+ * @author Stephan Classen
+ */
+final class CoordinatedTxnInterceptor implements MethodInterceptor, CompensationRegistry {
+
+  // ---- Members
+
+  /** Name of the logger which reports inconsistent commits. */
+  static final String INCONSISTENCY_LOGGER = "com.github.sclassen.guicejpa.inconsistency";
+
+  private static final Logger LOGGER = Logger.getLogger(CoordinatedTxnInterceptor.class.getName());
+
+  private static final Logger INCONSISTENCY_LOG = Logger.getLogger(INCONSISTENCY_LOGGER);
+
+  /** The coordination of the current thread. {@code null} if none is active. */
+  private final ThreadLocal<Coordination> currentCoordination = new ThreadLocal<Coordination>();
+
+  /** The transaction interceptors of all persistence units in the commit order. */
+  private final List<AbstractTxnInterceptor> commitOrder;
+
+  /** Invoker applying the transaction interceptors in the order of definition. */
+  private final TransactionalInvoker uncoordinated;
+
+  /** The {@link PersistenceExceptionTranslator}. May be {@code null}. */
+  private final PersistenceExceptionTranslator<?> peTranslator;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param interceptors the transaction interceptors of all persistence units in the order of
+   *        definition. Must not be {@code null}.
+   * @param commitOrder the same interceptors in the order in which the transactions are
+   *        committed. Must not be {@code null}.
+   * @param peTranslator the {@link PersistenceExceptionTranslator}. May be {@code null}.
+   */
+  CoordinatedTxnInterceptor(List<? extends MethodInterceptor> interceptors,
+      List<AbstractTxnInterceptor> commitOrder, PersistenceExceptionTranslator<?> peTranslator) {
+    checkNotNull(interceptors);
+    checkNotNull(commitOrder);
+    this.uncoordinated = new TransactionalInvoker(new ArrayList<MethodInterceptor>(interceptors));
+    this.commitOrder = ImmutableList.copyOf(commitOrder);
+    this.peTranslator = peTranslator;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Object invoke(final MethodInvocation methodInvocation) throws Throwable {
+    final List<AbstractTxnInterceptor> covered = getCoordinatedInterceptors(methodInvocation);
+    if (null == covered) {
+      return uncoordinated.invoke(methodInvocation.getThis(), methodInvocation.getMethod(),
+          methodInvocation.getArguments(), new Proceed() {
+            @Override
+            public Object proceed() throws Throwable {
+              return methodInvocation.proceed();
+            }
+          });
+    }
+
+    final Method method = methodInvocation.getMethod();
+    final Transactional transactional = covered.get(0).readTransactionMetadata(methodInvocation);
+    Proceed work = new Proceed() {
+      @Override
+      public Object proceed() throws Throwable {
+        return methodInvocation.proceed();
+      }
+    };
+    for (AbstractTxnInterceptor interceptor : covered) {
+      work = interceptor.withStatementBudget(transactional, method, work);
+    }
+
+    final Coordination coordination = new Coordination();
+    currentCoordination.set(coordination);
+    String exception = "";
+    try {
+      try {
+        for (AbstractTxnInterceptor interceptor : covered) {
+          coordination.transactions.add(interceptor.beginCoordinated(method));
+        }
+      }
+      catch (RuntimeException e) {
+        coordination.rollback(0);
+        throw e;
+      }
+
+      final Object result;
+      try {
+        result = work.proceed();
+      }
+      catch (Throwable e) {
+        coordination.methodCompleted(e);
+        if (AbstractTxnInterceptor.rollbackIsNecessary(transactional, e)) {
+          coordination.rollback(0);
+        }
+        else {
+          coordination.commit(method);
+        }
+        // In any case: throw the original exception.
+        throw e;
+      }
+      coordination.methodCompleted(null);
+      coordination.commit(method);
+      return result;
+    }
+    catch (RuntimeException e) {
+      exception = e.getClass().getName();
+      if (null != peTranslator) {
+        final RuntimeException te = peTranslator.translateExceptionIfPossible(e);
+        if (null != te) {
+          throw te;
+        }
+      }
+      throw e;
+    }
+    catch (Throwable e) {
+      exception = e.getClass().getName();
+      throw e;
+    }
+    finally {
+      currentCoordination.remove();
+      coordination.end(exception);
+    }
+  }
+
+  /**
+   * Returns the interceptors whose transactions are coordinated for the given invocation.
+   *
+   * @param methodInvocation the method invocation.
+   * @return the covered interceptors in commit order or {@code null} if the invocation is not
+   *         coordinated.
+   */
+  private List<AbstractTxnInterceptor> getCoordinatedInterceptors(
+      MethodInvocation methodInvocation) {
+    if (null != currentCoordination.get()) {
+      return null;
+    }
+
+    final List<AbstractTxnInterceptor> covered = new ArrayList<AbstractTxnInterceptor>();
+    for (AbstractTxnInterceptor interceptor : commitOrder) {
+      if (interceptor.transactionCoversThisPersistenceUnit(methodInvocation)) {
+        if (interceptor.isTransactionActive()) {
+          return null;
+        }
+        covered.add(interceptor);
+      }
+    }
+    if (covered.size() < 2) {
+      return null;
+    }
+
+    final Propagation propagation =
+        covered.get(0).readTransactionMetadata(methodInvocation).propagation();
+    if (Propagation.REQUIRED != propagation && Propagation.REQUIRES_NEW != propagation) {
+      return null;
+    }
+    return covered;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isCoordinatedTransactionActive() {
+    return null != currentCoordination.get();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void registerCompensation(Class<? extends Annotation> persistenceUnit,
+      Runnable compensation) {
+    checkNotNull(persistenceUnit);
+    checkNotNull(compensation);
+    final Coordination coordination = currentCoordination.get();
+    checkState(null != coordination, "no coordinated transaction is active.");
+    coordination.registerCompensation(persistenceUnit, compensation);
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * The transactions and compensations of a coordinated transaction.
+   */
+  private static final class Coordination {
+    private final List<CoordinatedTransaction> transactions =
+        new ArrayList<CoordinatedTransaction>();
+    private final ListMultimap<Class<? extends Annotation>, Runnable> compensations =
+        ArrayListMultimap.create();
+
+    void registerCompensation(Class<? extends Annotation> persistenceUnit,
+        Runnable compensation) {
+      boolean participates = false;
+      for (CoordinatedTransaction transaction : transactions) {
+        participates |= persistenceUnit.equals(transaction.getPersistenceUnitAnnotation());
+      }
+      checkArgument(participates, "the persistence unit " + persistenceUnit.getName()
+          + " does not participate in the current coordinated transaction.");
+      compensations.put(persistenceUnit, compensation);
+    }
+
+    void methodCompleted(Throwable e) {
+      for (CoordinatedTransaction transaction : transactions) {
+        transaction.methodCompleted(e);
+      }
+    }
+
+    /**
+     * Commits all transactions in order. If any transaction is marked as rollbackOnly all
+     * transactions are rolled back.
+     */
+    void commit(Method method) {
+      for (CoordinatedTransaction transaction : transactions) {
+        if (transaction.isRollbackOnly()) {
+          rollback(0);
+          return;
+        }
+      }
+
+      final int n = transactions.size();
+      for (int i = 0; i < n; i++) {
+        try {
+          transactions.get(i).commit();
+        }
+        catch (RuntimeException e) {
+          rollback(i + 1);
+          if (0 < i) {
+            compensate(method, i, e);
+          }
+          throw e;
+        }
+      }
+    }
+
+    /**
+     * Rolls back the transactions starting at the given index. Failures are logged.
+     */
+    void rollback(int fromIndex) {
+      final int n = transactions.size();
+      for (int i = fromIndex; i < n; i++) {
+        try {
+          transactions.get(i).rollback();
+        }
+        catch (RuntimeException e) {
+          LOGGER.log(Level.WARNING, "failed to roll back the transaction on persistence unit "
+              + transactions.get(i).getUnitName(), e);
+        }
+      }
+    }
+
+    /**
+     * Executes the compensations of the first committed transactions and reports the
+     * inconsistency.
+     */
+    private void compensate(Method method, int committed, RuntimeException cause) {
+      final StringBuilder sb = new StringBuilder();
+      sb.append("coordinated commit of ").append(method.getDeclaringClass().getName())
+          .append('.').append(method.getName()).append(" failed on persistence unit ")
+          .append(transactions.get(committed).getUnitName()).append(". committed:");
+      for (int i = committed - 1; i >= 0; i--) {
+        final CoordinatedTransaction transaction = transactions.get(i);
+        final List<Runnable> list =
+            compensations.get(transaction.getPersistenceUnitAnnotation());
+        int failed = 0;
+        for (int j = list.size() - 1; j >= 0; j--) {
+          try {
+            list.get(j).run();
+          }
+          catch (RuntimeException e) {
+            failed++;
+            LOGGER.log(Level.WARNING, "compensation on persistence unit "
+                + transaction.getUnitName() + " failed", e);
+          }
+        }
+        sb.append(' ').append(transaction.getUnitName()).append(" (")
+            .append(list.size() - failed).append(" of ").append(list.size())
+            .append(" compensations succeeded)");
+      }
+      INCONSISTENCY_LOG.log(Level.SEVERE, sb.toString(), cause);
+    }
+
+    /**
+     * Ends all transactions in reverse order.
+     */
+    void end(String exception) {
+      for (int i = transactions.size() - 1; i >= 0; i--) {
+        try {
+          transactions.get(i).end(exception);
+        }
+        catch (RuntimeException e) {
+          LOGGER.log(Level.WARNING, "failed to end the transaction on persistence unit "
+              + transactions.get(i).getUnitName(), e);
+        }
+      }
+    }
+  }
+
+}
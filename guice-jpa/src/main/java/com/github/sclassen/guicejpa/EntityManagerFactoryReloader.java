@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replaces the {@link javax.persistence.EntityManagerFactory} of a running application managed
+ * persistence unit without interrupting the application. Use this to rotate database credentials
+ * or to change the settings of the connection pool.
+ * <p/>
+ * A reload performs the following steps:
+ * <ol>
+ *    <li>a new factory is created. Units of work begun meanwhile still use the current
+ *        factory.</li>
+ *    <li>the new factory atomically replaces the current one. All units of work begun afterwards
+ *        use the new factory.</li>
+ *    <li>the units of work still using the old factory are given time to end.</li>
+ *    <li>the old factory is closed.</li>
+ * </ol>
+ * Creating a factory may take a while. Consider calling this from a background thread.
+ * <p/>
+ * An instance of this interface is bound and exposed for every application managed persistence
+ * unit.
+ *
+ * @author Stephan Classen
+ */
+public interface EntityManagerFactoryReloader {
+
+  /**
+   * Replaces the factory by a new one created with the current properties.
+   *
+   * @param drainTimeout the maximal time to wait for the units of work using the old factory.
+   *        Must not be negative.
+   * @param unit the time unit of drainTimeout. Must not be {@code null}.
+   * @return {@code true} if all units of work using the old factory have ended before it was
+   *         closed. {@code false} if the old factory was closed after the timeout expired.
+   * @throws IllegalStateException if the persistence service is not running.
+   * @throws javax.persistence.PersistenceException if the new factory cannot be created. The
+   *         current factory remains in use in this case.
+   */
+  boolean reload(long drainTimeout, TimeUnit unit);
+
+  /**
+   * Replaces the factory by a new one. The given properties are added to the properties of the
+   * persistence unit and are also used by all subsequent starts and reloads.
+   *
+   * @param properties the properties to add or replace. Must not be {@code null}.
+   * @param drainTimeout the maximal time to wait for the units of work using the old factory.
+   *        Must not be negative.
+   * @param unit the time unit of drainTimeout. Must not be {@code null}.
+   * @return {@code true} if all units of work using the old factory have ended before it was
+   *         closed. {@code false} if the old factory was closed after the timeout expired.
+   * @throws IllegalStateException if the persistence service is not running.
+   * @throws javax.persistence.PersistenceException if the new factory cannot be created. The
+   *         current factory remains in use in this case.
+   */
+  boolean reload(Properties properties, long drainTimeout, TimeUnit unit);
+
+}
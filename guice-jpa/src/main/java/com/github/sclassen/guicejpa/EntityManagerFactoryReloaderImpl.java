@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Implementation of {@link EntityManagerFactoryReloader}.
+ *
+ * @author Stephan Classen
+ */
+final class EntityManagerFactoryReloaderImpl implements EntityManagerFactoryReloader {
+
+  // ---- Members
+
+  private static final Logger LOGGER =
+      Logger.getLogger(EntityManagerFactoryReloaderImpl.class.getName());
+
+  /** Name of the persistence unit used for logging. */
+  private final String unitName;
+
+  /** The provider holding the factory to replace. */
+  private final ApplicationManagedEntityManagerFactoryProvider emfProvider;
+
+  /** The provider of the entity managers created by the factory. */
+  private final EntityManagerProviderImpl emProvider;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param unitName the name of the persistence unit used for logging.
+   * @param emfProvider the provider holding the factory to replace.
+   * @param emProvider the provider of the entity managers created by the factory.
+   */
+  EntityManagerFactoryReloaderImpl(String unitName,
+      ApplicationManagedEntityManagerFactoryProvider emfProvider,
+      EntityManagerProviderImpl emProvider) {
+    checkNotNull(unitName);
+    checkNotNull(emfProvider);
+    checkNotNull(emProvider);
+    this.unitName = unitName;
+    this.emfProvider = emfProvider;
+    this.emProvider = emProvider;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean reload(long drainTimeout, TimeUnit unit) {
+    return reload(new Properties(), drainTimeout, unit);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized boolean reload(Properties properties, long drainTimeout, TimeUnit unit) {
+    checkNotNull(properties);
+    checkArgument(drainTimeout >= 0, "drainTimeout must not be negative");
+    checkNotNull(unit);
+
+    final EntityManagerFactory oldEmf = emfProvider.replace(properties);
+    final boolean drained;
+    try {
+      drained = emProvider.awaitEntityManagersClosed(oldEmf,
+          System.nanoTime() + unit.toNanos(drainTimeout));
+    }
+    finally {
+      oldEmf.close();
+    }
+    if (!drained) {
+      LOGGER.warning("closed the replaced entity manager factory of persistence unit " + unitName
+          + " while " + emProvider.countOpenEntityManagers(oldEmf)
+          + " units of work were still using it.");
+    }
+    return drained;
+  }
+
+}
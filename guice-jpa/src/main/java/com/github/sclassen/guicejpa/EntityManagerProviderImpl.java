@@ -18,11 +18,16 @@ package com.github.sclassen.guicejpa;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 
+import com.google.common.collect.MapMaker;
+
 /**
  * Implementation of {@link EntityManagerProvider} and {@link UnitOfWork}.
  *
@@ -32,6 +37,9 @@ final class EntityManagerProviderImpl implements EntityManagerProvider, UnitOfWo
 
   // ---- Members
 
+  /** The interval in which {@link #awaitEntityManagersClosed} checks the open entity managers. */
+  private static final long DRAIN_POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
   /** Provider for {@link EntityManagerFactory}. */
   private final EntityManagerFactoryProvider emfProvider;
 
@@ -41,6 +49,38 @@ final class EntityManagerProviderImpl implements EntityManagerProvider, UnitOfWo
   /** Thread local store of {@link EntityManager}s. */
   private final ThreadLocal<EntityManager> entityManagers = new ThreadLocal<EntityManager>();
 
+  /** The entity manager of the unit of work which holds the admission permit of this thread. */
+  private final ThreadLocal<EntityManager> permitHolders = new ThreadLocal<EntityManager>();
+
+  /** Registry of the active units of work. May be {@code null}. */
+  private UnitOfWorkRegistry registry;
+
+  /** Counter for the JDBC statements executed in a unit of work. May be {@code null}. */
+  private StatementCounter statementCounter;
+
+  /** Limits the number of concurrently active units of work. May be {@code null}. */
+  private AdmissionController admissionController;
+
+  /** Defaults applied to every created entity manager. May be {@code null}. */
+  private QueryDefaults queryDefaults;
+
+  /** Name of the persistence unit used in flight recorder events. */
+  private String unitName = "default";
+
+  /** The flight recorder events of the active units of work. Only used while recording. */
+  private final ConcurrentMap<EntityManager, Object> unitOfWorkEvents = new MapMaker().makeMap();
+
+  /** {@code false} while the persistence unit is draining and rejects new units of work. */
+  private volatile boolean admitting = true;
+
+  /** The open entity managers and the factories which created them. */
+  private final ConcurrentMap<EntityManager, EntityManagerFactory> openEntityManagers =
+      new MapMaker().makeMap();
+
+  /** The priority with which the active units of work have been admitted. */
+  private final ConcurrentMap<EntityManager, UnitOfWorkPriority> admittedPriorities =
+      new MapMaker().makeMap();
+
 
   // ---- Constructor
 
@@ -69,6 +109,76 @@ final class EntityManagerProviderImpl implements EntityManagerProvider, UnitOfWo
 
   // ---- Methods
 
+  /**
+   * @return the provider for the {@link EntityManagerFactory}.
+   */
+  EntityManagerFactoryProvider getEntityManagerFactoryProvider() {
+    return emfProvider;
+  }
+
+  /**
+   * Sets the name of the persistence unit used in flight recorder events.
+   *
+   * @param unitName the name of the persistence unit. Must not be {@code null}.
+   */
+  void setUnitName(String unitName) {
+    checkNotNull(unitName);
+    this.unitName = unitName;
+  }
+
+  /**
+   * Sets the registry in which all active units of work are tracked.
+   *
+   * @param registry the registry. May be {@code null}.
+   */
+  void setUnitOfWorkRegistry(UnitOfWorkRegistry registry) {
+    this.registry = registry;
+    if (null != registry) {
+      registry.setExpirationListener(new UnitOfWorkRegistry.ExpirationListener() {
+        @Override
+        public void unitOfWorkClosed(EntityManager em) {
+          release(em);
+        }
+      });
+    }
+  }
+
+  /**
+   * Sets the counter for the JDBC statements executed in a unit of work.
+   *
+   * @param statementCounter the counter. May be {@code null}.
+   */
+  void setStatementCounter(StatementCounter statementCounter) {
+    this.statementCounter = statementCounter;
+  }
+
+  /**
+   * Sets the controller limiting the number of concurrently active units of work.
+   *
+   * @param admissionController the controller. May be {@code null}.
+   */
+  void setAdmissionController(AdmissionController admissionController) {
+    this.admissionController = admissionController;
+  }
+
+  /**
+   * Sets the defaults applied to every created {@link EntityManager} and its queries.
+   *
+   * @param queryDefaults the defaults. May be {@code null}.
+   */
+  void setQueryDefaults(QueryDefaults queryDefaults) {
+    this.queryDefaults = queryDefaults;
+  }
+
+  /**
+   * Sets whether new units of work are admitted.
+   *
+   * @param admitting {@code false} to reject all new units of work.
+   */
+  void setAdmitting(boolean admitting) {
+    this.admitting = admitting;
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -76,6 +186,10 @@ final class EntityManagerProviderImpl implements EntityManagerProvider, UnitOfWo
   public EntityManager get() {
     final EntityManager entityManager = entityManagers.get();
     if (null != entityManager) {
+      if (null != registry && !entityManager.isOpen()) {
+        throw new IllegalStateException("UnitOfWork has been closed because it was open for "
+            + "too long.");
+      }
       return entityManager;
     }
 
@@ -90,17 +204,135 @@ final class EntityManagerProviderImpl implements EntityManagerProvider, UnitOfWo
     if (isActive()) {
       throw new IllegalStateException("Unit of work has already been started.");
     }
+    if (!admitting) {
+      throw new UnitOfWorkRejectedException("the persistence unit is shutting down.");
+    }
+    // remove a unit of work which has been closed by the reaper of the registry
+    final EntityManager closed = entityManagers.get();
+    if (null != closed) {
+      entityManagers.remove();
+      release(closed);
+    }
 
-    final EntityManagerFactory emf = emfProvider.get();
     final EntityManager em;
-    if (null == properties) {
-      em = emf.createEntityManager();
+    if (null == admissionController || holdsPermit()) {
+      // a nested unit of work runs within the permit of the suspended one
+      em = createEntityManager();
     }
     else {
-      em = emf.createEntityManager(properties);
+      final UnitOfWorkPriority priority = admissionController.acquire();
+      try {
+        em = createEntityManager();
+      }
+      catch (RuntimeException e) {
+        admissionController.release(priority);
+        throw e;
+      }
+      admittedPriorities.put(em, priority);
+      permitHolders.set(em);
     }
 
     entityManagers.set(em);
+    final Object event = FlightRecorderEvents.UNIT_OF_WORK.begin();
+    if (null != event) {
+      unitOfWorkEvents.put(em, event);
+    }
+    if (null != registry) {
+      registry.register(em);
+    }
+    if (null != statementCounter) {
+      statementCounter.beginScope("unit of work");
+    }
+  }
+
+  private EntityManager createEntityManager() {
+    while (true) {
+      final EntityManagerFactory emf = emfProvider.get();
+      EntityManager em;
+      try {
+        em = (null == properties) ? emf.createEntityManager() : emf.createEntityManager(properties);
+      }
+      catch (IllegalStateException e) {
+        if (emf != emfProvider.get()) {
+          // the factory has been replaced and closed concurrently
+          continue;
+        }
+        throw e;
+      }
+      if (null != queryDefaults) {
+        em = queryDefaults.apply(em);
+      }
+      openEntityManagers.put(em, emf);
+      if (emf == emfProvider.get()) {
+        return em;
+      }
+      // the factory has been replaced concurrently and may not wait for this entity manager
+      openEntityManagers.remove(em);
+      em.close();
+    }
+  }
+
+  /**
+   * Waits until all entity managers created by the given factory are closed.
+   *
+   * @param emf the factory. {@code null} to wait for the entity managers of all factories.
+   * @param deadline the time stamp as returned by {@link System#nanoTime()} until which to wait.
+   * @return {@code true} if all entity managers are closed. {@code false} if the deadline has
+   *         passed or the current thread has been interrupted.
+   */
+  boolean awaitEntityManagersClosed(EntityManagerFactory emf, long deadline) {
+    while (0 < countOpenEntityManagers(emf)) {
+      final long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      try {
+        TimeUnit.NANOSECONDS.sleep(Math.min(remaining, DRAIN_POLL_NANOS));
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param emf the factory. {@code null} to count the entity managers of all factories.
+   * @return the number of open entity managers created by the given factory. Entity managers of
+   *         suspended units of work are included.
+   */
+  int countOpenEntityManagers(EntityManagerFactory emf) {
+    int count = 0;
+    for (Map.Entry<EntityManager, EntityManagerFactory> entry : openEntityManagers.entrySet()) {
+      if ((null == emf || emf == entry.getValue()) && entry.getKey().isOpen()) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * @return {@code true} if a suspended unit of work of the current thread holds an admission
+   *         permit which has not been released yet.
+   */
+  private boolean holdsPermit() {
+    final EntityManager holder = permitHolders.get();
+    if (null == holder) {
+      return false;
+    }
+    if (admittedPriorities.containsKey(holder)) {
+      return true;
+    }
+    permitHolders.remove();
+    return false;
+  }
+
+  private void releaseAdmission(EntityManager em) {
+    final UnitOfWorkPriority priority = admittedPriorities.remove(em);
+    if (null != priority) {
+      admissionController.release(priority);
+    }
   }
 
   /**
@@ -108,7 +340,39 @@ final class EntityManagerProviderImpl implements EntityManagerProvider, UnitOfWo
    */
   @Override
   public boolean isActive() {
-    return null != entityManagers.get();
+    final EntityManager em = entityManagers.get();
+    if (null == registry) {
+      return null != em;
+    }
+    return null != em && em.isOpen();
+  }
+
+  /**
+   * Detaches the {@link EntityManager} of the current unit of work from the current thread.
+   * Afterwards there is no active unit of work for this thread until {@link #resume(EntityManager)}
+   * is called.
+   *
+   * @return the detached entity manager or {@code null} if there is no active unit of work.
+   */
+  EntityManager suspend() {
+    final EntityManager em = entityManagers.get();
+    entityManagers.remove();
+    return em;
+  }
+
+  /**
+   * Attaches an {@link EntityManager} previously detached by {@link #suspend()} to the current
+   * thread.
+   *
+   * @param em the entity manager to attach. Must not be {@code null}.
+   * @throws IllegalStateException if there is an active unit of work for this thread.
+   */
+  void resume(EntityManager em) {
+    checkNotNull(em);
+    if (isActive()) {
+      throw new IllegalStateException("Unit of work has already been started.");
+    }
+    entityManagers.set(em);
   }
 
   /**
@@ -118,9 +382,78 @@ final class EntityManagerProviderImpl implements EntityManagerProvider, UnitOfWo
   public void end() {
     final EntityManager em = entityManagers.get();
     if (null != em) {
-      em.close();
+      if (null != statementCounter) {
+        statementCounter.endScope();
+      }
+      close(em);
       entityManagers.remove();
     }
   }
 
+  /**
+   * Detaches the unit of work of the current thread so that it can be ended by another thread
+   * using {@link #endDetached(EntityManager)}. Statements executed after this call are not
+   * counted in the scope of the unit of work.
+   *
+   * @return the detached entity manager or {@code null} if there is no active unit of work.
+   */
+  EntityManager detach() {
+    final EntityManager em = suspend();
+    if (null != em) {
+      if (em == permitHolders.get()) {
+        // the permit is handed over together with the unit of work
+        permitHolders.remove();
+      }
+      if (null != statementCounter) {
+        statementCounter.endScope();
+      }
+    }
+    return em;
+  }
+
+  /**
+   * Ends a unit of work which has been detached by {@link #detach()}. May be called by any
+   * thread which has not attached the entity manager.
+   *
+   * @param em the detached entity manager. Must not be {@code null}.
+   */
+  void endDetached(EntityManager em) {
+    checkNotNull(em);
+    close(em);
+  }
+
+  private void close(EntityManager em) {
+    if (em == permitHolders.get()) {
+      permitHolders.remove();
+    }
+    if (null != registry) {
+      registry.unregister(em);
+    }
+    try {
+      // may have been closed by the reaper of the registry or by closing a replaced factory
+      if (em.isOpen()) {
+        em.close();
+      }
+    }
+    finally {
+      // the factory may only be closed once the connection has been returned to its pool
+      release(em);
+    }
+  }
+
+  /**
+   * Drops the bookkeeping of a unit of work and releases its admission permit. Must only be
+   * called after the entity manager has been closed so that the next admitted unit of work does
+   * not wait for the connection still held by this one. Safe to call more than once for the same
+   * entity manager.
+   */
+  private void release(EntityManager em) {
+    openEntityManagers.remove(em);
+    final Object event = unitOfWorkEvents.remove(em);
+    if (null != event) {
+      FlightRecorderEvents.UNIT_OF_WORK.commit(event, unitName);
+    }
+    releaseAdmission(em);
+  }
+
 }
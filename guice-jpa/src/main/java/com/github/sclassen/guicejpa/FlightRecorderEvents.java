@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Type of an event recorded by the JDK Flight Recorder.
+ * <p/>
+ * The event types are defined at runtime using {@code jdk.jfr.EventFactory}. The JFR API is only
+ * accessed using reflection because guice-jpa also runs on JVMs without a flight recorder. On such
+ * JVMs and while no recording is running {@link #begin()} returns {@code null} and the caller
+ * skips the event. The cost of a disabled event is therefore a single check.
+ *
+ * @author Stephan Classen
+ */
+final class FlightRecorderEvents {
+
+  // ---- Members
+
+  private static final Logger LOGGER = Logger.getLogger(FlightRecorderEvents.class.getName());
+
+  /** Prefix of the names of all event types. */
+  private static final String PREFIX = "com.github.sclassen.guicejpa.";
+
+  /** The category of all event types. */
+  private static final String[] CATEGORY = { "guice-jpa" };
+
+  /** Event for a unit of work. Fields: unit. */
+  static final FlightRecorderEvents UNIT_OF_WORK = create("UnitOfWork", "Unit of Work",
+      "A unit of work of a persistence unit",
+      new Field(String.class, "unit", "Persistence Unit"));
+
+  /** Event for a transaction. Fields: unit, method, outer, outcome, exception. */
+  static final FlightRecorderEvents TRANSACTION = create("Transaction", "Transaction",
+      "An outer or nested transaction started by a transactional method",
+      new Field(String.class, "unit", "Persistence Unit"),
+      new Field(String.class, "method", "Method"),
+      new Field(boolean.class, "outer", "Outer Transaction"),
+      new Field(String.class, "outcome", "Outcome"),
+      new Field(String.class, "exception", "Exception"));
+
+  /** {@code jdk.jfr.EventFactory} of the event type. {@code null} if JFR is not available. */
+  private final Object factory;
+
+  /** {@code jdk.jfr.EventType} of the event type. {@code null} if JFR is not available. */
+  private final Object eventType;
+
+  private final Method newEvent;
+  private final Method isEnabled;
+  private final Method begin;
+  private final Method set;
+  private final Method commit;
+
+
+  // ---- Constructor
+
+  private FlightRecorderEvents(Object factory, Class<?> eventClass)
+    throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+    this.factory = factory;
+    this.newEvent = factory.getClass().getMethod("newEvent");
+    final Method getEventType = factory.getClass().getMethod("getEventType");
+    this.eventType = getEventType.invoke(factory);
+    this.isEnabled = eventType.getClass().getMethod("isEnabled");
+    this.begin = eventClass.getMethod("begin");
+    this.set = eventClass.getMethod("set", int.class, Object.class);
+    this.commit = eventClass.getMethod("commit");
+  }
+
+  private FlightRecorderEvents() {
+    this.factory = null;
+    this.eventType = null;
+    this.newEvent = null;
+    this.isEnabled = null;
+    this.begin = null;
+    this.set = null;
+    this.commit = null;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * Defines an event type.
+   *
+   * @param name the name of the event type without the package prefix.
+   * @param label the label of the event type.
+   * @param description the description of the event type.
+   * @param fields the fields of the event type.
+   * @return the event type. Never {@code null}. If JFR is not available an event type which is
+   *         never enabled.
+   */
+  private static FlightRecorderEvents create(String name, String label, String description,
+      Field... fields) {
+    try {
+      final Class<?> nameAnnotation = Class.forName("jdk.jfr.Name");
+      final Class<?> labelAnnotation = Class.forName("jdk.jfr.Label");
+      final Class<?> descriptionAnnotation = Class.forName("jdk.jfr.Description");
+      final Class<?> categoryAnnotation = Class.forName("jdk.jfr.Category");
+      final Class<?> annotationElement = Class.forName("jdk.jfr.AnnotationElement");
+      final Class<?> valueDescriptor = Class.forName("jdk.jfr.ValueDescriptor");
+      final Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+      final Class<?> eventClass = Class.forName("jdk.jfr.Event");
+      final Constructor<?> newAnnotation =
+          annotationElement.getConstructor(Class.class, Object.class);
+      final Constructor<?> newValueDescriptor =
+          valueDescriptor.getConstructor(Class.class, String.class, List.class);
+
+      final List<Object> annotations = new ArrayList<Object>();
+      annotations.add(newAnnotation.newInstance(nameAnnotation, PREFIX + name));
+      annotations.add(newAnnotation.newInstance(labelAnnotation, label));
+      annotations.add(newAnnotation.newInstance(descriptionAnnotation, description));
+      annotations.add(newAnnotation.newInstance(categoryAnnotation, CATEGORY));
+
+      final List<Object> descriptors = new ArrayList<Object>();
+      for (Field field : fields) {
+        descriptors.add(newValueDescriptor.newInstance(field.type, field.name,
+            Arrays.asList(newAnnotation.newInstance(labelAnnotation, field.label))));
+      }
+
+      final Object factory = eventFactory.getMethod("create", List.class, List.class)
+          .invoke(null, annotations, descriptors);
+      return new FlightRecorderEvents(factory, eventClass);
+    }
+    catch (ClassNotFoundException e) {
+      // no flight recorder available
+      return new FlightRecorderEvents();
+    }
+    catch (Exception e) {
+      LOGGER.log(Level.FINE, "failed to define the flight recorder event " + name, e);
+      return new FlightRecorderEvents();
+    }
+  }
+
+  /**
+   * Begins an event if a recording for this event type is running.
+   *
+   * @return the event or {@code null} if the event type is disabled.
+   */
+  Object begin() {
+    if (null == factory) {
+      return null;
+    }
+    try {
+      if (!(Boolean) isEnabled.invoke(eventType)) {
+        return null;
+      }
+      final Object event = newEvent.invoke(factory);
+      begin.invoke(event);
+      return event;
+    }
+    catch (IllegalAccessException e) {
+      return null;
+    }
+    catch (InvocationTargetException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Ends and commits an event.
+   *
+   * @param event the event returned by {@link #begin()}. May be {@code null}.
+   * @param values the values of the fields of the event in the order of their definition.
+   */
+  void commit(Object event, Object... values) {
+    if (null == event) {
+      return;
+    }
+    try {
+      for (int i = 0; i < values.length; i++) {
+        set.invoke(event, i, values[i]);
+      }
+      commit.invoke(event);
+    }
+    catch (IllegalAccessException e) {
+      LOGGER.log(Level.FINE, "failed to commit a flight recorder event", e);
+    }
+    catch (InvocationTargetException e) {
+      LOGGER.log(Level.FINE, "failed to commit a flight recorder event", e);
+    }
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * A field of an event type.
+   */
+  private static final class Field {
+    private final Class<?> type;
+    private final String name;
+    private final String label;
+
+    Field(Class<?> type, String name, String label) {
+      this.type = type;
+      this.name = name;
+      this.label = label;
+    }
+  }
+
+}
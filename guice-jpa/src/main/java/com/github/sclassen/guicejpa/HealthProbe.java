@@ -0,0 +1,197 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Probes the database of a persistence unit with a validation query on a background schedule
+ * and caches the result.
+ * <p/>
+ * The probe uses its own {@link EntityManager} without a transaction. It is not subject to the
+ * admission control of the persistence unit.
+ *
+ * @author Stephan Classen
+ */
+final class HealthProbe implements PersistenceUnitHealthCheck, PersistenceService {
+
+  // ---- Members
+
+  /** Hint for the timeout of the validation query. */
+  private static final String QUERY_TIMEOUT_HINT = "javax.persistence.query.timeout";
+
+  /** Name of the persistence unit. */
+  private final String unitName;
+
+  /** Provider for the factory of the entity manager used by the probe. */
+  private final EntityManagerFactoryProvider emfProvider;
+
+  /** The validation query. */
+  private final String validationQuery;
+
+  /** The interval between two probes in nanos. */
+  private final long intervalNanos;
+
+  /** The timeout of the validation query in millis. */
+  private final Integer queryTimeoutMillis;
+
+  /** The result of the last probe. */
+  private volatile HealthStatus status;
+
+  /** The time stamp as returned by {@link System#nanoTime()} of the last probe. */
+  private volatile long lastProbeNanos;
+
+  /** Executor running the probe. {@code null} if not started. */
+  private ScheduledExecutorService scheduler;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param unitName the name of the persistence unit.
+   * @param emfProvider provider for the factory of the entity manager used by the probe.
+   * @param validationQuery the native SQL query used to probe the database.
+   * @param intervalNanos the interval between two probes in nanos.
+   */
+  HealthProbe(String unitName, EntityManagerFactoryProvider emfProvider, String validationQuery,
+      long intervalNanos) {
+    checkNotNull(unitName);
+    checkNotNull(emfProvider);
+    checkNotNull(validationQuery);
+    checkArgument(intervalNanos > 0);
+    this.unitName = unitName;
+    this.emfProvider = emfProvider;
+    this.validationQuery = validationQuery;
+    this.intervalNanos = intervalNanos;
+    this.queryTimeoutMillis = (int) Math.min(Integer.MAX_VALUE,
+        TimeUnit.NANOSECONDS.toMillis(intervalNanos));
+    this.status = notRunning(null);
+  }
+
+
+  // ---- Methods
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public HealthStatus getStatus() {
+    final HealthStatus current = status;
+    if (current.isHealthy() && System.nanoTime() - lastProbeNanos > 3 * intervalNanos) {
+      return new HealthStatus(unitName, false, current.getCheckTimeMillis(),
+          current.getLatencyNanos(), "the probe did not complete since the last check.",
+          System.currentTimeMillis());
+    }
+    return current;
+  }
+
+  /**
+   * Probes the database and updates the cached status.
+   */
+  void probe() {
+    final HealthStatus previous = status;
+    final long now = System.currentTimeMillis();
+    final long start = System.nanoTime();
+    try {
+      final EntityManager em = emfProvider.get().createEntityManager();
+      try {
+        em.createNativeQuery(validationQuery)
+            .setHint(QUERY_TIMEOUT_HINT, queryTimeoutMillis)
+            .getResultList();
+      }
+      finally {
+        em.close();
+      }
+      status = new HealthStatus(unitName, true, now, System.nanoTime() - start,
+          previous.getLastFailure(), previous.getLastFailureTimeMillis());
+    }
+    catch (RuntimeException e) {
+      status = new HealthStatus(unitName, false, now, System.nanoTime() - start, e.toString(),
+          now);
+    }
+    lastProbeNanos = System.nanoTime();
+  }
+
+  private HealthStatus notRunning(HealthStatus previous) {
+    return new HealthStatus(unitName, false, 0, -1,
+        null == previous ? null : previous.getLastFailure(),
+        null == previous ? 0 : previous.getLastFailureTimeMillis());
+  }
+
+  /**
+   * Probes the database and starts the background schedule.
+   */
+  @Override
+  public synchronized void start() {
+    if (isRunning()) {
+      throw new IllegalStateException("HealthProbe is already running.");
+    }
+    probe();
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ProbeThreadFactory());
+    scheduler.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        probe();
+      }
+    }, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized boolean isRunning() {
+    return null != scheduler;
+  }
+
+  /**
+   * Stops the background schedule. Afterwards the persistence unit is reported as not healthy.
+   */
+  @Override
+  public synchronized void stop() {
+    if (null != scheduler) {
+      scheduler.shutdownNow();
+      scheduler = null;
+    }
+    status = notRunning(status);
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * Creates the daemon thread running the probe.
+   */
+  private final class ProbeThreadFactory implements ThreadFactory {
+    @Override
+    public Thread newThread(Runnable r) {
+      final Thread t = new Thread(r, "guice-jpa health probe (" + unitName + ")");
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
+}
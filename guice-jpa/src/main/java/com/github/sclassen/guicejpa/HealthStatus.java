@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The result of the health check of one or more persistence units. Instances are immutable.
+ *
+ * @author Stephan Classen
+ * @see PersistenceUnitHealthCheck
+ */
+public final class HealthStatus {
+
+  // ---- Members
+
+  private final String unitName;
+  private final boolean healthy;
+  private final long checkTimeMillis;
+  private final long latencyNanos;
+  private final String lastFailure;
+  private final long lastFailureTimeMillis;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param unitName the name of the persistence unit.
+   * @param healthy {@code true} if the last check succeeded.
+   * @param checkTimeMillis the time of the last check. Zero if never checked.
+   * @param latencyNanos the duration of the last check in nanos. Negative if never checked.
+   * @param lastFailure the description of the last failed check. {@code null} if none failed.
+   * @param lastFailureTimeMillis the time of the last failed check. Zero if none failed.
+   */
+  HealthStatus(String unitName, boolean healthy, long checkTimeMillis, long latencyNanos,
+      String lastFailure, long lastFailureTimeMillis) {
+    checkNotNull(unitName);
+    this.unitName = unitName;
+    this.healthy = healthy;
+    this.checkTimeMillis = checkTimeMillis;
+    this.latencyNanos = latencyNanos;
+    this.lastFailure = lastFailure;
+    this.lastFailureTimeMillis = lastFailureTimeMillis;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * @return the name of the persistence unit. For the status of all persistence units this is
+   *         {@code "all"}.
+   */
+  public String getUnitName() {
+    return unitName;
+  }
+
+  /**
+   * @return {@code true} if the last check succeeded.
+   */
+  public boolean isHealthy() {
+    return healthy;
+  }
+
+  /**
+   * @return the time of the last check in milliseconds since the epoch. Zero if never checked.
+   */
+  public long getCheckTimeMillis() {
+    return checkTimeMillis;
+  }
+
+  /**
+   * @return the duration of the last check in milliseconds. Negative if never checked.
+   */
+  public double getLatencyMillis() {
+    return latencyNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /**
+   * @return the description of the last failed check. {@code null} if no check has failed.
+   */
+  public String getLastFailure() {
+    return lastFailure;
+  }
+
+  /**
+   * @return the time of the last failed check in milliseconds since the epoch. Zero if no check
+   *         has failed.
+   */
+  public long getLastFailureTimeMillis() {
+    return lastFailureTimeMillis;
+  }
+
+  /**
+   * @return the duration of the last check in nanos.
+   */
+  long getLatencyNanos() {
+    return latencyNanos;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(unitName).append(healthy ? " is healthy" : " is not healthy");
+    if (0 != checkTimeMillis) {
+      sb.append(" (checked at ").append(new Date(checkTimeMillis)).append(" in ")
+          .append(TimeUnit.NANOSECONDS.toMillis(latencyNanos)).append(" ms)");
+    }
+    if (null != lastFailure) {
+      sb.append(". last failure at ").append(new Date(lastFailureTimeMillis)).append(": ")
+          .append(lastFailure);
+    }
+    return sb.toString();
+  }
+
+}
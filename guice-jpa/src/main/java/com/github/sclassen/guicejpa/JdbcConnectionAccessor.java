@@ -0,0 +1,58 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.sql.Connection;
+
+import javax.persistence.EntityManager;
+
+/**
+ * Gives access to the JDBC {@link Connection} used by an {@link EntityManager} for the current
+ * transaction.
+ * <p/>
+ * JPA has no portable way to obtain the connection. The {@link #UNWRAP} accessor uses
+ * {@link EntityManager#unwrap(Class)} which is supported by EclipseLink and OpenJPA. For other
+ * providers an implementation of this interface must be passed to
+ * {@link PersistenceUnitBuilder#useSavepointsForNestedTransactions(JdbcConnectionAccessor)}.
+ * With Hibernate this would be:
+ * <pre>
+ * em.unwrap(SessionImplementor.class).connection();
+ * </pre>
+ *
+ * @author Stephan Classen
+ */
+public interface JdbcConnectionAccessor {
+
+  /**
+   * Accessor calling {@code em.unwrap(Connection.class)}.
+   */
+  JdbcConnectionAccessor UNWRAP = new JdbcConnectionAccessor() {
+    @Override
+    public Connection getConnection(EntityManager em) {
+      return em.unwrap(Connection.class);
+    }
+  };
+
+  /**
+   * Returns the JDBC connection of the current transaction of the given entity manager.
+   * The connection must not be closed by the caller.
+   *
+   * @param em the entity manager. Has an active transaction.
+   * @return the JDBC connection. Never {@code null}.
+   */
+  Connection getConnection(EntityManager em);
+
+}
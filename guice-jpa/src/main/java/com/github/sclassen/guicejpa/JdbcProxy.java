@@ -0,0 +1,357 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import javax.sql.DataSource;
+
+/**
+ * Wraps the {@link DataSource} of a persistence unit with a dynamic proxy to observe the JDBC
+ * traffic of the JPA provider.
+ * <p/>
+ * If {@link #skipCommitsWithoutStatements()} has been enabled the connections defer switching
+ * off auto commit until the first statement is created or executed. A transaction which never
+ * uses a statement therefore causes no round trip to the database at all. Committing or rolling
+ * back a transaction in which no statement has been used is also skipped. Statements are wrapped
+ * to detect executions of statements created in an earlier transaction. Unwrapping the native
+ * connection switches off auto commit immediately since its use cannot be observed.
+ * <p/>
+ * If a {@link StatementCounter} has been set every execution is reported to the counter.
+ *
+ * @author Stephan Classen
+ */
+final class JdbcProxy {
+
+  // ---- Members
+
+  /** The properties which can hold the data source of an application managed persistence unit. */
+  static final List<String> DATA_SOURCE_PROPERTIES = Arrays.asList(
+      "javax.persistence.nonJtaDataSource", "hibernate.connection.datasource");
+
+  /** {@code true} if commits of transactions without statements should be skipped. */
+  private volatile boolean skipCommitsWithoutStatements = false;
+
+  /** Counter for the executed statements. {@code null} if statements are not counted. */
+  private volatile StatementCounter statementCounter;
+
+
+  // ---- Methods
+
+  /**
+   * Enables skipping the commit round trip of transactions which created no statements.
+   */
+  void skipCommitsWithoutStatements() {
+    this.skipCommitsWithoutStatements = true;
+  }
+
+  /**
+   * Enables counting of the executed statements.
+   *
+   * @param counter the counter to which the executions are reported. Must not be {@code null}.
+   */
+  void countStatements(StatementCounter counter) {
+    checkNotNull(counter);
+    this.statementCounter = counter;
+  }
+
+  /**
+   * Returns a copy of the given properties in which the data source has been wrapped.
+   *
+   * @param properties the properties of the persistence unit. Must not be {@code null}.
+   * @return the properties holding the wrapped data source.
+   * @throws IllegalStateException if the properties contain no {@link DataSource} instance.
+   */
+  Properties wrapDataSource(Properties properties) {
+    checkNotNull(properties);
+    final Properties result = new Properties();
+    result.putAll(properties);
+
+    boolean wrapped = false;
+    for (String key : DATA_SOURCE_PROPERTIES) {
+      final Object value = properties.get(key);
+      if (value instanceof DataSource) {
+        result.put(key, wrap((DataSource) value));
+        wrapped = true;
+      }
+    }
+    if (!wrapped) {
+      throw new IllegalStateException("observing the JDBC connections requires a DataSource "
+          + "instance in one of the properties " + DATA_SOURCE_PROPERTIES);
+    }
+    return result;
+  }
+
+  /**
+   * Wraps the given data source.
+   *
+   * @param dataSource the data source to wrap. Must not be {@code null}.
+   * @return the wrapped data source.
+   */
+  DataSource wrap(DataSource dataSource) {
+    checkNotNull(dataSource);
+    return newProxy(DataSource.class, new DataSourceHandler(dataSource));
+  }
+
+  /**
+   * Creates a new dynamic proxy.
+   */
+  private static <T> T newProxy(Class<T> type, InvocationHandler handler) {
+    final Object proxy = Proxy.newProxyInstance(JdbcProxy.class.getClassLoader(),
+        new Class<?>[] {type}, handler);
+    return type.cast(proxy);
+  }
+
+  /**
+   * Invokes a method on the delegate and unwraps the exception of the delegate.
+   */
+  private static Object delegate(Object delegate, Method method, Object[] args) throws Throwable {
+    try {
+      return method.invoke(delegate, args);
+    }
+    catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Handles the unwrap method of the JDBC wrapper interface. Returns the proxy if it implements
+   * the requested interface. Otherwise the call is passed to the delegate.
+   */
+  private static Object unwrap(Object proxy, Object delegate, Method method, Object[] args)
+    throws Throwable {
+    final Class<?> iface = (Class<?>) args[0];
+    if (iface.isInstance(proxy)) {
+      return proxy;
+    }
+    return delegate(delegate, method, args);
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * Handler for the {@link DataSource} proxy. Wraps the connections.
+   */
+  private final class DataSourceHandler implements InvocationHandler {
+
+    private final DataSource dataSource;
+
+    DataSourceHandler(DataSource dataSource) {
+      this.dataSource = dataSource;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      final String name = method.getName();
+      if ("getConnection".equals(name)) {
+        final Connection connection = (Connection) delegate(dataSource, method, args);
+        return newProxy(Connection.class, new ConnectionHandler(connection));
+      }
+      if ("unwrap".equals(name)) {
+        return unwrap(proxy, dataSource, method, args);
+      }
+      return delegate(dataSource, method, args);
+    }
+  }
+
+  /**
+   * Handler for the {@link Connection} proxy.
+   * Tracks whether statements have been created in the current transaction.
+   */
+  private final class ConnectionHandler implements InvocationHandler {
+
+    private final Connection connection;
+
+    /** {@code true} if switching off auto commit has been deferred. */
+    private boolean autoCommitOffPending = false;
+
+    /** {@code true} if a statement has been created since the end of the last transaction. */
+    private boolean statementsInTransaction = false;
+
+    ConnectionHandler(Connection connection) {
+      this.connection = connection;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      final String name = method.getName();
+      if ("createStatement".equals(name) || "prepareStatement".equals(name)
+          || "prepareCall".equals(name) || "setSavepoint".equals(name)) {
+        beforeStatement();
+        final Object result = delegate(connection, method, args);
+        if ((skipCommitsWithoutStatements || null != statementCounter)
+            && result instanceof Statement) {
+          final String sql = "createStatement".equals(name) ? null : (String) args[0];
+          return wrapStatement((Statement) result, sql, (Connection) proxy);
+        }
+        return result;
+      }
+      if (skipCommitsWithoutStatements) {
+        if ("setAutoCommit".equals(name)) {
+          setAutoCommit((Boolean) args[0]);
+          return null;
+        }
+        if ("getAutoCommit".equals(name)) {
+          return autoCommitOffPending ? Boolean.FALSE : connection.getAutoCommit();
+        }
+        if (("commit".equals(name) || "rollback".equals(name)) && null == args) {
+          endTransaction(method);
+          return null;
+        }
+        if ("close".equals(name)) {
+          autoCommitOffPending = false;
+        }
+      }
+      if ("unwrap".equals(name)) {
+        final Object result = unwrap(proxy, connection, method, args);
+        if (result != proxy && result instanceof Connection) {
+          // statements on the native connection are not observed
+          beforeStatement();
+        }
+        return result;
+      }
+      return delegate(connection, method, args);
+    }
+
+    private Statement wrapStatement(Statement statement, String sql, Connection proxy) {
+      final StatementHandler handler = new StatementHandler(statement, sql, proxy, this);
+      if (statement instanceof CallableStatement) {
+        return newProxy(CallableStatement.class, handler);
+      }
+      if (statement instanceof PreparedStatement) {
+        return newProxy(PreparedStatement.class, handler);
+      }
+      return newProxy(Statement.class, handler);
+    }
+
+    /**
+     * Switches off auto commit if it has been deferred and marks the transaction as containing
+     * statements. Called whenever a statement is created or executed.
+     */
+    void beforeStatement() throws Throwable {
+      if (autoCommitOffPending) {
+        connection.setAutoCommit(false);
+        autoCommitOffPending = false;
+      }
+      statementsInTransaction = true;
+    }
+
+    private void setAutoCommit(boolean autoCommit) throws Throwable {
+      if (autoCommit) {
+        if (autoCommitOffPending) {
+          autoCommitOffPending = false;
+          statementsInTransaction = false;
+          return;
+        }
+        connection.setAutoCommit(true);
+        statementsInTransaction = false;
+      }
+      else if (!autoCommitOffPending && connection.getAutoCommit()) {
+        autoCommitOffPending = true;
+        statementsInTransaction = false;
+      }
+    }
+
+    private void endTransaction(Method method) throws Throwable {
+      if (autoCommitOffPending || !statementsInTransaction) {
+        return;
+      }
+      delegate(connection, method, null);
+      statementsInTransaction = false;
+    }
+  }
+
+  /**
+   * Handler for the {@link Statement} proxies. Reports every execution to the
+   * {@link StatementCounter} and to the connection which created the statement.
+   */
+  private final class StatementHandler implements InvocationHandler {
+
+    private final Statement statement;
+
+    /** The SQL of a prepared statement. {@code null} for plain statements. */
+    private final String preparedSql;
+
+    /** The proxy of the connection which created the statement. */
+    private final Connection connection;
+
+    /** The handler of the connection which created the statement. */
+    private final ConnectionHandler connectionHandler;
+
+    StatementHandler(Statement statement, String preparedSql, Connection connection,
+        ConnectionHandler connectionHandler) {
+      this.statement = statement;
+      this.preparedSql = preparedSql;
+      this.connection = connection;
+      this.connectionHandler = connectionHandler;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      final String name = method.getName();
+      if (name.startsWith("execute") || "addBatch".equals(name)) {
+        // the statement may have been created in an earlier transaction
+        connectionHandler.beforeStatement();
+      }
+      if (name.startsWith("execute")) {
+        final StatementCounter counter = statementCounter;
+        if (null != counter) {
+          if (null != args && args.length > 0 && args[0] instanceof String) {
+            counter.statementExecuted((String) args[0], false);
+          }
+          else {
+            counter.statementExecuted(preparedSql, true);
+          }
+        }
+      }
+      else if ("getConnection".equals(name)) {
+        return connection;
+      }
+      else if ("unwrap".equals(name)) {
+        final Object result = unwrap(proxy, statement, method, args);
+        if (result != proxy && result instanceof Statement) {
+          // executions of the native statement are not observed
+          connectionHandler.beforeStatement();
+        }
+        return result;
+      }
+      return delegate(statement, method, args);
+    }
+  }
+
+}
@@ -37,6 +37,12 @@ class JtaTxnInterceptor extends AbstractTxnInterceptor {
   /** The {@link UserTransactionFacade}. */
   private final UserTransactionFacade utFacade;
 
+  /**
+   * The entity manager of the current thread which is joined to the active JTA transaction.
+   * Nested transactions do not need to join it again.
+   */
+  private final ThreadLocal<EntityManager> joinedEntityManager = new ThreadLocal<EntityManager>();
+
 
   // ---- Constructor
 
@@ -47,11 +53,16 @@ class JtaTxnInterceptor extends AbstractTxnInterceptor {
    * @param puAnntoation the annotation used for this persistence unit.
    * @param utFacade the {@link UserTransactionFacade}. Must not be {@code null}.
    * @param peTranslator the {@link PersistenceExceptionTranslator}. Can be {@code null}.
+   * @param traceListener the listener notified after every outer transaction. Can be {@code null}.
+   * @param synchronization the synchronization notified about every outer transaction.
+   * @param statementCounter the counter for the executed JDBC statements. Can be {@code null}.
    */
   public JtaTxnInterceptor(EntityManagerProviderImpl emProvider,
       Class<? extends Annotation> puAnntoation, UserTransactionFacade utFacade,
-      PersistenceExceptionTranslator<?> peTranslator) {
-    super(emProvider, emProvider, puAnntoation, peTranslator);
+      PersistenceExceptionTranslator<?> peTranslator, TransactionTraceListener traceListener,
+      TransactionSynchronizationImpl synchronization, StatementCounter statementCounter) {
+    super(emProvider, puAnntoation, peTranslator, traceListener, synchronization,
+        statementCounter);
     checkNotNull(utFacade);
     this.utFacade = utFacade;
   }
@@ -65,9 +76,28 @@ class JtaTxnInterceptor extends AbstractTxnInterceptor {
   @Override
   protected TransactionFacade getTransactionFacade(EntityManager em) {
     if (Status.STATUS_NO_TRANSACTION == utFacade.getStatus()) {
-      return new OuterTransaction(utFacade, em);
+      return new OuterTransaction(utFacade, em, joinedEntityManager);
     }
-    return new InnerTransaction(utFacade, em);
+    return new InnerTransaction(utFacade, em, joinedEntityManager);
+  }
+
+
+  /**
+   * A JTA transaction is bound to the thread by the transaction manager. It cannot be suspended
+   * using the {@link javax.transaction.UserTransaction}.
+   */
+  @Override
+  protected boolean canSuspendTransaction() {
+    return false;
+  }
+
+  /**
+   * A JTA transaction is bound to the thread which began it. It cannot be completed by another
+   * thread using the {@link javax.transaction.UserTransaction}.
+   */
+  @Override
+  protected boolean canDeferCompletion() {
+    return false;
   }
 
 
@@ -81,18 +111,26 @@ class JtaTxnInterceptor extends AbstractTxnInterceptor {
   private static class InnerTransaction implements TransactionFacade {
     private final UserTransactionFacade txn;
     private final EntityManager em;
+    private final ThreadLocal<EntityManager> joinedEntityManager;
+    private boolean joined;
 
-    InnerTransaction(UserTransactionFacade txn, EntityManager em) {
+    InnerTransaction(UserTransactionFacade txn, EntityManager em,
+        ThreadLocal<EntityManager> joinedEntityManager) {
       this.txn = txn;
       this.em = em;
+      this.joinedEntityManager = joinedEntityManager;
     }
 
     /**
-     * {@inheritDoc}
+     * Joins the entity manager to the transaction unless an enclosing transaction already did.
      */
     @Override
     public void begin() {
-      em.joinTransaction();
+      if (em != joinedEntityManager.get()) {
+        em.joinTransaction();
+        joinedEntityManager.set(em);
+        joined = true;
+      }
     }
 
     /**
@@ -100,7 +138,7 @@ class JtaTxnInterceptor extends AbstractTxnInterceptor {
      */
     @Override
     public void commit() {
-      // Do nothing
+      forgetJoin();
     }
 
     /**
@@ -108,7 +146,35 @@ class JtaTxnInterceptor extends AbstractTxnInterceptor {
      */
     @Override
     public void rollback() {
-      txn.setRollbackOnly();
+      try {
+        txn.setRollbackOnly();
+      }
+      finally {
+        forgetJoin();
+      }
+    }
+
+    private void forgetJoin() {
+      if (joined) {
+        joinedEntityManager.remove();
+        joined = false;
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOuter() {
+      return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRollbackOnly() {
+      return Status.STATUS_MARKED_ROLLBACK == txn.getStatus();
     }
   }
 
@@ -120,10 +186,13 @@ class JtaTxnInterceptor extends AbstractTxnInterceptor {
   private static class OuterTransaction implements TransactionFacade {
     private final UserTransactionFacade txn;
     private final EntityManager em;
+    private final ThreadLocal<EntityManager> joinedEntityManager;
 
-    OuterTransaction(UserTransactionFacade txn, EntityManager em) {
+    OuterTransaction(UserTransactionFacade txn, EntityManager em,
+        ThreadLocal<EntityManager> joinedEntityManager) {
       this.txn = txn;
       this.em = em;
+      this.joinedEntityManager = joinedEntityManager;
     }
 
     /**
@@ -133,6 +202,7 @@ class JtaTxnInterceptor extends AbstractTxnInterceptor {
     public void begin() {
       txn.begin();
       em.joinTransaction();
+      joinedEntityManager.set(em);
     }
 
     /**
@@ -140,6 +210,7 @@ class JtaTxnInterceptor extends AbstractTxnInterceptor {
      */
     @Override
     public void commit() {
+      joinedEntityManager.remove();
       if (Status.STATUS_ACTIVE == txn.getStatus()) {
         txn.commit();
       }
@@ -153,8 +224,25 @@ class JtaTxnInterceptor extends AbstractTxnInterceptor {
      */
     @Override
     public void rollback() {
+      joinedEntityManager.remove();
       txn.rollback();
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOuter() {
+      return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRollbackOnly() {
+      return Status.STATUS_MARKED_ROLLBACK == txn.getStatus();
+    }
   }
 
 }
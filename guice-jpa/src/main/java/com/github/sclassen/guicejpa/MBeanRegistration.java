@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Registers the management beans of a persistence unit with the platform MBean server.
+ * Failures are logged but do not prevent the persistence unit from starting.
+ *
+ * @author Stephan Classen
+ */
+final class MBeanRegistration {
+
+  // ---- Members
+
+  private static final Logger LOGGER = Logger.getLogger(MBeanRegistration.class.getName());
+
+  /** The domain of all management beans of guice-jpa. */
+  private static final String DOMAIN = "com.github.sclassen.guicejpa";
+
+
+  // ---- Constructor
+
+  private MBeanRegistration() {
+    // no instances
+  }
+
+
+  // ---- Methods
+
+  /**
+   * Registers a management bean under the name
+   * {@code com.github.sclassen.guicejpa:type=<type>,unit=<unitName>}.
+   *
+   * @param mbean the management bean.
+   * @param mbeanInterface the management interface implemented by the bean.
+   * @param type the type of the bean.
+   * @param unitName the name of the persistence unit.
+   * @return the name under which the bean has been registered or {@code null} if the
+   *         registration failed.
+   */
+  static <T> ObjectName register(T mbean, Class<T> mbeanInterface, String type, String unitName) {
+    try {
+      final ObjectName name = new ObjectName(DOMAIN + ":type=" + type + ",unit="
+          + ObjectName.quote(unitName));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          new StandardMBean(mbean, mbeanInterface), name);
+      return name;
+    }
+    catch (JMException e) {
+      LOGGER.log(Level.WARNING, "failed to register the " + type + " of persistence unit "
+          + unitName + " with JMX", e);
+      return null;
+    }
+  }
+
+  /**
+   * Unregisters a management bean.
+   *
+   * @param name the name returned by {@link #register(Object, Class, String, String)}.
+   *        May be {@code null}.
+   */
+  static void unregister(ObjectName name) {
+    if (null == name) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    }
+    catch (JMException e) {
+      LOGGER.log(Level.WARNING, "failed to unregister " + name + " from JMX", e);
+    }
+  }
+
+}
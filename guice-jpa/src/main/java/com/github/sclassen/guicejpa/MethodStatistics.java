@@ -0,0 +1,313 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Statistics of the outer transactions started by a single transactional method.
+ * <p/>
+ * The counters are striped. Every thread increments the counters of its own stripe. The stripes
+ * are far enough apart to not share a cache line. Therefore recording a transaction does not
+ * contend with other threads. Reading the statistics sums up all stripes.
+ * <p/>
+ * The durations are recorded in a histogram with buckets growing by a factor of two. Percentiles
+ * are reported as the upper bound of the bucket containing the percentile.
+ *
+ * @author Stephan Classen
+ */
+final class MethodStatistics {
+
+  // ---- Members
+
+  /** The number of stripes. A power of two. */
+  private static final int STRIPES =
+      Integer.highestOneBit(Math.min(16, Runtime.getRuntime().availableProcessors()) * 2 - 1);
+
+  /** Durations below 2^MIN_BIT nanos (about 1 microsecond) are recorded in the first bucket. */
+  private static final int MIN_BIT = 10;
+
+  /** The number of buckets of the histogram. The last bucket starts at about 18 minutes. */
+  private static final int BUCKETS = 31;
+
+  private static final int CALLS = 0;
+  private static final int ROLLBACKS = 1;
+  private static final int TOTAL_NANOS = 2;
+  private static final int FIRST_BUCKET = 3;
+
+  /** The distance between two stripes. Includes 8 longs of padding against false sharing. */
+  private static final int STRIDE = FIRST_BUCKET + BUCKETS + 8;
+
+  /** The maximal number of distinct exception types which are counted. */
+  private static final int MAX_EXCEPTION_TYPES = 20;
+
+  /** The name of the method. */
+  private final String name;
+
+  /** The striped counters. */
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIDE);
+
+  /** The longest duration in nanos. */
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  /** The number of transactions which failed with an exception by type of the exception. */
+  private final ConcurrentMap<String, AtomicLong> exceptions = new MapMaker().makeMap();
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param name the name of the method.
+   */
+  MethodStatistics(String name) {
+    this.name = name;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * Records a transaction.
+   *
+   * @param nanos the duration of the transaction.
+   * @param rolledBack {@code true} if the transaction has been rolled back.
+   * @param failure the exception thrown by the method. May be {@code null}.
+   */
+  void record(long nanos, boolean rolledBack, Throwable failure) {
+    final int base = ((int) Thread.currentThread().getId() & (STRIPES - 1)) * STRIDE;
+    cells.incrementAndGet(base + CALLS);
+    if (rolledBack) {
+      cells.incrementAndGet(base + ROLLBACKS);
+    }
+    cells.addAndGet(base + TOTAL_NANOS, nanos);
+    cells.incrementAndGet(base + FIRST_BUCKET + bucket(nanos));
+
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+    if (null != failure) {
+      countException(failure.getClass().getName());
+    }
+  }
+
+  private void countException(String type) {
+    AtomicLong count = exceptions.get(type);
+    if (null == count) {
+      if (exceptions.size() >= MAX_EXCEPTION_TYPES) {
+        return;
+      }
+      final AtomicLong newCount = new AtomicLong();
+      count = exceptions.putIfAbsent(type, newCount);
+      if (null == count) {
+        count = newCount;
+      }
+    }
+    count.incrementAndGet();
+  }
+
+  private static int bucket(long nanos) {
+    final int bits = 64 - Long.numberOfLeadingZeros(nanos);
+    return Math.max(0, Math.min(BUCKETS - 1, bits - MIN_BIT));
+  }
+
+  private long sum(int field) {
+    long sum = 0;
+    for (int stripe = 0; stripe < STRIPES; stripe++) {
+      sum += cells.get(stripe * STRIDE + field);
+    }
+    return sum;
+  }
+
+  /**
+   * @return the name of the method.
+   */
+  String getName() {
+    return name;
+  }
+
+  /**
+   * @return the number of transactions.
+   */
+  long getCalls() {
+    return sum(CALLS);
+  }
+
+  /**
+   * @return the number of transactions which have been rolled back.
+   */
+  long getRollbacks() {
+    return sum(ROLLBACKS);
+  }
+
+  /**
+   * @return the mean duration of the transactions in nanos.
+   */
+  long getMeanNanos() {
+    final long calls = getCalls();
+    return 0 == calls ? 0 : sum(TOTAL_NANOS) / calls;
+  }
+
+  /**
+   * @param percentile the percentile between 0 and 1.
+   * @return the upper bound of the bucket containing the given percentile of the durations in
+   *         nanos.
+   */
+  long getPercentileNanos(double percentile) {
+    return percentile(readBuckets(), maxNanos.get(), percentile);
+  }
+
+  private long[] readBuckets() {
+    final long[] buckets = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      buckets[i] = sum(FIRST_BUCKET + i);
+    }
+    return buckets;
+  }
+
+  private static long percentile(long[] buckets, long max, double percentile) {
+    long count = 0;
+    for (long bucket : buckets) {
+      count += bucket;
+    }
+    final long rank = (long) Math.ceil(percentile * count);
+    long cumulated = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      cumulated += buckets[i];
+      if (cumulated >= rank) {
+        return Math.min(1L << (i + MIN_BIT), max);
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Resets all counters.
+   */
+  void reset() {
+    for (int i = 0; i < cells.length(); i++) {
+      cells.set(i, 0);
+    }
+    maxNanos.set(0);
+    exceptions.clear();
+  }
+
+  /**
+   * Reads every counter once and returns the result as an immutable snapshot. Unlike the
+   * getters of this class the values of a snapshot do not change while transactions are
+   * recorded concurrently.
+   *
+   * @return the snapshot. Never {@code null}.
+   */
+  Snapshot snapshot() {
+    final long calls = getCalls();
+    final long rollbacks = getRollbacks();
+    final long totalNanos = sum(TOTAL_NANOS);
+    final long[] buckets = readBuckets();
+    final long max = maxNanos.get();
+    final long p99 = percentile(buckets, max, 0.99);
+
+    final StringBuilder sb = new StringBuilder(name);
+    sb.append(": ").append(calls).append(" calls, ").append(rollbacks)
+        .append(" rollbacks, mean ").append(millis(0 == calls ? 0 : totalNanos / calls))
+        .append(" ms, p50 ").append(millis(percentile(buckets, max, 0.5)))
+        .append(" ms, p95 ").append(millis(percentile(buckets, max, 0.95)))
+        .append(" ms, p99 ").append(millis(p99))
+        .append(" ms, max ").append(millis(max)).append(" ms");
+    if (!exceptions.isEmpty()) {
+      sb.append(", exceptions {");
+      String separator = "";
+      for (Map.Entry<String, AtomicLong> entry : exceptions.entrySet()) {
+        sb.append(separator).append(entry.getKey()).append('=').append(entry.getValue());
+        separator = ", ";
+      }
+      sb.append('}');
+    }
+    return new Snapshot(calls, rollbacks, p99, sb.toString());
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String toString() {
+    return snapshot().toString();
+  }
+
+  private static double millis(long nanos) {
+    return Math.round(nanos / (double) TimeUnit.MICROSECONDS.toNanos(10)) / 100.0;
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * Immutable snapshot of the statistics of a method. Used to sort and print the statistics
+   * consistently.
+   */
+  static final class Snapshot {
+
+    private final long calls;
+    private final long rollbacks;
+    private final long p99Nanos;
+    private final String text;
+
+    Snapshot(long calls, long rollbacks, long p99Nanos, String text) {
+      this.calls = calls;
+      this.rollbacks = rollbacks;
+      this.p99Nanos = p99Nanos;
+      this.text = text;
+    }
+
+    /**
+     * @return the number of transactions.
+     */
+    long getCalls() {
+      return calls;
+    }
+
+    /**
+     * @return the number of transactions which have been rolled back.
+     */
+    long getRollbacks() {
+      return rollbacks;
+    }
+
+    /**
+     * @return the 99th percentile of the durations in nanos.
+     */
+    long getP99Nanos() {
+      return p99Nanos;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+      return text;
+    }
+  }
+
+}
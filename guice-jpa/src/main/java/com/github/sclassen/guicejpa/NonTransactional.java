@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Excludes a method of a class annotated with @{@link Transactional} from being intercepted.
+ * <p/>
+ * When a class is annotated with @{@link Transactional} all its methods are executed within a
+ * transaction. Methods which do not access the database (i.e. simple getters) can be annotated
+ * with @{@link NonTransactional}. They are not intercepted and do not start a unit of work or a
+ * transaction. Methods overriding methods of {@link Object} (i.e. {@code toString()}) as well as
+ * synthetic methods are never intercepted on class level.
+ *
+ * @author Stephan Classen
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface NonTransactional {
+
+}
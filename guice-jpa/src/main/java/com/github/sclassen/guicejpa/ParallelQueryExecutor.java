@@ -0,0 +1,116 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs independent read only queries in parallel.
+ * <p/>
+ * Every query runs on a thread of a shared pool within its own short unit of work of the given
+ * persistence unit. The query obtains its {@link javax.persistence.EntityManager} from the
+ * {@link EntityManagerProvider} of the persistence unit as usual. The queries of a batch may use
+ * different persistence units. All queries of a batch share one deadline. If the deadline
+ * expires or a query fails the queries which are still running are cancelled.
+ * <pre>
+ *   final Batch batch = executor.newBatch(2, TimeUnit.SECONDS);
+ *   final Future&lt;Long&gt; orders = batch.submit(unitOfWork, new Callable&lt;Long&gt;() {
+ *     public Long call() {
+ *       return emProvider.get().createQuery(...).getSingleResult();
+ *     }
+ *   });
+ *   final Future&lt;Long&gt; customers = batch.submit(unitOfWork, ...);
+ *   batch.await();
+ *   return new Dashboard(orders.get(), customers.get());
+ * </pre>
+ * The queries do not share the {@link javax.persistence.EntityManager} or the transaction of the
+ * calling thread. The {@link UnitOfWorkPriority} of the calling thread is propagated. The size of
+ * the pool is defined by {@link PersistenceModule#setParallelQueryThreads(int)} and should not
+ * exceed the number of connections available to the persistence units.
+ * <p/>
+ * An instance of this interface is bound by the {@link PersistenceModule}. It is thread save.
+ *
+ * @author Stephan Classen
+ */
+public interface ParallelQueryExecutor {
+
+  /**
+   * Starts a new batch of queries.
+   *
+   * @param timeout the time after which the queries of the batch are cancelled. Starts now.
+   * @param unit the unit of the timeout. Must not be {@code null}.
+   * @return the new batch. Never {@code null}.
+   */
+  Batch newBatch(long timeout, TimeUnit unit);
+
+  /**
+   * Runs the given queries in parallel and returns their results.
+   *
+   * @param <T> the type of the results.
+   * @param unitOfWork the unit of work of the persistence unit queried. Must not be {@code null}.
+   * @param queries the queries to run. Must not be {@code null}.
+   * @param timeout the time after which the queries are cancelled.
+   * @param unit the unit of the timeout. Must not be {@code null}.
+   * @return the results in the order of the queries. Never {@code null}.
+   * @throws InterruptedException if the current thread is interrupted while waiting.
+   * @throws ExecutionException if a query fails.
+   * @throws TimeoutException if the queries did not complete in time.
+   */
+  <T> List<T> invokeAll(UnitOfWork unitOfWork, List<? extends Callable<T>> queries, long timeout,
+      TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException;
+
+
+  // ---- Inner Classes
+
+  /**
+   * A batch of queries sharing one deadline.
+   */
+  public interface Batch {
+
+    /**
+     * Submits a query. It starts immediately if a thread of the pool is available.
+     *
+     * @param <T> the type of the result.
+     * @param unitOfWork the unit of work of the persistence unit queried. Must not be
+     *        {@code null}.
+     * @param query the query. Must not be {@code null}.
+     * @return the future result of the query. Never {@code null}.
+     * @throws IllegalStateException if {@link #await()} or {@link #cancel()} has been called.
+     */
+    <T> Future<T> submit(UnitOfWork unitOfWork, Callable<T> query) throws IllegalStateException;
+
+    /**
+     * Waits until all submitted queries completed or the deadline expired. If the deadline
+     * expires or a query fails the remaining queries are cancelled.
+     *
+     * @throws InterruptedException if the current thread is interrupted while waiting.
+     * @throws ExecutionException if a query fails.
+     * @throws TimeoutException if the queries did not complete before the deadline.
+     */
+    void await() throws InterruptedException, ExecutionException, TimeoutException;
+
+    /**
+     * Cancels all queries which have not yet completed.
+     */
+    void cancel();
+  }
+
+}
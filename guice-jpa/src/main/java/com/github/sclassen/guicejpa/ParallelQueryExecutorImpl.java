@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Implementation of {@link ParallelQueryExecutor}.
+ * <p/>
+ * The threads of the pool are daemon threads which terminate after being idle for a while.
+ * Therefore the pool does not need to be shut down.
+ *
+ * @author Stephan Classen
+ */
+final class ParallelQueryExecutorImpl implements ParallelQueryExecutor {
+
+  // ---- Members
+
+  /** Time after which an idle thread of the pool terminates. */
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  /** The pool running the queries. */
+  private final ThreadPoolExecutor pool;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param threads the maximal number of queries running at the same time. Must be positive.
+   */
+  ParallelQueryExecutorImpl(int threads) {
+    checkArgument(threads > 0, "the number of threads must be positive.");
+    pool = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new QueryThreadFactory());
+    pool.allowCoreThreadTimeOut(true);
+  }
+
+
+  // ---- Methods
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Batch newBatch(long timeout, TimeUnit unit) {
+    checkNotNull(unit);
+    return new BatchImpl(System.nanoTime() + unit.toNanos(timeout));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public <T> List<T> invokeAll(UnitOfWork unitOfWork, List<? extends Callable<T>> queries,
+      long timeout, TimeUnit unit)
+    throws InterruptedException, ExecutionException, TimeoutException {
+    checkNotNull(unitOfWork);
+    checkNotNull(queries);
+    final Batch batch = newBatch(timeout, unit);
+    final List<Future<T>> futures = new ArrayList<Future<T>>(queries.size());
+    for (Callable<T> query : queries) {
+      futures.add(batch.submit(unitOfWork, query));
+    }
+    batch.await();
+
+    final List<T> results = new ArrayList<T>(futures.size());
+    for (Future<T> future : futures) {
+      results.add(future.get());
+    }
+    return results;
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * A batch of queries sharing one deadline.
+   */
+  private final class BatchImpl implements Batch {
+    private final long deadline;
+    private final List<Future<?>> futures = new ArrayList<Future<?>>();
+    private boolean closed;
+
+    BatchImpl(long deadline) {
+      this.deadline = deadline;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized <T> Future<T> submit(UnitOfWork unitOfWork, Callable<T> query) {
+      checkNotNull(unitOfWork);
+      checkNotNull(query);
+      checkState(!closed, "the batch has already been awaited or cancelled.");
+      final Future<T> future = pool.submit(new QueryTask<T>(unitOfWork, query));
+      futures.add(future);
+      return future;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void await() throws InterruptedException, ExecutionException, TimeoutException {
+      final List<Future<?>> submitted;
+      synchronized (this) {
+        closed = true;
+        submitted = new ArrayList<Future<?>>(futures);
+      }
+
+      boolean completed = false;
+      try {
+        for (Future<?> future : submitted) {
+          future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        completed = true;
+      }
+      finally {
+        if (!completed) {
+          cancel();
+        }
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void cancel() {
+      closed = true;
+      for (Future<?> future : futures) {
+        future.cancel(true);
+      }
+    }
+  }
+
+  /**
+   * Runs a query within its own unit of work.
+   */
+  private static final class QueryTask<T> implements Callable<T> {
+    private final UnitOfWork unitOfWork;
+    private final Callable<T> query;
+    private final UnitOfWorkPriority priority = UnitOfWorkPriority.getCurrent();
+
+    QueryTask(UnitOfWork unitOfWork, Callable<T> query) {
+      this.unitOfWork = unitOfWork;
+      this.query = query;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T call() throws Exception {
+      final UnitOfWorkPriority previous = UnitOfWorkPriority.setCurrent(priority);
+      try {
+        unitOfWork.begin();
+        try {
+          return query.call();
+        }
+        finally {
+          unitOfWork.end();
+        }
+      }
+      finally {
+        UnitOfWorkPriority.setCurrent(previous);
+      }
+    }
+  }
+
+  /**
+   * Thread factory for the daemon threads of the pool.
+   */
+  private static final class QueryThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      final Thread t = new Thread(r, "guice-jpa parallel query " + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
+}
@@ -16,11 +16,13 @@
  */
 package com.github.sclassen.guicejpa;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
-import static com.google.inject.matcher.Matchers.any;
 
+import java.lang.annotation.Annotation;
 import java.lang.reflect.AnnotatedElement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
@@ -72,6 +74,9 @@ public final class PersistenceModule extends AbstractModule {
   /** Container for holding all registered persistence units. */
   private final PersistenceUnitContainer puContainer = new PersistenceUnitContainer();
 
+  /** Combination of the health checks of all persistence units. */
+  private final AggregatedHealthCheck healthChecks = new AggregatedHealthCheck();
+
   /**
    * The JNDI name to lookup the {@link UserTransaction}.
    */
@@ -87,6 +92,37 @@ public final class PersistenceModule extends AbstractModule {
    */
   private PersistenceExceptionTranslator<?> peTranslator = null;
 
+  /**
+   * Matcher for the classes which are checked for @{@link Transactional} annotations.
+   */
+  private TransactionalClassMatcher transactionalClassMatcher = new TransactionalClassMatcher();
+
+  /**
+   * {@code true} if generated transactional wrappers are used instead of guice AOP.
+   */
+  private boolean useGeneratedTransactionalWrappers = false;
+
+  /**
+   * The classes which are bound to their generated transactional wrappers.
+   */
+  private final List<Class<?>> wrappedTypes = new ArrayList<Class<?>>();
+
+  /**
+   * The annotations of the persistence units in the order in which their transactions are
+   * committed. {@code null} if commits are not coordinated.
+   */
+  private List<Class<? extends Annotation>> commitOrder = null;
+
+  /**
+   * The maximal number of queries run in parallel by the {@link ParallelQueryExecutor}.
+   */
+  private int parallelQueryThreads = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * The {@link ParallelQueryExecutor}. Created when {@link #configure()} is called the first time.
+   */
+  private ParallelQueryExecutor parallelQueryExecutor;
+
 
   // ---- Methods
 
@@ -188,6 +224,78 @@ public final class PersistenceModule extends AbstractModule {
     this.peTranslator = peTranslator;
   }
 
+  /**
+   * Restricts the classes which are checked for @{@link Transactional} annotations to the given
+   * packages and their sub packages. By default all classes created by guice are checked. Limiting
+   * the checked classes reduces the time needed to create the injector.
+   *
+   * @param packageNames the names of the packages containing transactional classes.
+   *        Must not be {@code null} or empty.
+   */
+  public void setTransactionalPackages(String... packageNames) {
+    ensureConfigurHasNotYetBeenExecuted();
+    checkNotNull(packageNames);
+    checkArgument(packageNames.length > 0, "at least one package name is required");
+    this.transactionalClassMatcher = new TransactionalClassMatcher(packageNames);
+  }
+
+  /**
+   * Use transactional wrappers generated at build time instead of intercepting
+   * transactional methods with guice AOP.
+   * <p/>
+   * The wrappers are generated by the annotation processor
+   * {@link com.github.sclassen.guicejpa.processor.TransactionalWrapperProcessor} which must be
+   * enabled when compiling the transactional classes. Each of the given classes is bound to its
+   * generated wrapper. Other wrappers can be bound by the application. Once this method has been
+   * called no method is intercepted by guice AOP anymore.
+   *
+   * @param types the transactional classes to bind to their generated wrappers.
+   */
+  public void useGeneratedTransactionalWrappers(Class<?>... types) {
+    ensureConfigurHasNotYetBeenExecuted();
+    checkNotNull(types);
+    this.useGeneratedTransactionalWrappers = true;
+    this.wrappedTypes.addAll(Arrays.asList(types));
+  }
+
+  /**
+   * Coordinates the commits of transactions spanning several persistence units.
+   * <p/>
+   * By default the transactions of a method covering several persistence units are committed
+   * independently of each other. With coordinated commits the transactions of all covered
+   * persistence units are begun together and committed one after the other in the given order.
+   * Persistence units which are not listed are committed afterwards in the order in which they
+   * have been added. If a commit fails the remaining transactions are rolled back and the
+   * compensations registered with the {@link CompensationRegistry} are executed for the
+   * persistence units which have already been committed. Such failures are reported as
+   * inconsistencies to the logger {@value CoordinatedTxnInterceptor#INCONSISTENCY_LOGGER}.
+   * <p/>
+   * Put the persistence unit whose commit is most likely to fail first. This is a best effort
+   * one phase commit and not a replacement for XA transactions. Only resource local persistence
+   * units are supported.
+   *
+   * @param annotations the annotations of the persistence units in the order in which their
+   *        transactions are committed. Must not be {@code null}.
+   */
+  public void coordinateCommits(Class<? extends Annotation>... annotations) {
+    ensureConfigurHasNotYetBeenExecuted();
+    checkNotNull(annotations);
+    this.commitOrder = Arrays.asList(annotations);
+  }
+
+  /**
+   * Setter for defining the maximal number of queries run in parallel by the
+   * {@link ParallelQueryExecutor}. Every running query holds a connection. Default is the number
+   * of available processors.
+   *
+   * @param threads the number of threads of the pool running the queries. Must be positive.
+   */
+  public void setParallelQueryThreads(int threads) {
+    ensureConfigurHasNotYetBeenExecuted();
+    checkArgument(threads > 0, "the number of threads must be positive.");
+    this.parallelQueryThreads = threads;
+  }
+
   /**
    * {@inheritDoc}
    */
@@ -199,26 +307,109 @@ public final class PersistenceModule extends AbstractModule {
         return;
       }
       initUserTransactionFacade();
+      parallelQueryExecutor = new ParallelQueryExecutorImpl(parallelQueryThreads);
       for (PersistenceUnitBuilder builder : moduleBuilders) {
         final AbstractPersistenceUnitModule module = builder.build();
         puContainer.add(module.getPersistenceService(), module.getUnitOfWork());
+        if (null != module.getHealthCheck()) {
+          healthChecks.add(module.getHealthCheck());
+        }
         modules.add(module);
       }
     }
 
+    List<MethodInterceptor> interceptors = new ArrayList<MethodInterceptor>();
     for (AbstractPersistenceUnitModule module : modules) {
+      interceptors.add(module.getTransactionInterceptor(utFacade, peTranslator));
       install(module);
+    }
 
-      final Matcher<AnnotatedElement> matcher = Matchers.annotatedWith(Transactional.class);
-      final MethodInterceptor transactionInterceptor = module.getTransactionInterceptor(utFacade, peTranslator);
+    if (null != commitOrder) {
+      final CoordinatedTxnInterceptor coordinator = new CoordinatedTxnInterceptor(interceptors,
+          getInterceptorsInCommitOrder(), peTranslator);
+      interceptors = new ArrayList<MethodInterceptor>();
+      interceptors.add(coordinator);
+      bind(CompensationRegistry.class).toInstance(coordinator);
+    }
 
-      bindInterceptor(matcher, any(), transactionInterceptor);
-      bindInterceptor(any(), matcher, transactionInterceptor);
+    if (!useGeneratedTransactionalWrappers) {
+      final Matcher<AnnotatedElement> annotated = Matchers.annotatedWith(Transactional.class);
+      for (MethodInterceptor transactionInterceptor : interceptors) {
+        bindInterceptor(transactionalClassMatcher.and(annotated),
+            new TransactionalMethodMatcher(true), transactionInterceptor);
+        bindInterceptor(transactionalClassMatcher.and(Matchers.not(annotated)),
+            new TransactionalMethodMatcher(false), transactionInterceptor);
+      }
+    }
+
+    bind(TransactionalInvoker.class).toInstance(new TransactionalInvoker(interceptors));
+    for (Class<?> type : wrappedTypes) {
+      bindToGeneratedWrapper(type);
     }
 
     bind(PersistenceService.class).annotatedWith(AllPersistenceUnits.class).toInstance(puContainer);
     bind(UnitOfWork.class).annotatedWith(AllPersistenceUnits.class).toInstance(puContainer);
+    bind(PersistenceUnitHealthCheck.class).annotatedWith(AllPersistenceUnits.class)
+        .toInstance(healthChecks);
     bind(PersistenceFilter.class).toInstance(new PersistenceFilter(puContainer));
+    bind(ParallelQueryExecutor.class).toInstance(parallelQueryExecutor);
+  }
+
+  /**
+   * Orders the transaction interceptors of all persistence units according to
+   * {@link #commitOrder}. Reports an error for unknown and not resource local persistence units.
+   *
+   * @return the transaction interceptors in the order in which their transactions are committed.
+   */
+  private List<AbstractTxnInterceptor> getInterceptorsInCommitOrder() {
+    final List<AbstractPersistenceUnitModule> ordered =
+        new ArrayList<AbstractPersistenceUnitModule>();
+    for (Class<? extends Annotation> annotation : commitOrder) {
+      AbstractPersistenceUnitModule match = null;
+      for (AbstractPersistenceUnitModule module : modules) {
+        if (annotation.equals(module.getAnnotation())) {
+          match = module;
+        }
+      }
+      if (null == match) {
+        addError("no persistence unit is annotated with %s", annotation.getName());
+      }
+      else if (!ordered.contains(match)) {
+        ordered.add(match);
+      }
+    }
+    for (AbstractPersistenceUnitModule module : modules) {
+      if (!ordered.contains(module)) {
+        ordered.add(module);
+      }
+    }
+
+    final List<AbstractTxnInterceptor> result = new ArrayList<AbstractTxnInterceptor>();
+    for (AbstractPersistenceUnitModule module : ordered) {
+      if (TransactionType.RESOURCE_LOCAL != module.getTransactionType()) {
+        addError("coordinated commits are only supported for resource local persistence units.");
+      }
+      result.add((AbstractTxnInterceptor) module.getTransactionInterceptor(utFacade,
+          peTranslator));
+    }
+    return result;
+  }
+
+  /**
+   * Binds a transactional class to its generated wrapper.
+   *
+   * @param type the transactional class.
+   */
+  private <T> void bindToGeneratedWrapper(Class<T> type) {
+    final String wrapperName = TransactionalInvoker.getWrapperClassName(type);
+    try {
+      final Class<?> wrapper = Class.forName(wrapperName, true, type.getClassLoader());
+      bind(type).to(wrapper.asSubclass(type));
+    }
+    catch (ClassNotFoundException e) {
+      addError("no generated transactional wrapper " + wrapperName + " found for " + type.getName()
+          + ". Make sure the annotation processor TransactionalWrapperProcessor is enabled.");
+    }
   }
 
   /**
@@ -16,9 +16,13 @@
  */
 package com.github.sclassen.guicejpa;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.lang.annotation.Annotation;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.FlushModeType;
 
 /**
  * Builder class for configurating a guice-jpa persistence unit.
@@ -79,6 +83,362 @@ public final class PersistenceUnitBuilder {
     module.setTransactionType(TransactionType.JTA);
   }
 
+  /**
+   * Configure nested transactions to use JDBC savepoints. See
+   * {@link #useSavepointsForNestedTransactions(JdbcConnectionAccessor)}.
+   * The JDBC connection is obtained using {@link JdbcConnectionAccessor#UNWRAP}.
+   *
+   * @return the builder for method chaining.
+   */
+  public PersistenceUnitBuilder useSavepointsForNestedTransactions() {
+    return useSavepointsForNestedTransactions(JdbcConnectionAccessor.UNWRAP);
+  }
+
+  /**
+   * Configure nested transactions to use JDBC savepoints. This only applies to persistence units
+   * using resource local transactions.
+   * <p/>
+   * By default a nested transaction which is rolled back marks the entire outer transaction as
+   * rollbackOnly. With savepoints a nested transaction sets a savepoint when it starts and only
+   * rolls back to this savepoint. The outer transaction can continue and commit its own work.
+   * This allows large batch transactions to skip bad records.
+   * <p/>
+   * Starting a nested transaction flushes the entity manager. Rolling back a nested transaction
+   * clears the entity manager, this means all entities become detached.
+   *
+   * @param connectionAccessor the accessor for the JDBC connection of the entity manager.
+   *        Must not be {@code null}.
+   * @return the builder for method chaining.
+   */
+  public PersistenceUnitBuilder useSavepointsForNestedTransactions(
+      JdbcConnectionAccessor connectionAccessor) {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    checkNotNull(connectionAccessor);
+    module.useSavepointsForNestedTransactions(connectionAccessor);
+    return this;
+  }
+
+  /**
+   * Log a warning for every outer transaction which takes longer than the given threshold.
+   * The log message contains the intercepted method, the persistence unit and the time spent
+   * in begin, the method body, commit (including flush) and rollback. It also tells whether a
+   * nested transaction has marked the transaction as rollbackOnly.
+   * <p/>
+   * Messages are logged using {@link java.util.logging} with the logger
+   * {@code com.github.sclassen.guicejpa.SlowTransactionLogger}.
+   *
+   * @param threshold transactions taking longer than this are logged. Must not be negative.
+   * @param unit the time unit of the threshold. Must not be {@code null}.
+   * @return the builder for method chaining.
+   */
+  public PersistenceUnitBuilder logSlowTransactions(long threshold, TimeUnit unit) {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    checkArgument(threshold >= 0, "threshold must not be negative");
+    checkNotNull(unit);
+    module.logSlowTransactions(unit.toNanos(threshold));
+    return this;
+  }
+
+  /**
+   * Collect statistics of the outer transactions per transactional method. For every method the
+   * number of transactions and rollbacks, the mean, the 50th, 95th and 99th percentile and the
+   * maximum of the duration and the types of the thrown exceptions are recorded. The slowest,
+   * the most rolled back and the most frequent methods can be listed using JMX.
+   * See {@link TransactionStatisticsMBean}.
+   * <p/>
+   * Recording a transaction only increments a few counters which are striped per thread.
+   *
+   * @return the builder for method chaining.
+   */
+  public PersistenceUnitBuilder collectTransactionStatistics() {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    module.collectTransactionStatistics();
+    return this;
+  }
+
+  /**
+   * Track all active units of work of this persistence unit. The active units of work can be
+   * listed using JMX. See {@link UnitOfWorkRegistryMBean}.
+   *
+   * @param recordBeginSite {@code true} if the stack trace of every call to
+   *        {@link UnitOfWork#begin()} should be recorded. This helps finding the code which
+   *        forgot to end a unit of work but makes beginning a unit of work more expensive.
+   * @return the builder for method chaining.
+   */
+  public PersistenceUnitBuilder trackUnitsOfWork(boolean recordBeginSite) {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    module.trackUnitsOfWork(recordBeginSite);
+    return this;
+  }
+
+  /**
+   * Periodically check for units of work which are open longer than the given limit. A warning
+   * is logged for every such unit of work. If {@code close} is {@code true} the
+   * {@link javax.persistence.EntityManager} of the unit of work is also closed. This releases the
+   * JDBC connection of a unit of work which somebody forgot to end. The thread owning the unit of
+   * work will get an {@link IllegalStateException} when it tries to use the closed entity manager.
+   * <p/>
+   * Calling this method implies {@link #trackUnitsOfWork(boolean)}.
+   *
+   * @param maxAge units of work open longer than this are reported. Must not be negative.
+   * @param unit the time unit of maxAge. Must not be {@code null}.
+   * @param close {@code true} if the entity manager of the reported units of work should be closed.
+   * @return the builder for method chaining.
+   */
+  public PersistenceUnitBuilder reapUnitsOfWork(long maxAge, TimeUnit unit, boolean close) {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    checkArgument(maxAge >= 0, "maxAge must not be negative");
+    checkNotNull(unit);
+    module.reapUnitsOfWork(unit.toNanos(maxAge), close);
+    return this;
+  }
+
+  /**
+   * Limit the number of concurrently active units of work of this persistence unit.
+   * <p/>
+   * {@link UnitOfWork#begin()} waits until fewer than {@code maxConcurrent} units of work are
+   * active. Waiting threads are admitted in arrival order. If a thread is not admitted within the
+   * timeout a {@link UnitOfWorkRejectedException} is thrown. Use this to keep the number of
+   * concurrent units of work below the size of the connection pool and to fail fast under
+   * overload. The admission control can be monitored using JMX.
+   * See {@link AdmissionControllerMBean}.
+   * <p/>
+   * A unit of work suspended by {@link Propagation#REQUIRES_NEW} or
+   * {@link Propagation#NOT_SUPPORTED} keeps its permit and the new unit of work on the same thread
+   * runs within this permit. Units of work begun by other threads are always admitted on their
+   * own. A thread which holds a permit while waiting for tasks of the {@link ParallelQueryExecutor}
+   * or of an executor wrapped by {@link UnitOfWorkPropagation} therefore needs
+   * {@code maxConcurrent} to be larger than the number of these tasks. Otherwise the tasks are
+   * rejected after the timeout.
+   * <p/>
+   * A permit is released only after the entity manager of the unit of work has been closed and
+   * its connection returned to the pool. Units of work closed by the reaper of
+   * {@link #reapUnitsOfWork(long, TimeUnit, boolean)} release their permit immediately.
+   *
+   * @param maxConcurrent the maximal number of concurrently active units of work. Must be
+   *        positive.
+   * @param timeout the maximal time to wait for admission. Zero fails immediately if the limit
+   *        is reached. Must not be negative.
+   * @param unit the time unit of timeout. Must not be {@code null}.
+   * @return the builder for method chaining.
+   */
+  public PersistenceUnitBuilder limitConcurrentUnitsOfWork(int maxConcurrent, long timeout,
+      TimeUnit unit) {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    checkArgument(maxConcurrent > 0, "maxConcurrent must be positive");
+    checkArgument(timeout >= 0, "timeout must not be negative");
+    checkNotNull(unit);
+    module.limitConcurrentUnitsOfWork(maxConcurrent, unit.toNanos(timeout));
+    return this;
+  }
+
+  /**
+   * Reserve capacity for interactive units of work by limiting the units of work begun with
+   * {@link UnitOfWorkPriority#BACKGROUND} to a smaller quota. See
+   * {@link UnitOfWorkPriority#setCurrent(UnitOfWorkPriority)}.
+   * <p/>
+   * A background unit of work needs a permit of the background quota in addition to a permit
+   * of the overall limit. Background units of work are also held back while interactive units of
+   * work recently had to wait longer than the given threshold for their admission. A background
+   * unit of work which is not admitted within the timeout of
+   * {@link #limitConcurrentUnitsOfWork(int, long, TimeUnit)} is rejected.
+   * <p/>
+   * Requires {@link #limitConcurrentUnitsOfWork(int, long, TimeUnit)}.
+   *
+   * @param maxConcurrent the maximal number of concurrently active background units of work.
+   *        Must be positive and smaller than the overall limit.
+   * @param throttleThreshold background units of work are held back while interactive units of
+   *        work wait longer than this on average. A negative value disables holding back.
+   * @param unit the time unit of throttleThreshold. Must not be {@code null}.
+   * @return the builder for method chaining.
+   */
+  public PersistenceUnitBuilder limitBackgroundUnitsOfWork(int maxConcurrent,
+      long throttleThreshold, TimeUnit unit) {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    checkArgument(maxConcurrent > 0, "maxConcurrent must be positive");
+    checkNotNull(unit);
+    module.limitBackgroundUnitsOfWork(maxConcurrent,
+        throttleThreshold < 0 ? -1 : unit.toNanos(throttleThreshold));
+    return this;
+  }
+
+  /**
+   * Drain the active units of work before this persistence unit is stopped.
+   * <p/>
+   * When {@link PersistenceService#stop()} is called (i.e. by the {@link PersistenceFilter} on
+   * undeploy) new units of work are rejected with a {@link UnitOfWorkRejectedException}. The
+   * active units of work are given time to end before the
+   * {@link javax.persistence.EntityManagerFactory} is closed. Units of work still active after
+   * the timeout are logged. If {@link #trackUnitsOfWork(boolean)} is enabled the log also lists
+   * the threads and begin sites of these units of work.
+   * <p/>
+   * If several persistence units are stopped together (i.e. by the {@link PersistenceService}
+   * bound to {@link AllPersistenceUnits}) all of them reject new units of work at once and the
+   * timeout of each unit is measured from the same point in time. Stopping therefore takes at most
+   * the longest timeout instead of the sum of all timeouts.
+   *
+   * @param timeout the maximal time to wait for the active units of work. Must not be negative.
+   * @param unit the time unit of timeout. Must not be {@code null}.
+   * @return the builder for method chaining.
+   */
+  public PersistenceUnitBuilder drainUnitsOfWorkOnStop(long timeout, TimeUnit unit) {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    checkArgument(timeout >= 0, "timeout must not be negative");
+    checkNotNull(unit);
+    module.drainUnitsOfWorkOnStop(unit.toNanos(timeout));
+    return this;
+  }
+
+  /**
+   * Check the health of this persistence unit on a background schedule. The database is probed
+   * by executing the given native SQL query with a new {@link javax.persistence.EntityManager}
+   * but without a transaction. The result of the last probe is served by the
+   * {@link PersistenceUnitHealthCheck} of this persistence unit.
+   *
+   * @param validationQuery a cheap native SQL query (i.e. {@code "SELECT 1"}). Must not be
+   *        {@code null}.
+   * @param interval the interval between two probes. Must be positive.
+   * @param unit the time unit of interval. Must not be {@code null}.
+   * @return the builder for method chaining.
+   */
+  public PersistenceUnitBuilder checkHealth(String validationQuery, long interval,
+      TimeUnit unit) {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    checkNotNull(validationQuery);
+    checkArgument(interval > 0, "interval must be positive");
+    checkNotNull(unit);
+    module.checkHealth(validationQuery, unit.toNanos(interval));
+    return this;
+  }
+
+  /**
+   * Skip the commit round trip for transactions which executed no SQL.
+   * <p/>
+   * The JDBC connections of the persistence unit are wrapped to track whether a statement has
+   * been created in the current transaction. Switching off auto commit at the beginning of a
+   * transaction is deferred until the first statement is created. Commit and rollback of a
+   * transaction without statements are not passed to the database. Transactions which are
+   * served entirely from the persistence context or a cache therefore cause no round trip.
+   * <p/>
+   * This is only supported for application managed persistence units. The data source must be
+   * passed as an instance of {@link javax.sql.DataSource} in the properties of the persistence
+   * unit using the key {@code javax.persistence.nonJtaDataSource} or
+   * {@code hibernate.connection.datasource}.
+   *
+   * @return the builder for method chaining.
+   * @throws IllegalStateException if the persistence unit is container managed.
+   */
+  public PersistenceUnitBuilder skipCommitsWithoutStatements() {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    module.skipCommitsWithoutStatements();
+    return this;
+  }
+
+  /**
+   * Count the JDBC statements executed per unit of work and per outer transaction.
+   * <p/>
+   * At the end of a unit of work or an outer transaction a warning is logged listing the
+   * statements which have been executed at least {@code repeatedStatementThreshold} times.
+   * Statements are considered identical if they only differ in their parameters. Such repeated
+   * statements usually indicate N+1 lazy loading.
+   * <p/>
+   * Transactional methods can define a statement budget using
+   * {@link Transactional#maxStatements()}. If the method exceeds its budget a warning is logged
+   * or a {@link StatementBudgetExceededException} is thrown.
+   * <p/>
+   * The statements are counted using the same JDBC proxy as
+   * {@link #skipCommitsWithoutStatements()} and therefore have the same requirements.
+   *
+   * @param failIfBudgetExceeded {@code true} if a {@link StatementBudgetExceededException} should
+   *        be thrown when a method exceeds its statement budget. {@code false} to log a warning.
+   * @param repeatedStatementThreshold statements executed at least this often in a unit of work
+   *        or an outer transaction are reported. Must be at least 2.
+   * @return the builder for method chaining.
+   * @throws IllegalStateException if the persistence unit is container managed.
+   */
+  public PersistenceUnitBuilder countStatements(boolean failIfBudgetExceeded,
+      int repeatedStatementThreshold) {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    checkArgument(repeatedStatementThreshold >= 2, "repeatedStatementThreshold must be at least 2");
+    module.countStatements(failIfBudgetExceeded, repeatedStatementThreshold);
+    return this;
+  }
+
+  /**
+   * Set the JDBC fetch size of every query created in a unit of work of this persistence unit.
+   * The fetch size is passed as the hibernate query hint {@code org.hibernate.fetchSize}.
+   *
+   * @param fetchSize the number of rows fetched in one round trip. Must be positive.
+   * @return the builder for method chaining.
+   */
+  public PersistenceUnitBuilder defaultFetchSize(int fetchSize) {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    checkArgument(fetchSize > 0, "fetchSize must be positive");
+    module.setDefaultFetchSize(fetchSize);
+    return this;
+  }
+
+  /**
+   * Set the timeout of every query created in a unit of work of this persistence unit. The
+   * timeout is passed as the standard query hint {@code javax.persistence.query.timeout}.
+   *
+   * @param timeout the timeout. Must be positive.
+   * @param unit the time unit of timeout. Must not be {@code null}.
+   * @return the builder for method chaining.
+   */
+  public PersistenceUnitBuilder defaultQueryTimeout(long timeout, TimeUnit unit) {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    checkArgument(timeout > 0, "timeout must be positive");
+    checkNotNull(unit);
+    module.setDefaultQueryTimeout(Math.max(1, unit.toMillis(timeout)));
+    return this;
+  }
+
+  /**
+   * Load the entities of every query created in a unit of work of this persistence unit in read
+   * only mode. Read only entities are not dirty checked when the persistence context is flushed.
+   * The mode is passed as the hibernate query hint {@code org.hibernate.readOnly} and can be
+   * overridden by setting the hint on a single query.
+   *
+   * @return the builder for method chaining.
+   */
+  public PersistenceUnitBuilder readOnlyQueries() {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    module.setReadOnlyQueries(true);
+    return this;
+  }
+
+  /**
+   * Set the flush mode of every {@link javax.persistence.EntityManager} of this persistence unit.
+   *
+   * @param flushMode the flush mode. Must not be {@code null}.
+   * @return the builder for method chaining.
+   */
+  public PersistenceUnitBuilder defaultFlushMode(FlushModeType flushMode) {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    checkNotNull(flushMode);
+    module.setDefaultFlushMode(flushMode);
+    return this;
+  }
+
+  /**
+   * Set the number of statements the JPA provider sends to the database in one JDBC batch. The
+   * batch size is passed as the hibernate property {@code hibernate.jdbc.batch_size} when the
+   * {@link javax.persistence.EntityManagerFactory} is created.
+   * <p/>
+   * This is only supported for application managed persistence units.
+   *
+   * @param batchSize the batch size. Must be positive.
+   * @return the builder for method chaining.
+   * @throws IllegalStateException if the persistence unit is container managed.
+   */
+  public PersistenceUnitBuilder jdbcBatchSize(int batchSize) {
+    checkNotNull(module, "cannot change a module after creating the injector.");
+    checkArgument(batchSize > 0, "batchSize must be positive");
+    module.setJdbcBatchSize(batchSize);
+    return this;
+  }
+
   /**
    * Builds the module and also changes the state of the builder.
    * After calling this method all calls to the builder will result in an exception.
@@ -33,7 +33,8 @@ class PersistenceUnitContainer implements PersistenceService, UnitOfWork {
   // ---- Members
 
   /** Collection of all known persistence services. */
-  private final Set<PersistenceService> persistenceServices = new HashSet<PersistenceService>();
+  private final Set<PersistenceUnitService> persistenceServices =
+      new HashSet<PersistenceUnitService>();
 
   /** Collection of all known units of work. */
   private final Set<UnitOfWork> unitsOfWork = new HashSet<UnitOfWork>();
@@ -47,7 +48,7 @@ class PersistenceUnitContainer implements PersistenceService, UnitOfWork {
    * @param ps the persistence service to add. Must not be {@code null}.
    * @param uow the unit of work to add. Must not be {@code null}.
    */
-  void add(PersistenceService ps, UnitOfWork uow) {
+  void add(PersistenceUnitService ps, UnitOfWork uow) {
     checkNotNull(ps);
     checkNotNull(uow);
     persistenceServices.add(ps);
@@ -59,7 +60,7 @@ class PersistenceUnitContainer implements PersistenceService, UnitOfWork {
    */
   @Override
   public synchronized void start() {
-    for (PersistenceService ps : persistenceServices) {
+    for (PersistenceUnitService ps : persistenceServices) {
       ps.start();
     }
   }
@@ -69,7 +70,7 @@ class PersistenceUnitContainer implements PersistenceService, UnitOfWork {
    */
   @Override
   public synchronized boolean isRunning() {
-    for (PersistenceService ps : persistenceServices) {
+    for (PersistenceUnitService ps : persistenceServices) {
       if (!ps.isRunning()) {
         return false;
       }
@@ -82,8 +83,13 @@ class PersistenceUnitContainer implements PersistenceService, UnitOfWork {
    */
   @Override
   public synchronized void stop() {
-    for (PersistenceService ps : persistenceServices) {
-      ps.stop();
+    // all persistence units share one drain deadline instead of waiting one after the other
+    final long stopNanos = System.nanoTime();
+    for (PersistenceUnitService ps : persistenceServices) {
+      ps.rejectUnitsOfWork();
+    }
+    for (PersistenceUnitService ps : persistenceServices) {
+      ps.stop(stopNanos);
     }
   }
 
@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+/**
+ * Health check of a persistence unit.
+ * <p/>
+ * The database is probed with a validation query on a background schedule. Asking for the status
+ * only returns the cached result of the last probe. This makes the check cheap enough to be
+ * called by a load balancer at any frequency.
+ * <p/>
+ * An instance of this interface is bound and exposed for every persistence unit which has been
+ * configured using {@link PersistenceUnitBuilder#checkHealth(String, long,
+ * java.util.concurrent.TimeUnit)}. The instance annotated with @{@link AllPersistenceUnits}
+ * combines the status of all these persistence units.
+ *
+ * @author Stephan Classen
+ */
+public interface PersistenceUnitHealthCheck {
+
+  /**
+   * @return the result of the last probe. Never {@code null}. A persistence unit is not healthy
+   *         if it is not running or if no probe has completed within three intervals.
+   */
+  HealthStatus getStatus();
+
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * The {@link PersistenceService} of a single persistence unit.
+ * <p/>
+ * Controls the life cycle of the {@link EntityManagerFactory} and of additional services of the
+ * persistence unit (i.e. the {@link UnitOfWorkRegistry}). The additional services are started
+ * after the {@link EntityManagerFactory} and stopped before it.
+ *
+ * @author Stephan Classen
+ */
+final class PersistenceUnitService implements PersistenceService {
+
+  // ---- Members
+
+  private static final Logger LOGGER = Logger.getLogger(PersistenceUnitService.class.getName());
+
+  /** The persistence service controlling the {@link EntityManagerFactory}. */
+  private final PersistenceService emfService;
+
+  /** Additional services with the same life cycle as the {@link EntityManagerFactory}. */
+  private final List<PersistenceService> services = new ArrayList<PersistenceService>();
+
+  /** Drains the active units of work when stopping. {@code null} if not draining. */
+  private UnitOfWorkDrainer drainer;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param emfService the persistence service controlling the {@link EntityManagerFactory}.
+   *        Must not be {@code null}.
+   */
+  PersistenceUnitService(PersistenceService emfService) {
+    checkNotNull(emfService);
+    this.emfService = emfService;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * Adds a service which is started after and stopped before the {@link EntityManagerFactory}.
+   *
+   * @param service the service to add. Must not be {@code null}.
+   */
+  void add(PersistenceService service) {
+    checkNotNull(service);
+    services.add(service);
+  }
+
+  /**
+   * Adds the drainer of the active units of work. It must be added last to be stopped first.
+   *
+   * @param unitOfWorkDrainer the drainer. Must not be {@code null}.
+   */
+  void drainOnStop(UnitOfWorkDrainer unitOfWorkDrainer) {
+    add(unitOfWorkDrainer);
+    this.drainer = unitOfWorkDrainer;
+  }
+
+  /**
+   * Starts the {@link EntityManagerFactory} and the additional services. If a service fails to
+   * start the services started so far are stopped again before the exception is rethrown.
+   */
+  @Override
+  public synchronized void start() {
+    emfService.start();
+    int started = 0;
+    try {
+      for (PersistenceService service : services) {
+        service.start();
+        started++;
+      }
+    }
+    catch (RuntimeException e) {
+      for (int i = started - 1; i >= 0; i--) {
+        stopQuietly(services.get(i));
+      }
+      stopQuietly(emfService);
+      throw e;
+    }
+  }
+
+  private static void stopQuietly(PersistenceService service) {
+    try {
+      service.stop();
+    }
+    catch (RuntimeException e) {
+      LOGGER.log(Level.WARNING, "failed to stop a service after a failed start", e);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized boolean isRunning() {
+    return emfService.isRunning();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void stop() {
+    stop(System.nanoTime());
+  }
+
+  /**
+   * Rejects new units of work if the active ones are drained on stop. Used to reject the units
+   * of work of several persistence units at once before they are stopped one after the other.
+   */
+  synchronized void rejectUnitsOfWork() {
+    if (null != drainer) {
+      drainer.rejectUnitsOfWork();
+    }
+  }
+
+  /**
+   * Stops the additional services and the {@link EntityManagerFactory}.
+   *
+   * @param stopNanos the time stamp as returned by {@link System#nanoTime()} at which stopping
+   *        began. The drain timeout is measured from this time stamp.
+   */
+  synchronized void stop(long stopNanos) {
+    for (int i = services.size() - 1; i >= 0; i--) {
+      final PersistenceService service = services.get(i);
+      if (service == drainer) {
+        drainer.stop(stopNanos);
+      }
+      else {
+        service.stop();
+      }
+    }
+    emfService.stop();
+  }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+/**
+ * Defines how a method annotated with @{@link Transactional} relates to the transaction of its
+ * caller. See {@link Transactional#propagation()}.
+ * <p/>
+ * Suspending the current transaction is done by suspending the
+ * {@link javax.persistence.EntityManager} of the current unit of work. The method is executed with
+ * a new entity manager and the suspended one is restored afterwards. Entities loaded by the
+ * caller are therefore not managed by the entity manager of the method. Suspending a JTA
+ * transaction is not supported.
+ *
+ * @author Stephan Classen
+ */
+public enum Propagation {
+
+  /**
+   * Join the current transaction or start a new one if there is none. This is the default.
+   */
+  REQUIRED,
+
+  /**
+   * Always start a new transaction using a new entity manager. The current transaction (if any)
+   * is suspended until the method returns. The new transaction is committed or rolled back
+   * independently of the suspended one.
+   */
+  REQUIRES_NEW,
+
+  /**
+   * Join the current transaction if there is one. Otherwise execute the method without a
+   * transaction.
+   */
+  SUPPORTS,
+
+  /**
+   * Execute the method without a transaction. The current transaction (if any) is suspended until
+   * the method returns.
+   */
+  NOT_SUPPORTED;
+
+}
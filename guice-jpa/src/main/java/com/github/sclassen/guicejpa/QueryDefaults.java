@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.persistence.Query;
+
+/**
+ * Default settings applied to every {@link EntityManager} of a persistence unit and to every
+ * {@link Query} created by it.
+ * <p/>
+ * The flush mode is set on the entity manager directly after it has been created. The query
+ * hints are set on every query returned by one of the {@code create...Query} methods of the
+ * entity manager. Hints set by the application on the query afterwards take precedence.
+ * <p/>
+ * This class is configured before the injector is created and is thread save afterwards.
+ *
+ * @author Stephan Classen
+ */
+final class QueryDefaults {
+
+  // ---- Members
+
+  /** The standard JPA hint for the query timeout in milliseconds. */
+  static final String QUERY_TIMEOUT_HINT = "javax.persistence.query.timeout";
+
+  /** The hibernate hint for the JDBC fetch size of a query. */
+  static final String FETCH_SIZE_HINT = "org.hibernate.fetchSize";
+
+  /** The hibernate hint for loading the entities of a query in read only mode. */
+  static final String READ_ONLY_HINT = "org.hibernate.readOnly";
+
+  /** The hibernate property for the JDBC batch size of the entity manager factory. */
+  static final String JDBC_BATCH_SIZE_PROPERTY = "hibernate.jdbc.batch_size";
+
+  /** The hints set on every created query. */
+  private final Map<String, Object> hints = new LinkedHashMap<String, Object>();
+
+  /** The flush mode of every created entity manager. {@code null} to keep the default. */
+  private FlushModeType flushMode;
+
+
+  // ---- Methods
+
+  /**
+   * Sets the JDBC fetch size of every created query.
+   *
+   * @param fetchSize the number of rows fetched in one round trip.
+   */
+  void setFetchSize(int fetchSize) {
+    hints.put(FETCH_SIZE_HINT, fetchSize);
+  }
+
+  /**
+   * Sets the timeout of every created query.
+   *
+   * @param timeoutMillis the timeout in milliseconds.
+   */
+  void setQueryTimeout(long timeoutMillis) {
+    hints.put(QUERY_TIMEOUT_HINT, (int) Math.min(timeoutMillis, Integer.MAX_VALUE));
+  }
+
+  /**
+   * Sets whether the entities loaded by every created query are read only.
+   *
+   * @param readOnly {@code true} to load the entities in read only mode.
+   */
+  void setReadOnly(boolean readOnly) {
+    hints.put(READ_ONLY_HINT, readOnly);
+  }
+
+  /**
+   * Sets the flush mode of every created entity manager.
+   *
+   * @param flushMode the flush mode. Must not be {@code null}.
+   */
+  void setFlushMode(FlushModeType flushMode) {
+    checkNotNull(flushMode);
+    this.flushMode = flushMode;
+  }
+
+  /**
+   * Applies the defaults to a newly created entity manager.
+   *
+   * @param em the new entity manager. Must not be {@code null}.
+   * @return the entity manager to hand out. This is a proxy setting the query hints on all
+   *         created queries if any hint has been configured.
+   */
+  EntityManager apply(EntityManager em) {
+    checkNotNull(em);
+    if (null != flushMode) {
+      em.setFlushMode(flushMode);
+    }
+    if (hints.isEmpty()) {
+      return em;
+    }
+    final Object proxy = Proxy.newProxyInstance(QueryDefaults.class.getClassLoader(),
+        new Class<?>[] {EntityManager.class}, new EntityManagerHandler(em));
+    return (EntityManager) proxy;
+  }
+
+  /**
+   * Sets the default hints on the given query.
+   *
+   * @param query the newly created query.
+   */
+  private void applyHints(Query query) {
+    for (Map.Entry<String, Object> hint : hints.entrySet()) {
+      query.setHint(hint.getKey(), hint.getValue());
+    }
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * Invocation handler of the entity manager proxy. Equality of the proxy is based on identity
+   * because the entity managers are used as keys in maps.
+   */
+  private final class EntityManagerHandler implements InvocationHandler {
+
+    private final EntityManager em;
+
+    EntityManagerHandler(EntityManager em) {
+      this.em = em;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      final String name = method.getName();
+      if ("equals".equals(name) && null != args && 1 == args.length) {
+        return proxy == args[0];
+      }
+      if ("hashCode".equals(name) && null == args) {
+        return System.identityHashCode(proxy);
+      }
+      final Object result;
+      try {
+        result = method.invoke(em, args);
+      }
+      catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      if (result instanceof Query && name.startsWith("create")) {
+        applyHints((Query) result);
+      }
+      return result;
+    }
+  }
+
+}
@@ -19,9 +19,16 @@ package com.github.sclassen.guicejpa;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.lang.annotation.Annotation;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.persistence.EntityManager;
 import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceException;
 
 import org.aopalliance.intercept.MethodInterceptor;
 
@@ -32,6 +39,18 @@ import org.aopalliance.intercept.MethodInterceptor;
  */
 class ResourceLocalTxnInterceptor extends AbstractTxnInterceptor {
 
+  // ---- Members
+
+  private static final Logger LOGGER =
+      Logger.getLogger(ResourceLocalTxnInterceptor.class.getName());
+
+  /** Counter for generating unique savepoint names. */
+  private static final AtomicLong SAVEPOINT_COUNTER = new AtomicLong();
+
+  /** Accessor for the JDBC connection. {@code null} if nested transactions use no savepoints. */
+  private final JdbcConnectionAccessor savepointConnectionAccessor;
+
+
   // ---- Constructor
 
   /**
@@ -40,11 +59,21 @@ class ResourceLocalTxnInterceptor extends AbstractTxnInterceptor {
    * @param emProvider the provider for {@link EntityManager}. Must not be {@code null}.
    * @param puAnntoation the annotation of the persistence unit this interceptor belongs to.
    * @param peTranslator the {@link PersistenceExceptionTranslator}. Can be {@code null}.
+   * @param traceListener the listener notified after every outer transaction. Can be {@code null}.
+   * @param synchronization the synchronization notified about every outer transaction.
+   * @param savepointConnectionAccessor the accessor for the JDBC connection used to create
+   *        savepoints for nested transactions. {@code null} if nested transactions should only set
+   *        the rollbackOnly flag.
+   * @param statementCounter the counter for the executed JDBC statements. Can be {@code null}.
    */
   public ResourceLocalTxnInterceptor(EntityManagerProviderImpl emProvider,
-      Class<? extends Annotation> puAnntoation, PersistenceExceptionTranslator<?> peTranslator) {
-    super(emProvider, emProvider, puAnntoation, peTranslator);
+      Class<? extends Annotation> puAnntoation, PersistenceExceptionTranslator<?> peTranslator,
+      TransactionTraceListener traceListener, TransactionSynchronizationImpl synchronization,
+      JdbcConnectionAccessor savepointConnectionAccessor, StatementCounter statementCounter) {
+    super(emProvider, puAnntoation, peTranslator, traceListener, synchronization,
+        statementCounter);
     checkNotNull(emProvider);
+    this.savepointConnectionAccessor = savepointConnectionAccessor;
   }
 
 
@@ -57,6 +86,9 @@ class ResourceLocalTxnInterceptor extends AbstractTxnInterceptor {
   protected TransactionFacade getTransactionFacade(final EntityManager em) {
     final EntityTransaction txn = em.getTransaction();
     if (txn.isActive()) {
+      if (null != savepointConnectionAccessor) {
+        return new SavepointTransaction(txn, em, savepointConnectionAccessor);
+      }
       return new InnerTransaction(txn);
     }
     return new OuterTransaction(txn);
@@ -100,6 +132,104 @@ class ResourceLocalTxnInterceptor extends AbstractTxnInterceptor {
     public void rollback() {
       txn.setRollbackOnly();
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOuter() {
+      return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRollbackOnly() {
+      return txn.isActive() && txn.getRollbackOnly();
+    }
+  }
+
+  /**
+   * TransactionFacade representing an inner (nested) transaction backed by a JDBC savepoint.
+   * Starting the transaction flushes the entity manager and sets a savepoint. Committing releases
+   * the savepoint. A roll back only undoes the work done since the savepoint was set. Because the
+   * persistence context no longer matches the database after such a roll back, the entity manager
+   * is cleared. This means all managed entities become detached.
+   */
+  private static class SavepointTransaction implements TransactionFacade {
+    private final EntityTransaction txn;
+    private final EntityManager em;
+    private final JdbcConnectionAccessor connectionAccessor;
+    private Connection connection;
+    private Savepoint savepoint;
+
+    SavepointTransaction(EntityTransaction txn, EntityManager em,
+        JdbcConnectionAccessor connectionAccessor) {
+      this.txn = txn;
+      this.em = em;
+      this.connectionAccessor = connectionAccessor;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void begin() {
+      em.flush();
+      connection = connectionAccessor.getConnection(em);
+      try {
+        savepoint = connection.setSavepoint("GUICE_JPA_" + SAVEPOINT_COUNTER.incrementAndGet());
+      }
+      catch (SQLException e) {
+        throw new PersistenceException("failed to set savepoint for nested transaction", e);
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void commit() {
+      try {
+        connection.releaseSavepoint(savepoint);
+      }
+      catch (SQLException e) {
+        // the savepoint is released by the database at the end of the transaction anyway
+        LOGGER.log(Level.FINE, "failed to release savepoint of nested transaction", e);
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void rollback() {
+      try {
+        connection.rollback(savepoint);
+      }
+      catch (SQLException e) {
+        txn.setRollbackOnly();
+        throw new PersistenceException("failed to roll back to savepoint of nested transaction", e);
+      }
+      em.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOuter() {
+      return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRollbackOnly() {
+      return txn.isActive() && txn.getRollbackOnly();
+    }
   }
 
   /**
@@ -146,6 +276,22 @@ class ResourceLocalTxnInterceptor extends AbstractTxnInterceptor {
     public void rollback() {
       txn.rollback();
     }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isOuter() {
+      return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRollbackOnly() {
+      return txn.isActive() && txn.getRollbackOnly();
+    }
   }
 
 }
@@ -0,0 +1,95 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+/**
+ * Publishes the results of a query to subscribers on demand.
+ * <p/>
+ * The interfaces follow the contract of the Reactive Streams {@code Publisher},
+ * {@code Subscriber} and {@code Subscription} and can be adapted to them one to one. All signals
+ * to a subscriber are sent serially from a thread of the persistence unit's result stream pool,
+ * starting with {@link Subscriber#onSubscribe(Subscription)}. Results are only loaded when the
+ * subscriber has requested them.
+ *
+ * @param <T> the type of the results.
+ * @author Stephan Classen
+ * @see StreamingQueries
+ */
+public interface ResultPublisher<T> {
+
+  /**
+   * Subscribes to the results. Every subscription executes the query on its own.
+   *
+   * @param subscriber the subscriber. Must not be {@code null}.
+   */
+  void subscribe(Subscriber<? super T> subscriber);
+
+
+  // ---- Inner Classes
+
+  /**
+   * Receives the results of a {@link ResultPublisher}.
+   *
+   * @param <T> the type of the results.
+   */
+  public interface Subscriber<T> {
+
+    /**
+     * Called once before any other signal.
+     *
+     * @param subscription the subscription used to request results or to cancel.
+     */
+    void onSubscribe(Subscription subscription);
+
+    /**
+     * Called for every result. Never called more often than requested.
+     *
+     * @param result the result.
+     */
+    void onNext(T result);
+
+    /**
+     * Called if loading the results failed. No further signals are sent.
+     *
+     * @param e the failure.
+     */
+    void onError(Throwable e);
+
+    /**
+     * Called after the last result. No further signals are sent.
+     */
+    void onComplete();
+  }
+
+  /**
+   * The link between a {@link ResultPublisher} and one of its {@link Subscriber}s.
+   */
+  public interface Subscription {
+
+    /**
+     * Requests further results. Results are loaded page by page as needed.
+     *
+     * @param n the number of additional results. Must be positive.
+     */
+    void request(long n);
+
+    /**
+     * Stops sending results and releases the resources of the subscription.
+     */
+    void cancel();
+  }
+
+}
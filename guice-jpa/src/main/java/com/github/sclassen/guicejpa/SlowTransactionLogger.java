@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link TransactionTraceListener} which logs a warning for every outer transaction which took
+ * longer than a given threshold.
+ *
+ * @author Stephan Classen
+ */
+final class SlowTransactionLogger implements TransactionTraceListener {
+
+  // ---- Members
+
+  private static final Logger LOGGER = Logger.getLogger(SlowTransactionLogger.class.getName());
+
+  /** Transactions taking longer than this are logged. */
+  private final long thresholdNanos;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param thresholdNanos transactions taking longer than this number of nanos are logged.
+   */
+  SlowTransactionLogger(long thresholdNanos) {
+    this.thresholdNanos = thresholdNanos;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void transactionCompleted(TransactionTrace trace) {
+    if (trace.getTotalNanos() > thresholdNanos && LOGGER.isLoggable(Level.WARNING)) {
+      LOGGER.warning(format(trace));
+    }
+  }
+
+  /**
+   * Creates the log message for a slow transaction.
+   *
+   * @param trace the trace of the slow transaction.
+   * @return the log message.
+   */
+  private String format(TransactionTrace trace) {
+    final Method method = trace.getMethod();
+    final Class<? extends Annotation> puAnnotation = trace.getPersistenceUnitAnnotation();
+    final StringBuilder sb = new StringBuilder("slow transaction: ");
+    sb.append(method.getDeclaringClass().getName()).append('.').append(method.getName());
+    sb.append(" on persistence unit ");
+    sb.append(null == puAnnotation ? "<default>" : "@" + puAnnotation.getSimpleName());
+    sb.append(" took ").append(millis(trace.getTotalNanos())).append(" ms");
+    sb.append(" [begin: ").append(millis(trace.getBeginNanos())).append(" ms");
+    sb.append(", method: ").append(millis(trace.getMethodNanos())).append(" ms");
+    sb.append(", commit: ").append(millis(trace.getCommitNanos())).append(" ms");
+    sb.append(", rollback: ").append(millis(trace.getRollbackNanos())).append(" ms");
+    sb.append(", rolled back: ").append(trace.isRolledBack());
+    sb.append(", rollbackOnly set by nested transaction: ").append(trace.isRollbackOnly());
+    if (null != trace.getFailure()) {
+      sb.append(", exception: ").append(trace.getFailure().getClass().getName());
+    }
+    sb.append(']');
+    return sb.toString();
+  }
+
+  private static long millis(long nanos) {
+    return NANOSECONDS.toMillis(nanos);
+  }
+
+}
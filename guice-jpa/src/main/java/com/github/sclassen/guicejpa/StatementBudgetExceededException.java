@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import javax.persistence.PersistenceException;
+
+/**
+ * Thrown if a transactional method executed more JDBC statements than allowed by
+ * {@link Transactional#maxStatements()} and the persistence unit has been configured to fail
+ * in this case.
+ *
+ * @author Stephan Classen
+ * @see PersistenceUnitBuilder#countStatements(boolean, int)
+ */
+public class StatementBudgetExceededException extends PersistenceException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Constructor.
+   *
+   * @param message the detail message.
+   */
+  public StatementBudgetExceededException(String message) {
+    super(message);
+  }
+
+}
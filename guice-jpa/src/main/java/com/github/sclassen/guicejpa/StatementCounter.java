@@ -0,0 +1,272 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Counts the JDBC statements executed by the current thread. The statements are reported by the
+ * {@link JdbcProxy}.
+ * <p/>
+ * Statements are counted per unit of work and per outer transaction. At the end of a unit of
+ * work or an outer transaction a warning is logged if the same statement has been executed
+ * repeatedly with different parameters. This is the typical pattern of N+1 lazy loading.
+ * <p/>
+ * The counter also enforces the statement budget defined by {@link Transactional#maxStatements()}.
+ *
+ * @author Stephan Classen
+ */
+final class StatementCounter {
+
+  // ---- Members
+
+  private static final Logger LOGGER = Logger.getLogger(StatementCounter.class.getName());
+
+  /** Maximal number of distinct statements remembered per unit of work or transaction. */
+  private static final int MAX_DISTINCT_STATEMENTS = 1000;
+
+  /** Maximal number of repeated statements listed in a report. */
+  private static final int MAX_REPORTED_STATEMENTS = 5;
+
+  /** Matches string literals in SQL. */
+  private static final Pattern STRING_LITERAL = Pattern.compile("'(?:[^']|'')*'");
+
+  /** Matches numeric literals in SQL. */
+  private static final Pattern NUMERIC_LITERAL = Pattern.compile("\\b\\d+(?:\\.\\d+)?\\b");
+
+  /** The statistics of the current thread. */
+  private final ThreadLocal<ThreadStatistics> statistics = new ThreadLocal<ThreadStatistics>();
+
+  /** {@code true} if exceeding the statement budget fails the transaction. */
+  private final boolean failIfBudgetExceeded;
+
+  /** Statements executed at least this often in a unit of work or transaction are reported. */
+  private final int repeatedStatementThreshold;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param failIfBudgetExceeded {@code true} if exceeding the statement budget fails the
+   *        transaction. {@code false} if only a warning is logged.
+   * @param repeatedStatementThreshold statements executed at least this often in a unit of work
+   *        or an outer transaction are reported.
+   */
+  StatementCounter(boolean failIfBudgetExceeded, int repeatedStatementThreshold) {
+    this.failIfBudgetExceeded = failIfBudgetExceeded;
+    this.repeatedStatementThreshold = repeatedStatementThreshold;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * Records the execution of a statement by the current thread.
+   *
+   * @param sql the SQL of the statement. May be {@code null} if unknown.
+   * @param prepared {@code true} if the statement is a prepared statement. The parameters of
+   *        other statements are part of the SQL and are removed before comparing statements.
+   */
+  void statementExecuted(String sql, boolean prepared) {
+    final ThreadStatistics stats = statistics.get();
+    if (null == stats) {
+      return;
+    }
+    stats.count++;
+    if (null != sql) {
+      final String key = prepared ? sql : removeLiterals(sql);
+      for (Scope scope : stats.scopes) {
+        scope.statementExecuted(key);
+      }
+    }
+  }
+
+  /**
+   * Starts counting the statements of a unit of work or an outer transaction.
+   *
+   * @param description the description of the scope used in the report.
+   */
+  void beginScope(String description) {
+    ThreadStatistics stats = statistics.get();
+    if (null == stats) {
+      stats = new ThreadStatistics();
+      statistics.set(stats);
+    }
+    stats.scopes.addFirst(new Scope(description, stats.count));
+  }
+
+  /**
+   * Ends the innermost scope and reports statements which have been executed repeatedly.
+   */
+  void endScope() {
+    final ThreadStatistics stats = statistics.get();
+    if (null == stats || stats.scopes.isEmpty()) {
+      return;
+    }
+    final Scope scope = stats.scopes.removeFirst();
+    if (stats.scopes.isEmpty()) {
+      statistics.remove();
+    }
+
+    final List<Entry<String, Integer>> repeated = scope.getRepeatedStatements();
+    if (!repeated.isEmpty() && LOGGER.isLoggable(Level.WARNING)) {
+      LOGGER.warning("repeated statements in " + scope.description + " which executed "
+          + (stats.count - scope.start) + " statements: " + format(repeated));
+    }
+  }
+
+  /**
+   * @return the number of statements executed by the current thread since the outermost scope
+   *         has begun.
+   */
+  long getStatementCount() {
+    final ThreadStatistics stats = statistics.get();
+    return (null == stats) ? 0 : stats.count;
+  }
+
+  /**
+   * Checks the statement budget of a transactional method.
+   *
+   * @param transactional the metadata of the transaction.
+   * @param method the transactional method.
+   * @param start the statement count when the method was called.
+   * @throws StatementBudgetExceededException if the budget has been exceeded and the counter
+   *         is configured to fail.
+   */
+  void checkBudget(Transactional transactional, Method method, long start) {
+    final int budget = transactional.maxStatements();
+    final long executed = getStatementCount() - start;
+    if (budget < 0 || executed <= budget) {
+      return;
+    }
+
+    final StringBuilder sb = new StringBuilder();
+    sb.append(method.getDeclaringClass().getName()).append('.').append(method.getName());
+    sb.append(" executed ").append(executed).append(" statements but its budget is ");
+    sb.append(budget);
+    final ThreadStatistics stats = statistics.get();
+    if (null != stats && !stats.scopes.isEmpty()) {
+      final List<Entry<String, Integer>> repeated = stats.scopes.getFirst()
+          .getRepeatedStatements();
+      if (!repeated.isEmpty()) {
+        sb.append(". repeated statements: ").append(format(repeated));
+      }
+    }
+
+    if (failIfBudgetExceeded) {
+      throw new StatementBudgetExceededException(sb.toString());
+    }
+    LOGGER.warning(sb.toString());
+  }
+
+  /**
+   * Replaces the literals in the given SQL with a question mark.
+   */
+  private static String removeLiterals(String sql) {
+    final String withoutStrings = STRING_LITERAL.matcher(sql).replaceAll("?");
+    return NUMERIC_LITERAL.matcher(withoutStrings).replaceAll("?");
+  }
+
+  /**
+   * Formats the repeated statements for a report.
+   */
+  private static String format(List<Entry<String, Integer>> repeated) {
+    final StringBuilder sb = new StringBuilder();
+    final int n = Math.min(repeated.size(), MAX_REPORTED_STATEMENTS);
+    for (int i = 0; i < n; i++) {
+      final Entry<String, Integer> e = repeated.get(i);
+      sb.append(i == 0 ? "" : "; ").append(e.getValue()).append("x ").append(e.getKey());
+    }
+    if (repeated.size() > n) {
+      sb.append("; ...");
+    }
+    return sb.toString();
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * The statistics of a thread.
+   */
+  private static final class ThreadStatistics {
+
+    /** Number of statements executed since the outermost scope has begun. */
+    private long count = 0;
+
+    /** The active scopes. The innermost scope is the first element. */
+    private final LinkedList<Scope> scopes = new LinkedList<Scope>();
+  }
+
+  /**
+   * A unit of work or an outer transaction in which statements are counted.
+   */
+  private final class Scope {
+
+    private final String description;
+    private final long start;
+    private final Map<String, Integer> executions = new HashMap<String, Integer>();
+
+    Scope(String description, long start) {
+      this.description = description;
+      this.start = start;
+    }
+
+    void statementExecuted(String sql) {
+      final Integer n = executions.get(sql);
+      if (null != n) {
+        executions.put(sql, n + 1);
+      }
+      else if (executions.size() < MAX_DISTINCT_STATEMENTS) {
+        executions.put(sql, 1);
+      }
+    }
+
+    /**
+     * @return the statements executed at least {@link #repeatedStatementThreshold} times.
+     *         The most often executed statement comes first.
+     */
+    List<Entry<String, Integer>> getRepeatedStatements() {
+      final List<Entry<String, Integer>> result = new ArrayList<Entry<String, Integer>>();
+      for (Entry<String, Integer> e : executions.entrySet()) {
+        if (e.getValue() >= repeatedStatementThreshold) {
+          result.add(e);
+        }
+      }
+      Collections.sort(result, new Comparator<Entry<String, Integer>>() {
+        @Override
+        public int compare(Entry<String, Integer> e1, Entry<String, Integer> e2) {
+          return e2.getValue().compareTo(e1.getValue());
+        }
+      });
+      return result;
+    }
+  }
+
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+/**
+ * Streams the results of queries page by page honoring the demand of the consumer.
+ * <p/>
+ * Every subscription to a returned {@link ResultPublisher} runs in its own unit of work on a pool
+ * of daemon threads of the persistence unit. Pages are loaded by setting the first result and the
+ * maximal number of results of the query whenever the subscriber requested more results than are
+ * loaded. The persistence context is cleared after every page so that memory usage is bounded by
+ * the page size. The unit of work is ended when all results have been published, when loading
+ * fails or when the subscription is cancelled.
+ * <p/>
+ * Pages are loaded by separate queries without a surrounding transaction. The query should
+ * therefore define a stable order. This allows to stream large results to slow consumers without
+ * holding all of them in memory and without blocking the thread of the consumer.
+ * <pre>
+ *   streamingQueries.stream(new QueryCreator&lt;Order&gt;() {
+ *     public TypedQuery&lt;Order&gt; createQuery(EntityManager em) {
+ *       return em.createQuery("SELECT o FROM Order o ORDER BY o.id", Order.class);
+ *     }
+ *   }, 500).subscribe(subscriber);
+ * </pre>
+ * An instance of this interface is bound and exposed for every persistence unit. It is thread
+ * save.
+ *
+ * @author Stephan Classen
+ */
+public interface StreamingQueries {
+
+  /**
+   * Creates a publisher for the results of a query.
+   *
+   * @param <T> the type of the results.
+   * @param queryCreator creates the query for every page. Must not be {@code null}.
+   * @param pageSize the number of results loaded at once. Must be positive.
+   * @return the publisher. Never {@code null}.
+   */
+  <T> ResultPublisher<T> stream(QueryCreator<T> queryCreator, int pageSize);
+
+
+  // ---- Inner Classes
+
+  /**
+   * Creates the query whose results are streamed.
+   *
+   * @param <T> the type of the results.
+   */
+  public interface QueryCreator<T> {
+
+    /**
+     * Creates the query. Called once per page. The first result and the maximal number of
+     * results are set by the caller.
+     *
+     * @param em the entity manager of the unit of work of the subscription.
+     * @return the query. Must not be {@code null}.
+     */
+    TypedQuery<T> createQuery(EntityManager em);
+  }
+
+}
@@ -0,0 +1,288 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+
+import com.github.sclassen.guicejpa.ResultPublisher.Subscriber;
+import com.github.sclassen.guicejpa.ResultPublisher.Subscription;
+
+/**
+ * Implementation of {@link StreamingQueries}.
+ * <p/>
+ * The unit of work of a subscription is detached from the threads of the pool between two tasks.
+ * The tasks of a subscription never run concurrently.
+ *
+ * @author Stephan Classen
+ */
+final class StreamingQueriesImpl implements StreamingQueries {
+
+  // ---- Members
+
+  private static final Logger LOGGER = Logger.getLogger(StreamingQueriesImpl.class.getName());
+
+  /** Time after which an idle thread of the pool terminates. */
+  private static final long KEEP_ALIVE_SECONDS = 30;
+
+  /** The provider of the entity managers of the persistence unit. */
+  private final EntityManagerProviderImpl emProvider;
+
+  /** The pool running the subscriptions. */
+  private final Executor pool;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param emProvider the provider of the entity managers of the persistence unit.
+   *        Must not be {@code null}.
+   * @param threads the maximal number of subscriptions loading results at the same time.
+   *        Must be positive.
+   */
+  StreamingQueriesImpl(EntityManagerProviderImpl emProvider, int threads) {
+    checkNotNull(emProvider);
+    checkArgument(threads > 0, "the number of threads must be positive.");
+    this.emProvider = emProvider;
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+        KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new StreamThreadFactory());
+    executor.allowCoreThreadTimeOut(true);
+    this.pool = executor;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public <T> ResultPublisher<T> stream(final QueryCreator<T> queryCreator, final int pageSize) {
+    checkNotNull(queryCreator);
+    checkArgument(pageSize > 0, "the page size must be positive.");
+    return new ResultPublisher<T>() {
+      @Override
+      public void subscribe(Subscriber<? super T> subscriber) {
+        checkNotNull(subscriber);
+        new PagingSubscription<T>(queryCreator, pageSize, subscriber).schedule();
+      }
+    };
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * Subscription loading the results page by page. All signals are sent by {@link #drain()}
+   * which is never executed concurrently.
+   */
+  private final class PagingSubscription<T> implements Subscription, Runnable {
+    private final QueryCreator<T> queryCreator;
+    private final int pageSize;
+    private final Subscriber<? super T> subscriber;
+
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile boolean cancelled;
+    private volatile Throwable invalidRequest;
+
+    // only accessed by drain()
+    private final Deque<T> page = new ArrayDeque<T>();
+    private boolean subscribed;
+    private boolean exhausted;
+    private boolean done;
+    private int offset;
+    private EntityManager em;
+
+    PagingSubscription(QueryCreator<T> queryCreator, int pageSize,
+        Subscriber<? super T> subscriber) {
+      this.queryCreator = queryCreator;
+      this.pageSize = pageSize;
+      this.subscriber = subscriber;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        invalidRequest = new IllegalArgumentException("the number of requested results must be "
+            + "positive but was " + n);
+      }
+      else {
+        long current;
+        long next;
+        do {
+          current = requested.get();
+          next = current + n < 0 ? Long.MAX_VALUE : current + n;
+        }
+        while (!requested.compareAndSet(current, next));
+      }
+      schedule();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancel() {
+      cancelled = true;
+      schedule();
+    }
+
+    void schedule() {
+      if (0 == wip.getAndIncrement()) {
+        pool.execute(this);
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run() {
+      int missed = 1;
+      do {
+        try {
+          drain();
+        }
+        catch (Throwable e) {
+          fail(e);
+        }
+        missed = wip.addAndGet(-missed);
+      }
+      while (0 != missed);
+    }
+
+    private void drain() {
+      if (done) {
+        return;
+      }
+      if (!subscribed) {
+        subscribed = true;
+        subscriber.onSubscribe(this);
+      }
+      while (!done) {
+        if (cancelled) {
+          done = true;
+          endUnitOfWork();
+          return;
+        }
+        if (null != invalidRequest) {
+          fail(invalidRequest);
+          return;
+        }
+        if (page.isEmpty()) {
+          if (exhausted) {
+            done = true;
+            endUnitOfWork();
+            subscriber.onComplete();
+            return;
+          }
+          if (0 == requested.get()) {
+            return;
+          }
+          loadPage();
+          continue;
+        }
+        if (0 == requested.get()) {
+          return;
+        }
+        requested.decrementAndGet();
+        subscriber.onNext(page.poll());
+      }
+    }
+
+    private void loadPage() {
+      if (null == em) {
+        emProvider.begin();
+        em = emProvider.detach();
+      }
+      emProvider.resume(em);
+      try {
+        final List<T> results = queryCreator.createQuery(em)
+            .setFirstResult(offset)
+            .setMaxResults(pageSize)
+            .getResultList();
+        em.clear();
+        page.addAll(results);
+        offset += results.size();
+        exhausted = results.size() < pageSize;
+      }
+      finally {
+        emProvider.suspend();
+      }
+    }
+
+    private void fail(Throwable e) {
+      if (done) {
+        LOGGER.log(Level.WARNING, "subscriber of a result stream failed", e);
+        return;
+      }
+      done = true;
+      page.clear();
+      try {
+        endUnitOfWork();
+      }
+      finally {
+        subscriber.onError(e);
+      }
+    }
+
+    private void endUnitOfWork() {
+      page.clear();
+      if (null != em) {
+        final EntityManager detached = em;
+        em = null;
+        emProvider.endDetached(detached);
+      }
+    }
+  }
+
+  /**
+   * Thread factory for the daemon threads of the pool.
+   */
+  private static final class StreamThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable r) {
+      final Thread t = new Thread(r, "guice-jpa result stream " + count.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+/**
+ * Callback which is executed after a transaction has been committed or rolled back.
+ * See {@link TransactionSynchronization#afterCompletion(TransactionCompletionCallback)}.
+ *
+ * @author Stephan Classen
+ */
+public interface TransactionCompletionCallback {
+
+  /**
+   * Called after the transaction has ended.
+   *
+   * @param committed {@code true} if the transaction has been committed.
+   *        {@code false} if it has been rolled back.
+   */
+  void afterCompletion(boolean committed);
+
+}
@@ -50,4 +50,16 @@ interface TransactionFacade {
    */
   void rollback();
 
+  /**
+   * @return {@code true} if this facade represents the actual (outer) transaction
+   *         {@code false} if it represents a nested transaction.
+   */
+  boolean isOuter();
+
+  /**
+   * @return {@code true} if the actual transaction has been marked as rollbackOnly
+   *         {@code false} otherwise.
+   */
+  boolean isRollbackOnly();
+
 }
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+/**
+ * Executes a {@link TransactionalWork} within a transaction of a persistence unit.
+ * <p/>
+ * This is the programmatic counterpart of @{@link Transactional}. It can be used to run
+ * transactions in objects not created by guice or to limit a transaction to a part of a method.
+ * The rules for starting, joining, committing and rolling back a transaction are the same as for
+ * a method annotated with @{@link Transactional}.
+ * <p/>
+ * A runner is immutable. The methods {@link #rollbackOn(Class...)}, {@link #ignore(Class...)},
+ * {@link #propagation(Propagation)} and {@link #maxStatements(int)} return a new runner with the
+ * changed configuration.
+ * <pre>
+ *   runner.rollbackOn(IOException.class)
+ *       .inTransaction(new TransactionalWork&lt;Void, IOException&gt;() {
+ *         public Void run() throws IOException {
+ *           ...
+ *         }
+ *       });
+ * </pre>
+ * An instance of this interface is bound and exposed for every persistence unit.
+ *
+ * @author Stephan Classen
+ */
+public interface TransactionRunner {
+
+  /**
+   * Executes the given work within a transaction. If a transaction is already active the work
+   * participates in this transaction (depending on the propagation of the runner).
+   * If no unit of work is active a unit of work is started for the duration of the transaction.
+   *
+   * @param <T> the type of the result of the work.
+   * @param <E> the type of the checked exception thrown by the work.
+   * @param work the work to execute. Must not be {@code null}.
+   * @return the result of the work.
+   * @throws E if the work throws an exception.
+   */
+  <T, E extends Exception> T inTransaction(TransactionalWork<T, E> work) throws E;
+
+  /**
+   * Returns a runner which rolls back the transaction on the given exceptions.
+   * Default is {@link RuntimeException}.
+   *
+   * @param exceptions the exceptions to rollback on.
+   * @return the new runner. Never {@code null}.
+   * @see Transactional#rollbackOn()
+   */
+  TransactionRunner rollbackOn(Class<? extends Exception>... exceptions);
+
+  /**
+   * Returns a runner which does not roll back the transaction on the given exceptions.
+   * Use this to exclude subclasses of the exceptions defined in {@link #rollbackOn(Class...)}.
+   * Default is none.
+   *
+   * @param exceptions the exceptions to not rollback on.
+   * @return the new runner. Never {@code null}.
+   * @see Transactional#ignore()
+   */
+  TransactionRunner ignore(Class<? extends Exception>... exceptions);
+
+  /**
+   * Returns a runner using the given propagation. Default is {@link Propagation#REQUIRED}.
+   *
+   * @param propagation the propagation of the transaction.
+   * @return the new runner. Never {@code null}.
+   * @see Transactional#propagation()
+   */
+  TransactionRunner propagation(Propagation propagation);
+
+  /**
+   * Returns a runner with the given statement budget. Default is unlimited.
+   *
+   * @param maxStatements the maximal number of JDBC statements the work may execute.
+   *        A negative value means unlimited.
+   * @return the new runner. Never {@code null}.
+   * @see Transactional#maxStatements()
+   */
+  TransactionRunner maxStatements(int maxStatements);
+
+}
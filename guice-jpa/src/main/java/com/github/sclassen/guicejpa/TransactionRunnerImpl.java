@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.github.sclassen.guicejpa.TransactionalInvoker.Proceed;
+import com.google.common.collect.MapMaker;
+
+/**
+ * Implementation of {@link TransactionRunner}. Uses the transaction interceptor of the
+ * persistence unit to execute the work.
+ *
+ * @author Stephan Classen
+ */
+final class TransactionRunnerImpl implements TransactionRunner {
+
+  // ---- Members
+
+  /** Cache for the run method of the work classes. Reported as source of the transaction. */
+  private static final Map<Class<?>, Method> RUN_METHOD_CACHE = new MapMaker().weakKeys()
+      .makeMap();
+
+  /** The interceptor of the persistence unit. */
+  private final AbstractTxnInterceptor interceptor;
+
+  /** The metadata of the transactions started by this runner. */
+  private final TransactionalImpl transactional;
+
+
+  // ---- Constructors
+
+  /**
+   * Constructor.
+   *
+   * @param interceptor the interceptor of the persistence unit. Must not be {@code null}.
+   */
+  TransactionRunnerImpl(AbstractTxnInterceptor interceptor) {
+    this(interceptor, new TransactionalImpl(defaultRollbackOn(),
+        TransactionRunnerImpl.<Exception>newClassArray(0), Propagation.REQUIRED, -1));
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param interceptor the interceptor of the persistence unit. Must not be {@code null}.
+   * @param transactional the metadata of the transactions. Must not be {@code null}.
+   */
+  private TransactionRunnerImpl(AbstractTxnInterceptor interceptor,
+      TransactionalImpl transactional) {
+    checkNotNull(interceptor);
+    checkNotNull(transactional);
+
+    this.interceptor = interceptor;
+    this.transactional = transactional;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T, E extends Exception> T inTransaction(final TransactionalWork<T, E> work) throws E {
+    checkNotNull(work);
+    try {
+      return (T) interceptor.invoke(transactional, getRunMethod(work), new Proceed() {
+        @Override
+        public Object proceed() throws Throwable {
+          return work.run();
+        }
+      });
+    }
+    catch (RuntimeException e) {
+      throw e;
+    }
+    catch (Error e) {
+      throw e;
+    }
+    catch (Throwable e) {
+      // the work declares to throw only exceptions of type E
+      throw (E) e;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public TransactionRunner rollbackOn(Class<? extends Exception>... exceptions) {
+    checkNotNull(exceptions);
+    return new TransactionRunnerImpl(interceptor, new TransactionalImpl(exceptions.clone(),
+        transactional.ignore, transactional.propagation, transactional.maxStatements));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public TransactionRunner ignore(Class<? extends Exception>... exceptions) {
+    checkNotNull(exceptions);
+    return new TransactionRunnerImpl(interceptor, new TransactionalImpl(transactional.rollbackOn,
+        exceptions.clone(), transactional.propagation, transactional.maxStatements));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public TransactionRunner propagation(Propagation propagation) {
+    checkNotNull(propagation);
+    return new TransactionRunnerImpl(interceptor, new TransactionalImpl(transactional.rollbackOn,
+        transactional.ignore, propagation, transactional.maxStatements));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public TransactionRunner maxStatements(int maxStatements) {
+    return new TransactionRunnerImpl(interceptor, new TransactionalImpl(transactional.rollbackOn,
+        transactional.ignore, transactional.propagation, maxStatements));
+  }
+
+  /**
+   * @return the exceptions causing a rollback by default.
+   */
+  private static Class<? extends Exception>[] defaultRollbackOn() {
+    final Class<? extends Exception>[] result = newClassArray(1);
+    result[0] = RuntimeException.class;
+    return result;
+  }
+
+  /**
+   * Creates a new array of classes. Arrays of a generic type can only be created unchecked.
+   *
+   * @param length the length of the array.
+   * @return the new array.
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> Class<? extends T>[] newClassArray(int length) {
+    return (Class<? extends T>[]) new Class<?>[length];
+  }
+
+  /**
+   * @param work the work.
+   * @return the run method of the class of the work.
+   */
+  private static Method getRunMethod(TransactionalWork<?, ?> work) {
+    final Class<?> type = work.getClass();
+    Method result = RUN_METHOD_CACHE.get(type);
+    if (null == result) {
+      try {
+        result = type.getMethod("run");
+      }
+      catch (NoSuchMethodException e) {
+        throw new IllegalStateException("work does not implement run()", e);
+      }
+      RUN_METHOD_CACHE.put(type, result);
+    }
+    return result;
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * Implementation of the annotation @{@link Transactional} holding the configuration of a
+   * runner.
+   */
+  private static final class TransactionalImpl implements Transactional {
+
+    private final Class<? extends Exception>[] rollbackOn;
+    private final Class<? extends Exception>[] ignore;
+    private final Propagation propagation;
+    private final int maxStatements;
+
+    TransactionalImpl(Class<? extends Exception>[] rollbackOn,
+        Class<? extends Exception>[] ignore, Propagation propagation, int maxStatements) {
+      this.rollbackOn = rollbackOn;
+      this.ignore = ignore;
+      this.propagation = propagation;
+      this.maxStatements = maxStatements;
+    }
+
+    @Override
+    public Class<? extends Annotation> annotationType() {
+      return Transactional.class;
+    }
+
+    @Override
+    public Class<? extends Annotation>[] onUnits() {
+      return newClassArray(0);
+    }
+
+    @Override
+    public Class<? extends Exception>[] rollbackOn() {
+      return rollbackOn.clone();
+    }
+
+    @Override
+    public Class<? extends Exception>[] ignore() {
+      return ignore.clone();
+    }
+
+    @Override
+    public Propagation propagation() {
+      return propagation;
+    }
+
+    @Override
+    public int maxStatements() {
+      return maxStatements;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Transactional)) {
+        return false;
+      }
+      final Transactional other = (Transactional) obj;
+      return Arrays.equals(onUnits(), other.onUnits())
+          && Arrays.equals(rollbackOn, other.rollbackOn())
+          && Arrays.equals(ignore, other.ignore())
+          && propagation == other.propagation()
+          && maxStatements == other.maxStatements();
+    }
+
+    @Override
+    public int hashCode() {
+      // as defined by java.lang.annotation.Annotation
+      return ((127 * "onUnits".hashCode()) ^ Arrays.hashCode(onUnits()))
+          + ((127 * "rollbackOn".hashCode()) ^ Arrays.hashCode(rollbackOn))
+          + ((127 * "ignore".hashCode()) ^ Arrays.hashCode(ignore))
+          + ((127 * "propagation".hashCode()) ^ propagation.hashCode())
+          + ((127 * "maxStatements".hashCode()) ^ maxStatements);
+    }
+
+    @Override
+    public String toString() {
+      return "@" + Transactional.class.getName() + "(onUnits=[], rollbackOn="
+          + Arrays.toString(rollbackOn) + ", ignore=" + Arrays.toString(ignore)
+          + ", propagation=" + propagation + ", maxStatements=" + maxStatements + ")";
+    }
+  }
+
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.ObjectName;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * {@link TransactionTraceListener} which aggregates the outer transactions of a persistence unit
+ * per transactional method.
+ * <p/>
+ * While the persistence service is running the statistics are exposed via JMX.
+ *
+ * @author Stephan Classen
+ */
+final class TransactionStatistics implements TransactionTraceListener,
+    TransactionStatisticsMBean, PersistenceService {
+
+  // ---- Members
+
+  private static final Comparator<MethodStatistics.Snapshot> SLOWEST_FIRST =
+      new Comparator<MethodStatistics.Snapshot>() {
+        @Override
+        public int compare(MethodStatistics.Snapshot o1, MethodStatistics.Snapshot o2) {
+          return compareDescending(o1.getP99Nanos(), o2.getP99Nanos());
+        }
+      };
+
+  private static final Comparator<MethodStatistics.Snapshot> MOST_ROLLBACKS_FIRST =
+      new Comparator<MethodStatistics.Snapshot>() {
+        @Override
+        public int compare(MethodStatistics.Snapshot o1, MethodStatistics.Snapshot o2) {
+          return compareDescending(o1.getRollbacks(), o2.getRollbacks());
+        }
+      };
+
+  private static final Comparator<MethodStatistics.Snapshot> MOST_CALLS_FIRST =
+      new Comparator<MethodStatistics.Snapshot>() {
+        @Override
+        public int compare(MethodStatistics.Snapshot o1, MethodStatistics.Snapshot o2) {
+          return compareDescending(o1.getCalls(), o2.getCalls());
+        }
+      };
+
+  /** Name of the persistence unit used for JMX. */
+  private final String unitName;
+
+  /** The statistics per method. */
+  private final ConcurrentMap<Method, MethodStatistics> methods = new MapMaker().makeMap();
+
+  /** The name under which the statistics are registered with JMX. May be {@code null}. */
+  private ObjectName objectName;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param unitName the name of the persistence unit used for JMX.
+   */
+  TransactionStatistics(String unitName) {
+    checkNotNull(unitName);
+    this.unitName = unitName;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void transactionCompleted(TransactionTrace trace) {
+    getStatistics(trace.getMethod()).record(trace.getTotalNanos(), trace.isRolledBack(),
+        trace.getFailure());
+  }
+
+  /**
+   * @param method the transactional method.
+   * @return the statistics of the given method. Never {@code null}.
+   */
+  MethodStatistics getStatistics(Method method) {
+    MethodStatistics statistics = methods.get(method);
+    if (null == statistics) {
+      final MethodStatistics newStatistics = new MethodStatistics(
+          method.getDeclaringClass().getName() + "." + method.getName());
+      statistics = methods.putIfAbsent(method, newStatistics);
+      if (null == statistics) {
+        statistics = newStatistics;
+      }
+    }
+    return statistics;
+  }
+
+  private static int compareDescending(long a, long b) {
+    return a > b ? -1 : (a == b ? 0 : 1);
+  }
+
+  private String[] list(int n, Comparator<MethodStatistics.Snapshot> order) {
+    // the live statistics change while sorting. Sort snapshots to keep the order consistent.
+    final List<MethodStatistics.Snapshot> all = new ArrayList<MethodStatistics.Snapshot>();
+    for (MethodStatistics statistics : methods.values()) {
+      all.add(statistics.snapshot());
+    }
+    Collections.sort(all, order);
+    final int size = Math.max(0, Math.min(n, all.size()));
+    final String[] result = new String[size];
+    for (int i = 0; i < size; i++) {
+      result[i] = all.get(i).toString();
+    }
+    return result;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getMethodCount() {
+    return methods.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String[] listSlowestMethods(int n) {
+    return list(n, SLOWEST_FIRST);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String[] listMostRolledBackMethods(int n) {
+    return list(n, MOST_ROLLBACKS_FIRST);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String[] listMostFrequentMethods(int n) {
+    return list(n, MOST_CALLS_FIRST);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void resetStatistics() {
+    for (MethodStatistics statistics : methods.values()) {
+      statistics.reset();
+    }
+  }
+
+  /**
+   * Registers the statistics with JMX.
+   */
+  @Override
+  public synchronized void start() {
+    if (isRunning()) {
+      throw new IllegalStateException("TransactionStatistics is already running.");
+    }
+    objectName = MBeanRegistration.register(this, TransactionStatisticsMBean.class,
+        "TransactionStatistics", unitName);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized boolean isRunning() {
+    return null != objectName;
+  }
+
+  /**
+   * Unregisters the statistics from JMX.
+   */
+  @Override
+  public synchronized void stop() {
+    MBeanRegistration.unregister(objectName);
+    objectName = null;
+  }
+
+}
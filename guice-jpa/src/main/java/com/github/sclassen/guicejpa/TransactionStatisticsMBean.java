@@ -0,0 +1,65 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+/**
+ * JMX management interface of the per method statistics of the transactions of a persistence
+ * unit.
+ * <p/>
+ * The statistics are registered with the platform MBean server under the name
+ * {@code com.github.sclassen.guicejpa:type=TransactionStatistics,unit=<annotation>} when the
+ * {@link PersistenceService} of the persistence unit is started.
+ * See {@link PersistenceUnitBuilder#collectTransactionStatistics()}.
+ *
+ * @author Stephan Classen
+ */
+public interface TransactionStatisticsMBean {
+
+  /**
+   * @return the number of methods which started at least one outer transaction.
+   */
+  int getMethodCount();
+
+  /**
+   * Lists the methods with the highest 99th percentile of the transaction duration.
+   *
+   * @param n the maximal number of methods to list.
+   * @return the statistics of the slowest methods, the slowest first.
+   */
+  String[] listSlowestMethods(int n);
+
+  /**
+   * Lists the methods with the most rolled back transactions.
+   *
+   * @param n the maximal number of methods to list.
+   * @return the statistics of the methods, the one with the most rollbacks first.
+   */
+  String[] listMostRolledBackMethods(int n);
+
+  /**
+   * Lists the methods which started the most transactions.
+   *
+   * @param n the maximal number of methods to list.
+   * @return the statistics of the methods, the most frequent first.
+   */
+  String[] listMostFrequentMethods(int n);
+
+  /**
+   * Resets the statistics of all methods.
+   */
+  void resetStatistics();
+
+}
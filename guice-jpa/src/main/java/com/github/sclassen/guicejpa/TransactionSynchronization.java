@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Allows to register callbacks which are executed after the current transaction has ended.
+ * <p/>
+ * Callbacks are bound to the outer transaction started by a method annotated with
+ * @{@link Transactional}. They are executed after this transaction has been committed or rolled
+ * back. This allows to move work like cache invalidation or publishing of messages out of the
+ * transaction and to only do it if the transaction actually committed.
+ * <p/>
+ * Callbacks executed without an {@link Executor} run in the thread which ended the transaction.
+ * At this point the transaction is no longer active but the unit of work is still running.
+ * Exceptions thrown by callbacks are logged and do not affect the outcome of the transaction or
+ * the execution of the other callbacks.
+ * <p/>
+ * The {@link TransactionSynchronization} is bound per persistence unit with the same annotation
+ * as the {@link UnitOfWork} and the {@link EntityManagerProvider}. It is thread save.
+ *
+ * @author Stephan Classen
+ */
+public interface TransactionSynchronization {
+
+  /**
+   * @return {@code true} if the current thread is within a transaction to which callbacks can
+   *         be registered. {@code false} otherwise.
+   */
+  boolean isTransactionActive();
+
+  /**
+   * Registers a callback which is executed after the current transaction has been committed.
+   * The callback is not executed if the transaction is rolled back.
+   *
+   * @param callback the callback. Must not be {@code null}.
+   * @throws IllegalStateException if {@link #isTransactionActive()} returns {@code false}.
+   */
+  void afterCommit(Runnable callback) throws IllegalStateException;
+
+  /**
+   * Registers a callback which is passed to the given executor after the current transaction has
+   * been committed. The callback is not executed if the transaction is rolled back.
+   *
+   * @param callback the callback. Must not be {@code null}.
+   * @param executor the executor which runs the callback. Must not be {@code null}.
+   * @throws IllegalStateException if {@link #isTransactionActive()} returns {@code false}.
+   */
+  void afterCommit(Runnable callback, Executor executor) throws IllegalStateException;
+
+  /**
+   * Registers a callback which is executed after the current transaction has been committed or
+   * rolled back.
+   *
+   * @param callback the callback. Must not be {@code null}.
+   * @throws IllegalStateException if {@link #isTransactionActive()} returns {@code false}.
+   */
+  void afterCompletion(TransactionCompletionCallback callback) throws IllegalStateException;
+
+  /**
+   * Registers a callback which is passed to the given executor after the current transaction has
+   * been committed or rolled back.
+   *
+   * @param callback the callback. Must not be {@code null}.
+   * @param executor the executor which runs the callback. Must not be {@code null}.
+   * @throws IllegalStateException if {@link #isTransactionActive()} returns {@code false}.
+   */
+  void afterCompletion(TransactionCompletionCallback callback, Executor executor)
+    throws IllegalStateException;
+
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of {@link TransactionSynchronization}.
+ * <p/>
+ * The {@link AbstractTxnInterceptor} notifies this class about the start and the end of every
+ * outer transaction. The registered callbacks are stored in a thread local. Outer transactions
+ * may be nested (i.e. a new transaction which suspends the current one) therefore the thread local
+ * holds a stack with the callbacks of every outer transaction.
+ *
+ * @author Stephan Classen
+ */
+final class TransactionSynchronizationImpl implements TransactionSynchronization {
+
+  // ---- Members
+
+  private static final Logger LOGGER =
+      Logger.getLogger(TransactionSynchronizationImpl.class.getName());
+
+  /** Thread local store of the callbacks registered for the current transactions. */
+  private final ThreadLocal<Deque<List<Synchronization>>> synchronizations =
+      new ThreadLocal<Deque<List<Synchronization>>>();
+
+
+  // ---- Methods
+
+  /**
+   * Called after an outer transaction has been started.
+   */
+  void transactionStarted() {
+    Deque<List<Synchronization>> stack = synchronizations.get();
+    if (null == stack) {
+      stack = new ArrayDeque<List<Synchronization>>();
+      synchronizations.set(stack);
+    }
+    stack.push(new ArrayList<Synchronization>());
+  }
+
+  /**
+   * Called after an outer transaction has ended. Executes all registered callbacks.
+   *
+   * @param committed {@code true} if the transaction has been committed.
+   */
+  void transactionCompleted(boolean committed) {
+    transactionCompleted(detachTransaction(), committed);
+  }
+
+  /**
+   * Removes the callbacks of the current outer transaction from the current thread. Used if the
+   * transaction is completed by another thread.
+   *
+   * @return the callbacks to pass to {@link #transactionCompleted(List, boolean)}.
+   */
+  List<?> detachTransaction() {
+    final Deque<List<Synchronization>> stack = synchronizations.get();
+    if (null == stack) {
+      return Collections.emptyList();
+    }
+    final List<Synchronization> callbacks = stack.pop();
+    if (stack.isEmpty()) {
+      synchronizations.remove();
+    }
+    return callbacks;
+  }
+
+  /**
+   * Called after an outer transaction which has been detached from its thread has ended.
+   * Executes the given callbacks.
+   *
+   * @param callbacks the callbacks returned by {@link #detachTransaction()}.
+   * @param committed {@code true} if the transaction has been committed.
+   */
+  void transactionCompleted(List<?> callbacks, boolean committed) {
+    for (Object callback : callbacks) {
+      final Synchronization s = (Synchronization) callback;
+      if (committed || !s.commitOnly) {
+        s.dispatch(committed);
+      }
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean isTransactionActive() {
+    final Deque<List<Synchronization>> stack = synchronizations.get();
+    return null != stack && !stack.isEmpty();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void afterCommit(Runnable callback) {
+    checkNotNull(callback);
+    register(new Synchronization(new CommitCallback(callback), null, true));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void afterCommit(Runnable callback, Executor executor) {
+    checkNotNull(callback);
+    checkNotNull(executor);
+    register(new Synchronization(new CommitCallback(callback), executor, true));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void afterCompletion(TransactionCompletionCallback callback) {
+    checkNotNull(callback);
+    register(new Synchronization(callback, null, false));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void afterCompletion(TransactionCompletionCallback callback, Executor executor) {
+    checkNotNull(callback);
+    checkNotNull(executor);
+    register(new Synchronization(callback, executor, false));
+  }
+
+  private void register(Synchronization synchronization) {
+    if (!isTransactionActive()) {
+      throw new IllegalStateException("no transaction active.");
+    }
+    synchronizations.get().peek().add(synchronization);
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * A registered callback.
+   */
+  private static final class Synchronization {
+    private final TransactionCompletionCallback callback;
+    private final Executor executor;
+    private final boolean commitOnly;
+
+    Synchronization(TransactionCompletionCallback callback, Executor executor, boolean commitOnly) {
+      this.callback = callback;
+      this.executor = executor;
+      this.commitOnly = commitOnly;
+    }
+
+    void dispatch(final boolean committed) {
+      final Runnable task = new Runnable() {
+        @Override
+        public void run() {
+          try {
+            callback.afterCompletion(committed);
+          }
+          catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "transaction synchronization callback failed", e);
+          }
+        }
+      };
+
+      if (null == executor) {
+        task.run();
+        return;
+      }
+
+      try {
+        executor.execute(task);
+      }
+      catch (RejectedExecutionException e) {
+        LOGGER.log(Level.SEVERE, "executor rejected transaction synchronization callback", e);
+      }
+    }
+  }
+
+  /**
+   * Adapter for callbacks which are only executed after commit.
+   */
+  private static final class CommitCallback implements TransactionCompletionCallback {
+    private final Runnable callback;
+
+    CommitCallback(Runnable callback) {
+      this.callback = callback;
+    }
+
+    @Override
+    public void afterCompletion(boolean committed) {
+      callback.run();
+    }
+  }
+
+}
@@ -0,0 +1,202 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+
+/**
+ * Records the time spent in the different phases of an outer transaction.
+ * <p/>
+ * A trace is created by the {@link AbstractTxnInterceptor} when the transaction starts and is
+ * passed to a {@link TransactionTraceListener} after the transaction has ended. Traces are only
+ * created if a listener is registered. An instance is used by a single thread only.
+ *
+ * @author Stephan Classen
+ */
+final class TransactionTrace {
+
+  // ---- Members
+
+  /** The intercepted method. */
+  private final Method method;
+
+  /** Annotation of the persistence unit. May be {@code null}. */
+  private final Class<? extends Annotation> puAnnotation;
+
+  /** Time stamp in nanos at which the trace was started. */
+  private final long startNanos;
+
+  /** Time stamp in nanos at which the last phase ended. */
+  private long markNanos;
+
+  private long beginNanos;
+  private long methodNanos;
+  private long commitNanos;
+  private long rollbackNanos;
+  private long endNanos;
+
+  /** {@code true} if the transaction was marked rollbackOnly when it was committed. */
+  private boolean rollbackOnly;
+
+  /** {@code true} if the transaction has been rolled back. */
+  private boolean rolledBack;
+
+  /** Exception thrown by the intercepted method. May be {@code null}. */
+  private Throwable failure;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param method the intercepted method.
+   * @param puAnnotation the annotation of the persistence unit. May be {@code null}.
+   */
+  TransactionTrace(Method method, Class<? extends Annotation> puAnnotation) {
+    this.method = method;
+    this.puAnnotation = puAnnotation;
+    this.startNanos = System.nanoTime();
+    this.markNanos = startNanos;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * Marks the end of the begin phase.
+   */
+  void beginCompleted() {
+    beginNanos += lap();
+  }
+
+  /**
+   * Marks the end of the invocation of the intercepted method.
+   *
+   * @param e the exception thrown by the method. {@code null} if the method returned normally.
+   */
+  void methodCompleted(Throwable e) {
+    methodNanos += lap();
+    failure = e;
+  }
+
+  /**
+   * Marks the end of the commit phase. This includes flushing the entity manager.
+   *
+   * @param wasRollbackOnly {@code true} if the transaction was marked as rollbackOnly and
+   *        therefore has been rolled back instead of committed.
+   * @param succeeded {@code false} if the commit failed with an exception.
+   */
+  void commitCompleted(boolean wasRollbackOnly, boolean succeeded) {
+    commitNanos += lap();
+    rollbackOnly = wasRollbackOnly;
+    rolledBack = wasRollbackOnly || !succeeded;
+  }
+
+  /**
+   * Marks the end of the rollback phase.
+   */
+  void rollbackCompleted() {
+    rollbackNanos += lap();
+    rolledBack = true;
+  }
+
+  /**
+   * Marks the end of the transaction.
+   */
+  void transactionCompleted() {
+    endNanos = System.nanoTime();
+  }
+
+  private long lap() {
+    final long now = System.nanoTime();
+    final long result = now - markNanos;
+    markNanos = now;
+    return result;
+  }
+
+  /**
+   * @return the intercepted method.
+   */
+  Method getMethod() {
+    return method;
+  }
+
+  /**
+   * @return the annotation of the persistence unit. May be {@code null}.
+   */
+  Class<? extends Annotation> getPersistenceUnitAnnotation() {
+    return puAnnotation;
+  }
+
+  /**
+   * @return the total duration of the transaction in nanos.
+   */
+  long getTotalNanos() {
+    return endNanos - startNanos;
+  }
+
+  /**
+   * @return the time spent starting the transaction in nanos.
+   */
+  long getBeginNanos() {
+    return beginNanos;
+  }
+
+  /**
+   * @return the time spent in the intercepted method in nanos.
+   */
+  long getMethodNanos() {
+    return methodNanos;
+  }
+
+  /**
+   * @return the time spent flushing and committing the transaction in nanos.
+   */
+  long getCommitNanos() {
+    return commitNanos;
+  }
+
+  /**
+   * @return the time spent rolling back the transaction in nanos.
+   */
+  long getRollbackNanos() {
+    return rollbackNanos;
+  }
+
+  /**
+   * @return {@code true} if a nested transaction marked the transaction as rollbackOnly.
+   */
+  boolean isRollbackOnly() {
+    return rollbackOnly;
+  }
+
+  /**
+   * @return {@code true} if the transaction has been rolled back.
+   */
+  boolean isRolledBack() {
+    return rolledBack;
+  }
+
+  /**
+   * @return the exception thrown by the intercepted method. {@code null} if it returned normally.
+   */
+  Throwable getFailure() {
+    return failure;
+  }
+
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+/**
+ * Listener which is notified by the {@link AbstractTxnInterceptor} every time an outer
+ * transaction has ended.
+ *
+ * @author Stephan Classen
+ */
+interface TransactionTraceListener {
+
+  /**
+   * Called after an outer transaction has been committed or rolled back.
+   * Implementations must be thread safe and must not throw exceptions.
+   *
+   * @param trace the trace of the transaction. Never {@code null}.
+   */
+  void transactionCompleted(TransactionTrace trace);
+
+}
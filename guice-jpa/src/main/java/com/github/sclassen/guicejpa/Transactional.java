@@ -33,7 +33,21 @@ import com.google.inject.Provider;
  * This will span a new transaction around the method unless there is already a running transaction.
  * In the case that there is a running transaction no new transaction is started.
  * If a rollback happens for a method which did not start the transaction the already existing
- * transaction will be marked as rollbackOnly.
+ * transaction will be marked as rollbackOnly. If the persistence unit has been configured with
+ * {@link PersistenceUnitBuilder#useSavepointsForNestedTransactions()} only the work of the nested
+ * method is rolled back instead.
+ * <p/>
+ * If the declared return type of a method which starts a resource local transaction and its unit
+ * of work is {@link com.google.common.util.concurrent.ListenableFuture} the transaction is not
+ * completed when the method returns. Instead the transaction and the unit of work are detached
+ * from the calling thread and completed by the thread which completes the returned future. The
+ * transaction is rolled back if the future fails with an exception requiring a rollback and
+ * committed otherwise. The caller receives a future which completes after the transaction has
+ * been completed. While the transaction completes the {@link javax.persistence.EntityManager} is
+ * attached to the completing thread so that callbacks registered with the
+ * {@link TransactionSynchronization} can use it. The asynchronous work may use the
+ * {@link javax.persistence.EntityManager} obtained by the method as long as it is not used by two
+ * threads at the same time.
  * <p/>
  * Guice uses AOP to enhance a method annotated with @{@link Transactional} with a wrapper.
  * This means the @{@link Transactional} only works as expected when:
@@ -69,4 +83,18 @@ public @interface Transactional {
    * the exceptions defined in rollbackOn(). Default is none.
    */
   Class<? extends Exception>[] ignore() default {};
+
+  /**
+   * Defines how the method relates to the transaction of its caller.
+   * Default is {@link Propagation#REQUIRED}.
+   */
+  Propagation propagation() default Propagation.REQUIRED;
+
+  /**
+   * The maximal number of JDBC statements the method may execute including the statements of
+   * nested transactional methods. Statements executed when the transaction is committed are not
+   * counted. Only enforced if statement counting has been enabled for the persistence unit with
+   * {@link PersistenceUnitBuilder#countStatements(boolean, int)}. Default is unlimited.
+   */
+  int maxStatements() default -1;
 }
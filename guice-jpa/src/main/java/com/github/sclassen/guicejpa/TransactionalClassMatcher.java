@@ -0,0 +1,79 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.inject.matcher.AbstractMatcher;
+
+/**
+ * Matcher for the classes which are checked for @{@link Transactional} annotations.
+ * <p/>
+ * Matches all classes located in one of the given packages or their sub packages.
+ * If no packages are given all classes are matched.
+ *
+ * @author Stephan Classen
+ */
+final class TransactionalClassMatcher extends AbstractMatcher<Class<?>> {
+
+  // ---- Members
+
+  /** The names of the packages containing transactional classes. */
+  private final List<String> packageNames;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param packageNames the names of the packages containing transactional classes.
+   */
+  TransactionalClassMatcher(String... packageNames) {
+    this.packageNames = Arrays.asList(packageNames.clone());
+  }
+
+
+  // ---- Methods
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean matches(Class<?> type) {
+    if (packageNames.isEmpty()) {
+      return true;
+    }
+    final Package pkg = type.getPackage();
+    final String name = (pkg == null) ? "" : pkg.getName();
+    for (String packageName : packageNames) {
+      if (name.equals(packageName) || name.startsWith(packageName + ".")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String toString() {
+    return "inPackages(" + packageNames + ")";
+  }
+
+}
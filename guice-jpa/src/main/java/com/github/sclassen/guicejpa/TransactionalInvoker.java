@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.Method;
+import java.util.List;
+
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Runtime support for the transactional wrappers generated by
+ * {@link com.github.sclassen.guicejpa.processor.TransactionalWrapperProcessor}.
+ * <p/>
+ * A generated wrapper overrides every transactional method of its super class and passes the
+ * call to {@link #invoke(Object, Method, Object[], Proceed)}. The invoker applies the transaction
+ * interceptors of all persistence units in the same order as guice AOP would do.
+ * <p/>
+ * The invoker is bound by the {@link PersistenceModule} and can be injected.
+ *
+ * @author Stephan Classen
+ */
+public final class TransactionalInvoker {
+
+  // ---- Members
+
+  /** Suffix appended to the name of a class to obtain the name of its generated wrapper. */
+  public static final String WRAPPER_SUFFIX = "_Transactional";
+
+  /** The transaction interceptors of all persistence units. */
+  private final List<MethodInterceptor> interceptors;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param interceptors the transaction interceptors of all persistence units.
+   *        Must not be {@code null}.
+   */
+  TransactionalInvoker(List<MethodInterceptor> interceptors) {
+    checkNotNull(interceptors);
+    this.interceptors = ImmutableList.copyOf(interceptors);
+  }
+
+
+  // ---- Methods
+
+  /**
+   * Invokes a transactional method of a generated wrapper.
+   *
+   * @param target the wrapper on which the method was called.
+   * @param method the transactional method of the super class of the wrapper.
+   * @param args the arguments passed to the method.
+   * @param proceed calls the original implementation of the method.
+   * @return the result of the original implementation.
+   * @throws Throwable if an exception occurs during the call to the original method.
+   */
+  public Object invoke(Object target, Method method, Object[] args, Proceed proceed)
+    throws Throwable {
+    return new WrapperMethodInvocation(target, method, args, proceed).proceed();
+  }
+
+  /**
+   * Looks up a method in the given class and its super classes. Used by the generated wrappers
+   * to obtain the {@link Method} object of the transactional methods.
+   *
+   * @param type the class in which to search for the method.
+   * @param name the name of the method.
+   * @param parameterTypes the parameter types of the method.
+   * @return the method. Never {@code null}.
+   * @throws IllegalStateException if the method does not exist.
+   */
+  public static Method findMethod(Class<?> type, String name, Class<?>... parameterTypes) {
+    for (Class<?> c = type; null != c; c = c.getSuperclass()) {
+      try {
+        return c.getDeclaredMethod(name, parameterTypes);
+      }
+      catch (NoSuchMethodException e) {
+        // continue with the super class
+      }
+    }
+    throw new IllegalStateException("no method " + name + " found in " + type.getName());
+  }
+
+  /**
+   * Returns the name of the wrapper generated for the given class. Nested classes are flattened
+   * into a top level class in the same package.
+   *
+   * @param type the transactional class.
+   * @return the fully qualified name of the generated wrapper.
+   */
+  public static String getWrapperClassName(Class<?> type) {
+    final String name = type.getName();
+    final int lastDot = name.lastIndexOf('.');
+    final String packagePrefix = name.substring(0, lastDot + 1);
+    return packagePrefix + name.substring(lastDot + 1).replace('$', '_') + WRAPPER_SUFFIX;
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * Calls the original implementation of a transactional method.
+   */
+  public interface Proceed {
+
+    /**
+     * Calls the original implementation of the method.
+     *
+     * @return the result of the original implementation.
+     * @throws Throwable if the original implementation throws an exception.
+     */
+    Object proceed() throws Throwable;
+  }
+
+  /**
+   * {@link MethodInvocation} which passes the call through all transaction interceptors before
+   * calling the original implementation.
+   */
+  private final class WrapperMethodInvocation implements MethodInvocation {
+
+    private final Object target;
+    private final Method method;
+    private final Object[] args;
+    private final Proceed proceed;
+    private int index = 0;
+
+    WrapperMethodInvocation(Object target, Method method, Object[] args, Proceed proceed) {
+      this.target = target;
+      this.method = method;
+      this.args = args;
+      this.proceed = proceed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object proceed() throws Throwable {
+      if (index < interceptors.size()) {
+        return interceptors.get(index++).invoke(this);
+      }
+      return proceed.proceed();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Method getMethod() {
+      return method;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object[] getArguments() {
+      return args;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Object getThis() {
+      return target;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public AccessibleObject getStaticPart() {
+      return method;
+    }
+  }
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.lang.reflect.Method;
+
+import com.google.inject.matcher.AbstractMatcher;
+
+/**
+ * Matcher for the methods which should be intercepted by the transaction interceptors.
+ * <p/>
+ * Synthetic (including bridge) methods and methods annotated with @{@link NonTransactional} are
+ * never matched. If the matcher is used for classes annotated with @{@link Transactional} it also
+ * excludes methods declared by or overriding a method of {@link Object}. Otherwise only methods
+ * annotated with @{@link Transactional} are matched.
+ *
+ * @author Stephan Classen
+ */
+final class TransactionalMethodMatcher extends AbstractMatcher<Method> {
+
+  // ---- Members
+
+  /** {@code true} if the matcher is used for classes annotated with @{@link Transactional}. */
+  private final boolean classLevel;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param classLevel {@code true} if the matcher is used for classes annotated with
+   *        @{@link Transactional}. {@code false} if only methods annotated with
+   *        @{@link Transactional} should match.
+   */
+  TransactionalMethodMatcher(boolean classLevel) {
+    this.classLevel = classLevel;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean matches(Method method) {
+    if (method.isSynthetic() || method.isAnnotationPresent(NonTransactional.class)) {
+      return false;
+    }
+    if (classLevel) {
+      return !isObjectMethod(method);
+    }
+    return method.isAnnotationPresent(Transactional.class);
+  }
+
+  /**
+   * Checks if the given method is declared by or overrides a method of {@link Object}.
+   *
+   * @param method the method to check.
+   * @return {@code true} if the method is declared by or overrides a method of {@link Object}.
+   */
+  private static boolean isObjectMethod(Method method) {
+    if (Object.class == method.getDeclaringClass()) {
+      return true;
+    }
+    try {
+      Object.class.getDeclaredMethod(method.getName(), method.getParameterTypes());
+      return true;
+    }
+    catch (NoSuchMethodException e) {
+      return false;
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String toString() {
+    return classLevel ? "transactionalMethodsOfTransactionalClass()" : "transactionalMethod()";
+  }
+
+}
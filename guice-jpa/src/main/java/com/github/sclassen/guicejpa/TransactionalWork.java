@@ -0,0 +1,38 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+/**
+ * A piece of work which is executed within a transaction by a {@link TransactionRunner}.
+ *
+ * @param <T> the type of the result of the work.
+ * @param <E> the type of the checked exception thrown by the work. Use {@link RuntimeException}
+ *        if the work throws no checked exceptions.
+ *
+ * @author Stephan Classen
+ */
+public interface TransactionalWork<T, E extends Exception> {
+
+  /**
+   * Executes the work. The {@link javax.persistence.EntityManager} of the persistence unit can
+   * be obtained from the {@link EntityManagerProvider}.
+   *
+   * @return the result of the work.
+   * @throws E if the work fails.
+   */
+  T run() throws E;
+
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Drains the active units of work of a persistence unit before it is stopped.
+ * <p/>
+ * When stopped the drainer rejects all new units of work and waits until the active ones have
+ * ended or the timeout has expired. Units of work still active after the timeout are reported.
+ * Only afterwards the other services and the {@link javax.persistence.EntityManagerFactory} of
+ * the persistence unit are stopped. Therefore the drainer must be the last service added to the
+ * {@link PersistenceUnitService}.
+ *
+ * @author Stephan Classen
+ */
+final class UnitOfWorkDrainer implements PersistenceService {
+
+  // ---- Members
+
+  private static final Logger LOGGER = Logger.getLogger(UnitOfWorkDrainer.class.getName());
+
+  /** Name of the persistence unit used for logging. */
+  private final String unitName;
+
+  /** The provider of the entity managers of the units of work. */
+  private final EntityManagerProviderImpl emProvider;
+
+  /** The registry of the active units of work. May be {@code null}. */
+  private final UnitOfWorkRegistry registry;
+
+  /** The maximal time to wait for the active units of work in nanos. */
+  private final long timeoutNanos;
+
+  /** {@code true} if the drainer is running. */
+  private boolean running;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param unitName the name of the persistence unit used for logging.
+   * @param emProvider the provider of the entity managers of the units of work.
+   * @param registry the registry used to report the units of work which did not end in time.
+   *        May be {@code null}.
+   * @param timeoutNanos the maximal time to wait for the active units of work in nanos.
+   */
+  UnitOfWorkDrainer(String unitName, EntityManagerProviderImpl emProvider,
+      UnitOfWorkRegistry registry, long timeoutNanos) {
+    checkNotNull(unitName);
+    checkNotNull(emProvider);
+    checkArgument(timeoutNanos >= 0);
+    this.unitName = unitName;
+    this.emProvider = emProvider;
+    this.registry = registry;
+    this.timeoutNanos = timeoutNanos;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * Admits new units of work.
+   */
+  @Override
+  public synchronized void start() {
+    if (running) {
+      throw new IllegalStateException("UnitOfWorkDrainer is already running.");
+    }
+    emProvider.setAdmitting(true);
+    running = true;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized boolean isRunning() {
+    return running;
+  }
+
+  /**
+   * Rejects new units of work and waits for the active ones to end.
+   */
+  @Override
+  public void stop() {
+    stop(System.nanoTime());
+  }
+
+  /**
+   * Rejects new units of work without waiting for the active ones.
+   */
+  synchronized void rejectUnitsOfWork() {
+    if (running) {
+      emProvider.setAdmitting(false);
+    }
+  }
+
+  /**
+   * Rejects new units of work and waits for the active ones to end. The timeout is measured from
+   * the given time stamp so that several persistence units stopped together share one deadline.
+   *
+   * @param stopNanos the time stamp as returned by {@link System#nanoTime()} at which stopping
+   *        began.
+   */
+  synchronized void stop(long stopNanos) {
+    if (!running) {
+      return;
+    }
+    running = false;
+    emProvider.setAdmitting(false);
+    if (emProvider.awaitEntityManagersClosed(null, stopNanos + timeoutNanos)) {
+      return;
+    }
+
+    final StringBuilder sb = new StringBuilder();
+    sb.append("stopping persistence unit ").append(unitName).append(" while ")
+        .append(emProvider.countOpenEntityManagers(null))
+        .append(" units of work did not end within ")
+        .append(TimeUnit.NANOSECONDS.toMillis(timeoutNanos)).append(" ms.");
+    if (null != registry) {
+      for (String unit : registry.listActiveUnitsOfWork()) {
+        sb.append("\n").append(unit);
+      }
+    }
+    LOGGER.warning(sb.toString());
+  }
+
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * The priority of the units of work begun by a thread. The priority is only relevant for
+ * persistence units which limit the number of concurrent units of work.
+ * See {@link PersistenceUnitBuilder#limitBackgroundUnitsOfWork(int, long,
+ * java.util.concurrent.TimeUnit)}.
+ * <p/>
+ * The priority is a property of the current thread and applies to every unit of work begun by
+ * the thread, including the ones begun implicitly by a method annotated with
+ * &#064;{@link Transactional}.
+ * <pre>
+ *   final UnitOfWorkPriority previous = UnitOfWorkPriority.setCurrent(BACKGROUND);
+ *   try {
+ *     ...
+ *   }
+ *   finally {
+ *     UnitOfWorkPriority.setCurrent(previous);
+ *   }
+ * </pre>
+ *
+ * @author Stephan Classen
+ */
+public enum UnitOfWorkPriority {
+
+  /**
+   * Work a user is waiting for. This is the default.
+   */
+  INTERACTIVE,
+
+  /**
+   * Batch jobs and other work nobody is waiting for. Background units of work are limited to a
+   * smaller quota and are held back while interactive units of work have to wait for admission.
+   */
+  BACKGROUND;
+
+  /** The priority of the current thread. Not set for {@link #INTERACTIVE}. */
+  private static final ThreadLocal<UnitOfWorkPriority> CURRENT =
+      new ThreadLocal<UnitOfWorkPriority>();
+
+  /**
+   * @return the priority of the units of work begun by the current thread. Never {@code null}.
+   */
+  public static UnitOfWorkPriority getCurrent() {
+    final UnitOfWorkPriority priority = CURRENT.get();
+    return null == priority ? INTERACTIVE : priority;
+  }
+
+  /**
+   * Sets the priority of the units of work begun by the current thread. Units of work which are
+   * already active are not affected.
+   *
+   * @param priority the new priority. Must not be {@code null}.
+   * @return the previous priority of the current thread. Never {@code null}.
+   */
+  public static UnitOfWorkPriority setCurrent(UnitOfWorkPriority priority) {
+    checkNotNull(priority);
+    final UnitOfWorkPriority previous = getCurrent();
+    if (INTERACTIVE == priority) {
+      CURRENT.remove();
+    }
+    else {
+      CURRENT.set(priority);
+    }
+    return previous;
+  }
+
+}
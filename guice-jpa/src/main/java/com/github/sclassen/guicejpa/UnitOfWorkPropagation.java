@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Propagates the unit of work of a persistence unit to tasks executed by other threads.
+ * <p/>
+ * The unit of work is bound to the thread which began it. A task passed to a thread pool
+ * therefore has no access to the {@link javax.persistence.EntityManager} of the submitting
+ * thread. The wrappers returned by this interface capture whether a unit of work is active on the
+ * submitting thread. If so, a fresh unit of work is begun on the worker thread before the task is
+ * run and ended reliably afterwards. The {@link UnitOfWorkPriority} of the submitting thread is
+ * propagated as well. If the worker thread already has an active unit of work (i.e. the task
+ * runs on the submitting thread) the task uses it.
+ * <p/>
+ * The task does not share the {@link javax.persistence.EntityManager} or the transaction of the
+ * submitting thread.
+ * <p/>
+ * An instance of this interface is bound and exposed for every persistence unit. It is thread
+ * save.
+ *
+ * @author Stephan Classen
+ */
+public interface UnitOfWorkPropagation {
+
+  /**
+   * Wraps an executor service. The unit of work is captured when a task is submitted.
+   * Shutting down the returned executor service shuts down the given one.
+   *
+   * @param executor the executor service running the tasks. Must not be {@code null}.
+   * @return the wrapping executor service. Never {@code null}.
+   */
+  ExecutorService wrap(ExecutorService executor);
+
+  /**
+   * Wraps a single task. The unit of work is captured when this method is called.
+   *
+   * @param task the task. Must not be {@code null}.
+   * @return the wrapping task. Never {@code null}.
+   */
+  Runnable wrap(Runnable task);
+
+  /**
+   * Wraps a single task. The unit of work is captured when this method is called.
+   *
+   * @param <T> the type of the result of the task.
+   * @param task the task. Must not be {@code null}.
+   * @return the wrapping task. Never {@code null}.
+   */
+  <T> Callable<T> wrap(Callable<T> task);
+
+}
@@ -0,0 +1,241 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Implementation of {@link UnitOfWorkPropagation}.
+ *
+ * @author Stephan Classen
+ */
+final class UnitOfWorkPropagationImpl implements UnitOfWorkPropagation {
+
+  // ---- Members
+
+  /** The unit of work of the persistence unit. */
+  private final UnitOfWork unitOfWork;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param unitOfWork the unit of work of the persistence unit. Must not be {@code null}.
+   */
+  UnitOfWorkPropagationImpl(UnitOfWork unitOfWork) {
+    checkNotNull(unitOfWork);
+    this.unitOfWork = unitOfWork;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public ExecutorService wrap(ExecutorService executor) {
+    checkNotNull(executor);
+    return new PropagatingExecutorService(executor);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Runnable wrap(final Runnable task) {
+    checkNotNull(task);
+    final Context context = new Context();
+    return new Runnable() {
+      @Override
+      public void run() {
+        final UnitOfWorkPriority previous = UnitOfWorkPriority.setCurrent(context.priority);
+        try {
+          final boolean weStartedTheUnitOfWork = context.beginUnitOfWork();
+          try {
+            task.run();
+          }
+          finally {
+            if (weStartedTheUnitOfWork) {
+              unitOfWork.end();
+            }
+          }
+        }
+        finally {
+          UnitOfWorkPriority.setCurrent(previous);
+        }
+      }
+    };
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public <T> Callable<T> wrap(final Callable<T> task) {
+    checkNotNull(task);
+    final Context context = new Context();
+    return new Callable<T>() {
+      @Override
+      public T call() throws Exception {
+        final UnitOfWorkPriority previous = UnitOfWorkPriority.setCurrent(context.priority);
+        try {
+          final boolean weStartedTheUnitOfWork = context.beginUnitOfWork();
+          try {
+            return task.call();
+          }
+          finally {
+            if (weStartedTheUnitOfWork) {
+              unitOfWork.end();
+            }
+          }
+        }
+        finally {
+          UnitOfWorkPriority.setCurrent(previous);
+        }
+      }
+    };
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * The state of the submitting thread which is propagated to the worker thread.
+   */
+  private final class Context {
+    private final boolean unitOfWorkActive = unitOfWork.isActive();
+    private final UnitOfWorkPriority priority = UnitOfWorkPriority.getCurrent();
+
+    /**
+     * Begins a unit of work on the current thread if one was active on the submitting thread
+     * and none is active on the current thread.
+     *
+     * @return {@code true} if a unit of work has been begun.
+     */
+    boolean beginUnitOfWork() {
+      if (!unitOfWorkActive || unitOfWork.isActive()) {
+        return false;
+      }
+      unitOfWork.begin();
+      return true;
+    }
+  }
+
+  /**
+   * Future task running a wrapped task. The future completes only after the propagated unit of
+   * work has ended.
+   */
+  private static final class PropagatingFutureTask<T> extends FutureTask<T> {
+    PropagatingFutureTask(Callable<T> callable) {
+      super(callable);
+    }
+  }
+
+  /**
+   * Executor service which wraps every task before passing it to the delegate. Submitted tasks
+   * are wrapped before the {@link FutureTask} is created so that the future does not complete
+   * before the unit of work of the task has ended.
+   */
+  private final class PropagatingExecutorService extends AbstractExecutorService {
+    private final ExecutorService delegate;
+
+    PropagatingExecutorService(ExecutorService delegate) {
+      this.delegate = delegate;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void execute(Runnable command) {
+      if (command instanceof PropagatingFutureTask) {
+        delegate.execute(command);
+      }
+      else {
+        delegate.execute(wrap(command));
+      }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+      return new PropagatingFutureTask<T>(wrap(callable));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor(Runnable runnable, T value) {
+      return new PropagatingFutureTask<T>(wrap(Executors.callable(runnable, value)));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void shutdown() {
+      delegate.shutdown();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+      return delegate.shutdownNow();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isShutdown() {
+      return delegate.isShutdown();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isTerminated() {
+      return delegate.isTerminated();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      return delegate.awaitTermination(timeout, unit);
+    }
+  }
+
+}
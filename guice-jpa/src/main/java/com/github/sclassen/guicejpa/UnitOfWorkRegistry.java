@@ -0,0 +1,315 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+import javax.persistence.EntityManager;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * Registry of the active units of work of a persistence unit.
+ * <p/>
+ * The registry records the begin time stamp, the thread and optionally the stack trace of
+ * every call to {@link UnitOfWork#begin()}. Optionally a reaper periodically checks for units of
+ * work which are open longer than a given limit. The reaper logs a warning for such units of
+ * work and can also close their {@link EntityManager}.
+ * <p/>
+ * While the persistence service is running the registry is exposed via JMX.
+ *
+ * @author Stephan Classen
+ */
+final class UnitOfWorkRegistry implements UnitOfWorkRegistryMBean, PersistenceService {
+
+  // ---- Members
+
+  private static final Logger LOGGER = Logger.getLogger(UnitOfWorkRegistry.class.getName());
+
+  /** Name of the persistence unit used for JMX and logging. */
+  private final String unitName;
+
+  /** {@code true} if the stack trace of {@link UnitOfWork#begin()} should be recorded. */
+  private final boolean recordBeginSite;
+
+  /** Units of work older than this are reported by the reaper. Negative if no reaper is used. */
+  private final long maxAgeNanos;
+
+  /** {@code true} if the reaper closes the entity manager of units of work which are too old. */
+  private final boolean closeExpired;
+
+  /** The active units of work. */
+  private final ConcurrentMap<EntityManager, ActiveUnitOfWork> activeUnits =
+      new MapMaker().makeMap();
+
+  /** Notified when the reaper closes an expired unit of work. May be {@code null}. */
+  private volatile ExpirationListener expirationListener;
+
+  /** Executor running the reaper. {@code null} if not started. */
+  private ScheduledExecutorService reaper;
+
+  /** The name under which the registry is registered with JMX. {@code null} if not registered. */
+  private ObjectName objectName;
+
+
+  // ---- Constructor
+
+  /**
+   * Constructor.
+   *
+   * @param unitName the name of the persistence unit used for JMX and logging.
+   * @param recordBeginSite {@code true} if the stack trace of {@link UnitOfWork#begin()} should
+   *        be recorded.
+   * @param maxAgeNanos units of work older than this are reported by the reaper. A negative value
+   *        disables the reaper.
+   * @param closeExpired {@code true} if the reaper should close the {@link EntityManager} of units
+   *        of work which are too old.
+   */
+  UnitOfWorkRegistry(String unitName, boolean recordBeginSite, long maxAgeNanos,
+      boolean closeExpired) {
+    checkNotNull(unitName);
+    this.unitName = unitName;
+    this.recordBeginSite = recordBeginSite;
+    this.maxAgeNanos = maxAgeNanos;
+    this.closeExpired = closeExpired;
+  }
+
+
+  // ---- Methods
+
+  /**
+   * Sets the listener which is notified when the reaper closes an expired unit of work.
+   *
+   * @param expirationListener the listener. May be {@code null}.
+   */
+  void setExpirationListener(ExpirationListener expirationListener) {
+    this.expirationListener = expirationListener;
+  }
+
+  /**
+   * Registers a unit of work which has been begun by the current thread.
+   *
+   * @param em the entity manager of the unit of work.
+   */
+  void register(EntityManager em) {
+    final Throwable beginSite = recordBeginSite ? new Throwable("UnitOfWork.begin()") : null;
+    activeUnits.put(em, new ActiveUnitOfWork(Thread.currentThread(), beginSite));
+  }
+
+  /**
+   * Removes a unit of work from the registry.
+   *
+   * @param em the entity manager of the unit of work.
+   */
+  void unregister(EntityManager em) {
+    activeUnits.remove(em);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getActiveUnitOfWorkCount() {
+    return activeUnits.size();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public String[] listActiveUnitsOfWork() {
+    final long now = System.nanoTime();
+    final List<ActiveUnitOfWork> units = new ArrayList<ActiveUnitOfWork>(activeUnits.values());
+    Collections.sort(units, new Comparator<ActiveUnitOfWork>() {
+      @Override
+      public int compare(ActiveUnitOfWork o1, ActiveUnitOfWork o2) {
+        return Long.signum(o1.beginNanos - o2.beginNanos);
+      }
+    });
+
+    final String[] result = new String[units.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = units.get(i).describe(now);
+    }
+    return result;
+  }
+
+  /**
+   * Checks all active units of work and reports the ones which are older than the limit.
+   */
+  void reap() {
+    final long now = System.nanoTime();
+    for (EntityManager em : activeUnits.keySet()) {
+      final ActiveUnitOfWork unit = activeUnits.get(em);
+      if (null == unit || now - unit.beginNanos <= maxAgeNanos) {
+        continue;
+      }
+
+      if (!unit.reported) {
+        unit.reported = true;
+        LOGGER.warning("unit of work on persistence unit " + unitName + " is open for too long: "
+            + unit.describe(now));
+      }
+
+      if (closeExpired) {
+        activeUnits.remove(em);
+        try {
+          if (em.isOpen()) {
+            em.close();
+          }
+        }
+        catch (RuntimeException e) {
+          LOGGER.log(Level.WARNING, "failed to close the entity manager of an expired unit of work",
+              e);
+        }
+        finally {
+          final ExpirationListener listener = expirationListener;
+          if (null != listener) {
+            listener.unitOfWorkClosed(em);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Registers the registry with JMX and starts the reaper.
+   */
+  @Override
+  public synchronized void start() {
+    if (isRunning()) {
+      throw new IllegalStateException("UnitOfWorkRegistry is already running.");
+    }
+
+    registerMBean();
+    if (0 <= maxAgeNanos) {
+      final long period = Math.max(TimeUnit.MILLISECONDS.toNanos(1), maxAgeNanos / 2);
+      reaper = Executors.newSingleThreadScheduledExecutor(new ReaperThreadFactory());
+      reaper.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          reap();
+        }
+      }, period, period, TimeUnit.NANOSECONDS);
+    }
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public synchronized boolean isRunning() {
+    return null != objectName || null != reaper;
+  }
+
+  /**
+   * Unregisters the registry from JMX and stops the reaper.
+   */
+  @Override
+  public synchronized void stop() {
+    if (null != reaper) {
+      reaper.shutdownNow();
+      reaper = null;
+    }
+    unregisterMBean();
+  }
+
+  private void registerMBean() {
+    objectName = MBeanRegistration.register(this, UnitOfWorkRegistryMBean.class,
+        "UnitOfWorkRegistry", unitName);
+  }
+
+  private void unregisterMBean() {
+    MBeanRegistration.unregister(objectName);
+    objectName = null;
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * Listener which is notified when the reaper closes an expired unit of work. The thread which
+   * began the unit of work is not involved and may never end it.
+   */
+  interface ExpirationListener {
+
+    /**
+     * Called after the reaper has closed the entity manager of an expired unit of work.
+     *
+     * @param em the closed entity manager.
+     */
+    void unitOfWorkClosed(EntityManager em);
+  }
+
+  /**
+   * Information about an active unit of work.
+   */
+  private static final class ActiveUnitOfWork {
+    private final Thread thread;
+    private final long beginNanos = System.nanoTime();
+    private final long beginMillis = System.currentTimeMillis();
+    private final Throwable beginSite;
+    private volatile boolean reported;
+
+    ActiveUnitOfWork(Thread thread, Throwable beginSite) {
+      this.thread = thread;
+      this.beginSite = beginSite;
+    }
+
+    String describe(long nowNanos) {
+      final StringBuilder sb = new StringBuilder();
+      sb.append("thread: ").append(thread.getName());
+      sb.append(", begun: ").append(new Date(beginMillis));
+      final long ageMillis = TimeUnit.NANOSECONDS.toMillis(nowNanos - beginNanos);
+      sb.append(", age: ").append(ageMillis).append(" ms");
+      if (null != beginSite) {
+        final StringWriter sw = new StringWriter();
+        beginSite.printStackTrace(new PrintWriter(sw));
+        sb.append(", begin site: ").append(sw);
+      }
+      return sb.toString();
+    }
+  }
+
+  /**
+   * Thread factory for the daemon thread of the reaper.
+   */
+  private final class ReaperThreadFactory implements ThreadFactory {
+    @Override
+    public Thread newThread(Runnable r) {
+      final Thread t = new Thread(r, "guice-jpa UnitOfWork reaper (" + unitName + ")");
+      t.setDaemon(true);
+      return t;
+    }
+  }
+
+}
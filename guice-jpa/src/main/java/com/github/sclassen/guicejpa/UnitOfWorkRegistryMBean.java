@@ -0,0 +1,43 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+/**
+ * JMX management interface of the registry of active units of work of a persistence unit.
+ * <p/>
+ * The registry is registered with the platform MBean server under the name
+ * {@code com.github.sclassen.guicejpa:type=UnitOfWorkRegistry,unit=<annotation>} when the
+ * {@link PersistenceService} of the persistence unit is started.
+ * See {@link PersistenceUnitBuilder#trackUnitsOfWork(boolean)}.
+ *
+ * @author Stephan Classen
+ */
+public interface UnitOfWorkRegistryMBean {
+
+  /**
+   * @return the number of currently active units of work.
+   */
+  int getActiveUnitOfWorkCount();
+
+  /**
+   * Lists all currently active units of work. Every entry contains the thread, the time the unit
+   * of work was begun and, if enabled, the stack trace of the call to {@link UnitOfWork#begin()}.
+   *
+   * @return a description of every active unit of work, the oldest first.
+   */
+  String[] listActiveUnitsOfWork();
+
+}
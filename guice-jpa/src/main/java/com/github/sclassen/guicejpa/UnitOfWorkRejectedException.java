@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import javax.persistence.PersistenceException;
+
+/**
+ * Thrown by {@link UnitOfWork#begin()} if the persistence unit limits the number of concurrent
+ * units of work and no unit of work could be admitted within the configured wait timeout.
+ *
+ * @author Stephan Classen
+ * @see PersistenceUnitBuilder#limitConcurrentUnitsOfWork(int, long, java.util.concurrent.TimeUnit)
+ */
+public class UnitOfWorkRejectedException extends PersistenceException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Constructor.
+   *
+   * @param message the detail message.
+   */
+  public UnitOfWorkRejectedException(String message) {
+    super(message);
+  }
+
+}
@@ -0,0 +1,596 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa.processor;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.TypeParameterElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.PrimitiveType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileObject;
+
+/**
+ * Annotation processor generating transactional wrappers as an alternative to guice AOP.
+ * <p/>
+ * For every class annotated with @{@link com.github.sclassen.guicejpa.Transactional} or
+ * containing methods annotated with it a subclass named {@code <ClassName>_Transactional}
+ * is generated in the same package. Nested classes are flattened
+ * (i.e. {@code Outer_Inner_Transactional}). The wrapper overrides the same methods which would
+ * be intercepted by guice AOP and passes the calls to the
+ * {@link com.github.sclassen.guicejpa.TransactionalInvoker}.
+ * <p/>
+ * Classes which can not be subclassed (final, private, non static inner classes, generic classes
+ * or classes without an injectable constructor) are skipped with a warning.
+ * <p/>
+ * The processor is not registered as a service. It must be enabled explicitly when compiling the
+ * transactional classes, i.e. using the javac option
+ * {@code -processor com.github.sclassen.guicejpa.processor.TransactionalWrapperProcessor}.
+ * The generated wrappers are used by calling
+ * {@link com.github.sclassen.guicejpa.PersistenceModule#useGeneratedTransactionalWrappers(Class...)}.
+ *
+ * @author Stephan Classen
+ */
+@SupportedAnnotationTypes(TransactionalWrapperProcessor.TRANSACTIONAL)
+public class TransactionalWrapperProcessor extends AbstractProcessor {
+
+  // ---- Members
+
+  /** Qualified name of the transactional annotation. */
+  static final String TRANSACTIONAL = "com.github.sclassen.guicejpa.Transactional";
+
+  /** Qualified name of the non transactional annotation. */
+  private static final String NON_TRANSACTIONAL = "com.github.sclassen.guicejpa.NonTransactional";
+
+  /** Qualified name of the invoker used by the generated wrappers. */
+  private static final String INVOKER = "com.github.sclassen.guicejpa.TransactionalInvoker";
+
+  /** Suffix of the generated wrappers. Must match TransactionalInvoker.WRAPPER_SUFFIX. */
+  private static final String WRAPPER_SUFFIX = "_Transactional";
+
+  /** Qualified names of the supported inject annotations. */
+  private static final List<String> INJECT_ANNOTATIONS = Collections.unmodifiableList(
+      Arrays.asList("com.google.inject.Inject", "javax.inject.Inject"));
+
+  /** Qualified names of the generated annotation in the order they are looked up. */
+  private static final List<String> GENERATED_ANNOTATIONS = Collections.unmodifiableList(
+      Arrays.asList("javax.annotation.processing.Generated", "javax.annotation.Generated"));
+
+  /** Qualified names of the wrappers generated so far. They inherit @Transactional. */
+  private final Set<String> generatedWrappers = new HashSet<String>();
+
+
+  // ---- Methods
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public SourceVersion getSupportedSourceVersion() {
+    return SourceVersion.latestSupported();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+    final Map<String, TypeElement> types = new LinkedHashMap<String, TypeElement>();
+    for (TypeElement annotation : annotations) {
+      for (Element e : roundEnv.getElementsAnnotatedWith(annotation)) {
+        final TypeElement type = (e instanceof TypeElement)
+            ? (TypeElement) e : (TypeElement) e.getEnclosingElement();
+        final String name = type.getQualifiedName().toString();
+        if (!generatedWrappers.contains(name)) {
+          types.put(name, type);
+        }
+      }
+    }
+
+    for (TypeElement type : types.values()) {
+      if (canBeWrapped(type)) {
+        generateWrapper(type);
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks if a wrapper can be generated for the given class. Emits a warning if not.
+   *
+   * @param type the transactional class.
+   * @return {@code true} if a wrapper can be generated.
+   */
+  private boolean canBeWrapped(TypeElement type) {
+    final Set<Modifier> modifiers = type.getModifiers();
+    String reason = null;
+    if (ElementKind.CLASS != type.getKind()) {
+      reason = "it is not a class";
+    }
+    else if (modifiers.contains(Modifier.FINAL) || modifiers.contains(Modifier.PRIVATE)
+        || modifiers.contains(Modifier.ABSTRACT)) {
+      reason = "it is final, private or abstract";
+    }
+    else if (NestingKind.TOP_LEVEL != type.getNestingKind()
+        && (NestingKind.MEMBER != type.getNestingKind() || !modifiers.contains(Modifier.STATIC))) {
+      reason = "it is an inner class";
+    }
+    else if (!type.getTypeParameters().isEmpty()) {
+      reason = "it is generic";
+    }
+    else if (getWrappedConstructors(type).isEmpty()) {
+      reason = "it has no injectable constructor";
+    }
+
+    if (null == reason) {
+      return true;
+    }
+    processingEnv.getMessager().printMessage(Kind.WARNING,
+        "no transactional wrapper generated for " + type.getQualifiedName() + " because " + reason,
+        type);
+    return false;
+  }
+
+  /**
+   * Returns the constructors to replicate in the wrapper. These are the non private constructors
+   * annotated with an inject annotation or the non private default constructor.
+   *
+   * @param type the transactional class.
+   * @return the constructors to replicate. Empty if the class has no injectable constructor.
+   */
+  private List<ExecutableElement> getWrappedConstructors(TypeElement type) {
+    final List<ExecutableElement> result = new ArrayList<ExecutableElement>();
+    ExecutableElement defaultConstructor = null;
+    for (ExecutableElement c : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+      if (c.getModifiers().contains(Modifier.PRIVATE)) {
+        continue;
+      }
+      if (null != getInjectAnnotation(c)) {
+        result.add(c);
+      }
+      else if (c.getParameters().isEmpty()) {
+        defaultConstructor = c;
+      }
+    }
+    if (result.isEmpty() && null != defaultConstructor) {
+      result.add(defaultConstructor);
+    }
+    return result;
+  }
+
+  /**
+   * @param e the element.
+   * @return the qualified name of the inject annotation present on the element or {@code null}.
+   */
+  private String getInjectAnnotation(Element e) {
+    for (AnnotationMirror a : e.getAnnotationMirrors()) {
+      final String name = getQualifiedName(a);
+      if (INJECT_ANNOTATIONS.contains(name)) {
+        return name;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the methods which are overridden by the wrapper. These are the same methods
+   * which are intercepted by guice AOP.
+   *
+   * @param type the transactional class.
+   * @return the transactional methods.
+   */
+  private List<ExecutableElement> getTransactionalMethods(TypeElement type) {
+    final Elements elements = processingEnv.getElementUtils();
+    final boolean classLevel = isTransactionalClass(type);
+    final PackageElement pkg = elements.getPackageOf(type);
+
+    final List<ExecutableElement> result = new ArrayList<ExecutableElement>();
+    for (ExecutableElement m : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+      final Set<Modifier> modifiers = m.getModifiers();
+      if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.STATIC)
+          || modifiers.contains(Modifier.FINAL) || modifiers.contains(Modifier.ABSTRACT)) {
+        continue;
+      }
+      if (!modifiers.contains(Modifier.PUBLIC) && !modifiers.contains(Modifier.PROTECTED)
+          && !pkg.equals(elements.getPackageOf(m))) {
+        continue;
+      }
+      if (hasAnnotation(m, NON_TRANSACTIONAL)) {
+        continue;
+      }
+      if (classLevel ? !isObjectMethod(m) : hasAnnotation(m, TRANSACTIONAL)) {
+        result.add(m);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @param type the class.
+   * @return {@code true} if the class or one of its super classes is annotated with
+   *         @{@link com.github.sclassen.guicejpa.Transactional}.
+   */
+  private boolean isTransactionalClass(TypeElement type) {
+    for (TypeElement t = type; null != t; t = getSuperclass(t)) {
+      if (hasAnnotation(t, TRANSACTIONAL)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param type the class.
+   * @return the super class or {@code null} if the class has no super class.
+   */
+  private TypeElement getSuperclass(TypeElement type) {
+    final TypeMirror superclass = type.getSuperclass();
+    if (TypeKind.DECLARED != superclass.getKind()) {
+      return null;
+    }
+    return (TypeElement) processingEnv.getTypeUtils().asElement(superclass);
+  }
+
+  /**
+   * @param m the method.
+   * @return {@code true} if the method is declared by or overrides a method of {@link Object}.
+   */
+  private boolean isObjectMethod(ExecutableElement m) {
+    final Elements elements = processingEnv.getElementUtils();
+    final TypeElement object = elements.getTypeElement(Object.class.getName());
+    for (ExecutableElement om : ElementFilter.methodsIn(object.getEnclosedElements())) {
+      if (om.equals(m) || elements.overrides(m, om, (TypeElement) m.getEnclosingElement())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param e the element.
+   * @param annotation the qualified name of the annotation.
+   * @return {@code true} if the element is directly annotated with the given annotation.
+   */
+  private boolean hasAnnotation(Element e, String annotation) {
+    for (AnnotationMirror a : e.getAnnotationMirrors()) {
+      if (annotation.equals(getQualifiedName(a))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @param a the annotation.
+   * @return the qualified name of the annotation type.
+   */
+  private String getQualifiedName(AnnotationMirror a) {
+    return ((TypeElement) a.getAnnotationType().asElement()).getQualifiedName().toString();
+  }
+
+  /**
+   * Generates the wrapper for the given class.
+   *
+   * @param type the transactional class.
+   */
+  private void generateWrapper(TypeElement type) {
+    final Elements elements = processingEnv.getElementUtils();
+    final String packageName = elements.getPackageOf(type).getQualifiedName().toString();
+    final String binaryName = elements.getBinaryName(type).toString();
+    final String simpleName = binaryName.substring(binaryName.lastIndexOf('.') + 1)
+        .replace('$', '_') + WRAPPER_SUFFIX;
+    final String qualifiedName = packageName.length() == 0
+        ? simpleName : packageName + "." + simpleName;
+
+    generatedWrappers.add(qualifiedName);
+    try {
+      final JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+      final PrintWriter out = new PrintWriter(file.openWriter());
+      try {
+        new WrapperWriter(out, type, simpleName).write(packageName);
+      }
+      finally {
+        out.close();
+      }
+    }
+    catch (IOException e) {
+      processingEnv.getMessager().printMessage(Kind.ERROR,
+          "failed to generate transactional wrapper " + qualifiedName + ": " + e, type);
+    }
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * Writes the source code of a wrapper.
+   */
+  private final class WrapperWriter {
+
+    private final PrintWriter out;
+    private final TypeElement type;
+    private final String simpleName;
+    private final String superName;
+
+    WrapperWriter(PrintWriter out, TypeElement type, String simpleName) {
+      this.out = out;
+      this.type = type;
+      this.simpleName = simpleName;
+      this.superName = type.getQualifiedName().toString();
+    }
+
+    void write(String packageName) {
+      final List<ExecutableElement> methods = getTransactionalMethods(type);
+
+      if (packageName.length() > 0) {
+        out.println("package " + packageName + ";");
+        out.println();
+      }
+      out.println("/**");
+      out.println(" * Transactional wrapper of {@link " + superName + "}.");
+      out.println(" * Generated by " + TransactionalWrapperProcessor.class.getName() + ".");
+      out.println(" */");
+      final String generated = getGeneratedAnnotation();
+      if (null != generated) {
+        out.println("@" + generated + "(\"" + TransactionalWrapperProcessor.class.getName()
+            + "\")");
+      }
+      out.println("public class " + simpleName + " extends " + superName + " {");
+      out.println();
+      for (int i = 0; i < methods.size(); i++) {
+        writeMethodField(i, methods.get(i));
+      }
+      out.println();
+      out.println("  private final " + INVOKER + " transactionalInvoker;");
+      for (ExecutableElement c : getWrappedConstructors(type)) {
+        writeConstructor(c);
+      }
+      for (int i = 0; i < methods.size(); i++) {
+        writeMethod(i, methods.get(i));
+      }
+      out.println();
+      out.println("}");
+    }
+
+    /**
+     * @return the qualified name of the generated annotation available to the compiled sources.
+     *         {@code null} if neither is available (i.e. javax.annotation on JDK 11 and later).
+     */
+    private String getGeneratedAnnotation() {
+      final Elements elements = processingEnv.getElementUtils();
+      for (String name : GENERATED_ANNOTATIONS) {
+        if (null != elements.getTypeElement(name)) {
+          return name;
+        }
+      }
+      return null;
+    }
+
+    private void writeMethodField(int index, ExecutableElement m) {
+      final Types types = processingEnv.getTypeUtils();
+      final StringBuilder sb = new StringBuilder();
+      sb.append("  private static final java.lang.reflect.Method METHOD_").append(index)
+          .append(" = ").append(INVOKER).append(".findMethod(").append(superName)
+          .append(".class, \"").append(m.getSimpleName()).append("\"");
+      for (VariableElement p : m.getParameters()) {
+        sb.append(", ").append(types.erasure(p.asType())).append(".class");
+      }
+      sb.append(");");
+      out.println(sb);
+    }
+
+    private void writeConstructor(ExecutableElement c) {
+      final String inject = getInjectAnnotation(c);
+      out.println();
+      out.println("  @" + (null == inject ? INJECT_ANNOTATIONS.get(0) : inject));
+      out.print("  public " + simpleName + "(" + INVOKER + " transactionalInvoker$");
+      for (VariableElement p : c.getParameters()) {
+        out.print(", ");
+        writeAnnotations(p);
+        out.print(p.asType() + " " + p.getSimpleName());
+      }
+      out.print(")");
+      writeThrows(c.getThrownTypes());
+      out.println(" {");
+      out.println("    super(" + joinParameterNames(c) + ");");
+      out.println("    this.transactionalInvoker = transactionalInvoker$;");
+      out.println("  }");
+    }
+
+    private void writeMethod(int index, ExecutableElement m) {
+      final ExecutableType signature = (ExecutableType) processingEnv.getTypeUtils()
+          .asMemberOf((DeclaredType) type.asType(), m);
+      final TypeMirror returnType = signature.getReturnType();
+      final boolean isVoid = TypeKind.VOID == returnType.getKind();
+      final String call = simpleName + ".super." + m.getSimpleName() + "("
+          + joinParameterNames(m) + ")";
+
+      out.println();
+      out.println("  @java.lang.Override");
+      out.println("  @java.lang.SuppressWarnings(\"unchecked\")");
+      out.print("  " + (m.getModifiers().contains(Modifier.PUBLIC) ? "public " : "protected "));
+      writeTypeParameters(m);
+      out.print(returnType + " " + m.getSimpleName() + "(");
+      final List<? extends VariableElement> parameters = m.getParameters();
+      for (int i = 0; i < parameters.size(); i++) {
+        out.print((i > 0 ? ", " : "") + "final " + signature.getParameterTypes().get(i) + " "
+            + parameters.get(i).getSimpleName());
+      }
+      out.print(")");
+      writeThrows(signature.getThrownTypes());
+      out.println(" {");
+
+      out.println("    if (null == transactionalInvoker) {");
+      out.println("      " + (isVoid ? "" : "return ") + call + ";");
+      if (isVoid) {
+        out.println("      return;");
+      }
+      out.println("    }");
+
+      final List<TypeMirror> rethrown = getRethrownExceptions(signature.getThrownTypes());
+      final boolean catchAll = null != rethrown;
+      final String indent = catchAll ? "      " : "    ";
+      if (catchAll) {
+        out.println("    try {");
+      }
+      out.println(indent + (isVoid ? "" : "return (" + boxed(returnType) + ") ")
+          + "transactionalInvoker.invoke(this, METHOD_" + index + ", new java.lang.Object[] {"
+          + joinParameterNames(m) + "},");
+      out.println(indent + "    new " + INVOKER + ".Proceed() {");
+      out.println(indent + "      public java.lang.Object proceed() throws java.lang.Throwable {");
+      if (isVoid) {
+        out.println(indent + "        " + call + ";");
+        out.println(indent + "        return null;");
+      }
+      else {
+        out.println(indent + "        return " + call + ";");
+      }
+      out.println(indent + "      }");
+      out.println(indent + "    });");
+      if (catchAll) {
+        out.println("    }");
+        for (TypeMirror t : rethrown) {
+          out.println("    catch (" + t + " e$) {");
+          out.println("      throw e$;");
+          out.println("    }");
+        }
+        out.println("    catch (java.lang.Throwable e$) {");
+        out.println("      throw new java.lang.reflect.UndeclaredThrowableException(e$);");
+        out.println("    }");
+      }
+      out.println("  }");
+    }
+
+    /**
+     * Returns the exceptions which can be rethrown by the given method. These are the runtime
+     * exceptions, errors and the declared exceptions without duplicates.
+     *
+     * @return the exceptions to rethrow or {@code null} if the method declares
+     *         {@link Throwable} and therefore no exceptions must be caught.
+     */
+    private List<TypeMirror> getRethrownExceptions(List<? extends TypeMirror> thrownTypes) {
+      final Types types = processingEnv.getTypeUtils();
+      final Elements elements = processingEnv.getElementUtils();
+      final List<TypeMirror> result = new ArrayList<TypeMirror>();
+      result.add(elements.getTypeElement(RuntimeException.class.getName()).asType());
+      result.add(elements.getTypeElement(Error.class.getName()).asType());
+
+      final TypeMirror throwable = elements.getTypeElement(Throwable.class.getName()).asType();
+      for (TypeMirror thrown : thrownTypes) {
+        if (types.isSameType(throwable, thrown)) {
+          return null;
+        }
+      }
+      for (TypeMirror thrown : thrownTypes) {
+        if (!isSubtypeOfAny(thrown, result) && !isSubtypeOfAny(thrown, thrownTypes)) {
+          result.add(thrown);
+        }
+      }
+      return result;
+    }
+
+    private boolean isSubtypeOfAny(TypeMirror t, List<? extends TypeMirror> candidates) {
+      final Types types = processingEnv.getTypeUtils();
+      for (TypeMirror c : candidates) {
+        if (!types.isSameType(t, c) && types.isSubtype(t, c)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private String boxed(TypeMirror t) {
+      if (t.getKind().isPrimitive()) {
+        return processingEnv.getTypeUtils().boxedClass((PrimitiveType) t)
+            .getQualifiedName().toString();
+      }
+      return t.toString();
+    }
+
+    private void writeTypeParameters(ExecutableElement m) {
+      if (m.getTypeParameters().isEmpty()) {
+        return;
+      }
+      String separator = "<";
+      for (TypeParameterElement tp : m.getTypeParameters()) {
+        out.print(separator + tp.getSimpleName());
+        String boundSeparator = " extends ";
+        for (TypeMirror bound : tp.getBounds()) {
+          if (!Object.class.getName().equals(bound.toString())) {
+            out.print(boundSeparator + bound);
+            boundSeparator = " & ";
+          }
+        }
+        separator = ", ";
+      }
+      out.print("> ");
+    }
+
+    private void writeThrows(List<? extends TypeMirror> thrownTypes) {
+      String separator = " throws ";
+      for (TypeMirror t : thrownTypes) {
+        out.print(separator + t);
+        separator = ", ";
+      }
+    }
+
+    private void writeAnnotations(VariableElement p) {
+      for (AnnotationMirror a : p.getAnnotationMirrors()) {
+        out.print(a + " ");
+      }
+    }
+
+    private String joinParameterNames(ExecutableElement e) {
+      final StringBuilder sb = new StringBuilder();
+      for (VariableElement p : e.getParameters()) {
+        if (sb.length() > 0) {
+          sb.append(", ");
+        }
+        sb.append(p.getSimpleName());
+      }
+      return sb.toString();
+    }
+  }
+
+}
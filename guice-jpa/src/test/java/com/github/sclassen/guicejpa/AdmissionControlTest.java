@@ -0,0 +1,278 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.persistence.EntityManager;
+
+import junit.framework.TestCase;
+
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+/**
+ * Tests the limit on concurrently active units of work.
+ *
+ * @author Stephan Classen
+ */
+public class AdmissionControlTest extends TestCase {
+
+  private Injector injector;
+  private UnitOfWork unitOfWork;
+  private ExecutorService executor;
+
+  private void createInjector(long timeoutMillis) {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit")
+        .limitConcurrentUnitsOfWork(1, timeoutMillis, TimeUnit.MILLISECONDS);
+    createInjector(pm);
+  }
+
+  private void createInjector(PersistenceModule pm) {
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+    unitOfWork = injector.getInstance(UnitOfWork.class);
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @Override
+  public void tearDown() {
+    UnitOfWorkPriority.setCurrent(UnitOfWorkPriority.INTERACTIVE);
+    if (null != injector) {
+      executor.shutdownNow();
+      unitOfWork.end();
+      injector.getInstance(PersistenceService.class).stop();
+      injector = null;
+    }
+  }
+
+  public void testUnitOfWorkIsRejectedAfterTimeout() throws Exception {
+    // given
+    createInjector(50);
+    unitOfWork.begin();
+
+    // when
+    final Future<Void> future = executor.submit(new BeginAndEnd());
+
+    // then
+    try {
+      future.get();
+      fail("expected UnitOfWorkRejectedException");
+    }
+    catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof UnitOfWorkRejectedException);
+    }
+
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(
+        "com.github.sclassen.guicejpa:type=AdmissionControl,unit=\"default\"");
+    assertEquals(1, server.getAttribute(name, "ActiveUnitOfWorkCount"));
+    assertEquals(1L, server.getAttribute(name, "AdmittedCount"));
+    assertEquals(1L, server.getAttribute(name, "RejectedCount"));
+  }
+
+  public void testWaitingUnitOfWorkIsAdmittedWhenPermitIsReleased() throws Exception {
+    // given
+    createInjector(10000);
+    unitOfWork.begin();
+
+    // when
+    final Future<Void> future = executor.submit(new BeginAndEnd());
+    Thread.sleep(100);
+    assertFalse(future.isDone());
+    unitOfWork.end();
+
+    // then
+    future.get(5, TimeUnit.SECONDS);
+    unitOfWork.begin();
+    assertTrue(unitOfWork.isActive());
+  }
+
+  public void testBackgroundQuotaReservesCapacityForInteractiveUnitsOfWork() throws Exception {
+    // given
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit")
+        .limitConcurrentUnitsOfWork(2, 50, TimeUnit.MILLISECONDS)
+        .limitBackgroundUnitsOfWork(1, -1, TimeUnit.MILLISECONDS);
+    createInjector(pm);
+    UnitOfWorkPriority.setCurrent(UnitOfWorkPriority.BACKGROUND);
+    unitOfWork.begin();
+
+    // when
+    final Future<Void> background =
+        executor.submit(new BeginAndEnd(UnitOfWorkPriority.BACKGROUND));
+    final Future<Void> interactive =
+        executor.submit(new BeginAndEnd(UnitOfWorkPriority.INTERACTIVE));
+
+    // then
+    try {
+      background.get();
+      fail("expected UnitOfWorkRejectedException");
+    }
+    catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof UnitOfWorkRejectedException);
+    }
+    interactive.get();
+  }
+
+  public void testBackgroundUnitsOfWorkAreThrottledWhileInteractiveOnesWait() {
+    // given
+    final AdmissionController controller = new AdmissionController("test", 2,
+        TimeUnit.MILLISECONDS.toNanos(50), 1, 0);
+    controller.release(controller.acquire());
+    assertTrue(controller.isBackgroundThrottled());
+
+    // when
+    UnitOfWorkPriority.setCurrent(UnitOfWorkPriority.BACKGROUND);
+    try {
+      controller.acquire();
+      fail("expected UnitOfWorkRejectedException");
+    }
+    catch (UnitOfWorkRejectedException e) {
+      // expected
+    }
+    finally {
+      UnitOfWorkPriority.setCurrent(UnitOfWorkPriority.INTERACTIVE);
+    }
+
+    // then
+    assertEquals(0, controller.getActiveUnitOfWorkCount());
+    assertEquals(0, controller.getActiveBackgroundUnitOfWorkCount());
+    assertEquals(1L, controller.getRejectedCount());
+  }
+
+  public void testNestedUnitOfWorkOnSameThreadRunsWithinPermit() {
+    // given
+    createInjector(50);
+    final NestingService service = injector.getInstance(NestingService.class);
+
+    // when
+    final EntityManager innerEm = service.outer();
+
+    // then
+    assertFalse(innerEm.isOpen());
+    unitOfWork.begin();
+    assertTrue(unitOfWork.isActive());
+  }
+
+  public void testTaskOfThreadHoldingPermitIsNotExempted() throws Exception {
+    // given
+    createInjector(50);
+    final ExecutorService propagating =
+        injector.getInstance(UnitOfWorkPropagation.class).wrap(executor);
+    unitOfWork.begin();
+
+    // when
+    final Future<Void> future = propagating.submit(new Callable<Void>() {
+      @Override
+      public Void call() {
+        return null;
+      }
+    });
+
+    // then
+    try {
+      future.get();
+      fail("expected UnitOfWorkRejectedException");
+    }
+    catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof UnitOfWorkRejectedException);
+    }
+  }
+
+  public void testUnitOfWorkClosedByReaperReleasesPermit() throws Exception {
+    // given
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit")
+        .limitConcurrentUnitsOfWork(1, 5, TimeUnit.SECONDS)
+        .reapUnitsOfWork(50, TimeUnit.MILLISECONDS, true);
+    createInjector(pm);
+    executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() {
+        unitOfWork.begin();
+        return null;
+      }
+    }).get();
+
+    // when
+    unitOfWork.begin();
+
+    // then
+    assertTrue(unitOfWork.isActive());
+    unitOfWork.end();
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(
+        "com.github.sclassen.guicejpa:type=AdmissionControl,unit=\"default\"");
+    assertEquals(0, server.getAttribute(name, "ActiveUnitOfWorkCount"));
+  }
+
+  public static class NestingService {
+    @Inject
+    private EntityManagerProvider emProvider;
+    @Inject
+    private NestingService self;
+
+    @Transactional
+    public EntityManager outer() {
+      final EntityManager outerEm = emProvider.get();
+      final EntityManager innerEm = self.requiresNew();
+      assertSame(outerEm, emProvider.get());
+      return innerEm;
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public EntityManager requiresNew() {
+      return emProvider.get();
+    }
+  }
+
+  private class BeginAndEnd implements Callable<Void> {
+    private final UnitOfWorkPriority priority;
+
+    BeginAndEnd() {
+      this(UnitOfWorkPriority.INTERACTIVE);
+    }
+
+    BeginAndEnd(UnitOfWorkPriority priority) {
+      this.priority = priority;
+    }
+
+    @Override
+    public Void call() {
+      final UnitOfWorkPriority previous = UnitOfWorkPriority.setCurrent(priority);
+      try {
+        unitOfWork.begin();
+        unitOfWork.end();
+        return null;
+      }
+      finally {
+        UnitOfWorkPriority.setCurrent(previous);
+      }
+    }
+  }
+
+}
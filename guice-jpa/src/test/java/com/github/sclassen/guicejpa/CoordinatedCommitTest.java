@@ -0,0 +1,262 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.lang.reflect.Field;
+import java.util.Properties;
+import java.util.UUID;
+
+import javax.persistence.EntityManager;
+import javax.persistence.RollbackException;
+
+import junit.framework.TestCase;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+
+import com.github.sclassen.guicejpa.testframework.TransactionTestEntity;
+import com.google.inject.BindingAnnotation;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+
+/**
+ * Tests the coordinated commit of transactions spanning several persistence units.
+ *
+ * @author Stephan Classen
+ */
+public class CoordinatedCommitTest extends TestCase {
+
+  private Injector injector;
+  private CoordinatedService service;
+
+  @Override
+  public void setUp() {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit", url("first")).annotatedWith(First.class);
+    pm.addApplicationManagedPersistenceUnit("testUnit", url("second")).annotatedWith(Second.class);
+    pm.coordinateCommits(First.class, Second.class);
+    injector = Guice.createInjector(pm);
+    getPersistenceService().start();
+    service = injector.getInstance(CoordinatedService.class);
+  }
+
+  private PersistenceService getPersistenceService() {
+    return injector.getInstance(Key.get(PersistenceService.class, AllPersistenceUnits.class));
+  }
+
+  private static Properties url(String database) {
+    final Properties properties = new Properties();
+    properties.setProperty("hibernate.connection.url", "jdbc:hsqldb:mem:" + database);
+    return properties;
+  }
+
+  private static Properties dataSource(String database) {
+    final JDBCDataSource dataSource = new JDBCDataSource();
+    dataSource.setDatabase("jdbc:hsqldb:mem:" + database);
+    dataSource.setUser("sa");
+    dataSource.setPassword("sa");
+    final Properties properties = new Properties();
+    properties.put("hibernate.connection.datasource", dataSource);
+    return properties;
+  }
+
+  @Override
+  public void tearDown() {
+    getPersistenceService().stop();
+    injector = null;
+  }
+
+  public void testBothPersistenceUnitsAreCommitted() throws Exception {
+    // when
+    final TransactionTestEntity[] entities = service.persist(null, false);
+
+    // then
+    assertTrue(service.exists(entities[0].getId(), entities[1].getId()));
+    assertEquals(0, service.compensations);
+  }
+
+  public void testBothPersistenceUnitsAreRolledBackIfTheMethodFails() throws Exception {
+    // when
+    try {
+      service.persist(null, true);
+      fail("expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    // then
+    assertFalse(service.existsInFirst(service.lastFirstId));
+    assertEquals(0, service.compensations);
+  }
+
+  public void testCommittedPersistenceUnitIsCompensatedIfALaterCommitFails() throws Exception {
+    // given
+    final TransactionTestEntity existing = new TransactionTestEntity("existing");
+    service.persistInSecond(existing);
+
+    // when
+    try {
+      // the duplicate key is detected when the entity is flushed on commit
+      service.persist(existing.getId(), false);
+      fail("expected RollbackException");
+    }
+    catch (RollbackException e) {
+      // expected
+    }
+
+    // then
+    assertEquals(1, service.compensations);
+    assertFalse(service.existsInFirst(service.lastFirstId));
+  }
+
+  public void testStatementBudgetIsEnforcedForCoordinatedTransactions() {
+    // given
+    getPersistenceService().stop();
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit", dataSource("budgetFirst"))
+        .annotatedWith(First.class).countStatements(true, 3);
+    pm.addApplicationManagedPersistenceUnit("testUnit", dataSource("budgetSecond"))
+        .annotatedWith(Second.class);
+    pm.coordinateCommits(First.class, Second.class);
+    injector = Guice.createInjector(pm);
+    getPersistenceService().start();
+    service = injector.getInstance(CoordinatedService.class);
+
+    // when
+    try {
+      service.persistWithoutBudget();
+      fail("expected StatementBudgetExceededException");
+    }
+    catch (StatementBudgetExceededException e) {
+      // expected
+    }
+
+    // then
+    assertFalse(service.existsInFirst(service.lastFirstId));
+  }
+
+  public void testRegisteringCompensationWithoutCoordinatedTransactionFails() {
+    // given
+    final CompensationRegistry registry = injector.getInstance(CompensationRegistry.class);
+
+    // then
+    assertFalse(registry.isCoordinatedTransactionActive());
+    try {
+      registry.registerCompensation(First.class, new Runnable() {
+        @Override
+        public void run() {
+          // nop
+        }
+      });
+      fail("expected IllegalStateException");
+    }
+    catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+
+  @Retention(RUNTIME)
+  @BindingAnnotation
+  public @interface First {
+  }
+
+  @Retention(RUNTIME)
+  @BindingAnnotation
+  public @interface Second {
+  }
+
+  public static class CoordinatedService {
+
+    int compensations;
+    UUID lastFirstId;
+
+    @Inject
+    @First
+    private EntityManagerProvider first;
+    @Inject
+    @First
+    private TransactionRunner firstRunner;
+    @Inject
+    @Second
+    private EntityManagerProvider second;
+    @Inject
+    private CompensationRegistry registry;
+
+    @Transactional
+    public TransactionTestEntity[] persist(UUID secondId, boolean fail) throws Exception {
+      final TransactionTestEntity a = new TransactionTestEntity("first");
+      final TransactionTestEntity b = new TransactionTestEntity("second");
+      if (null != secondId) {
+        final Field id = TransactionTestEntity.class.getDeclaredField("id");
+        id.setAccessible(true);
+        id.set(b, secondId);
+      }
+      lastFirstId = a.getId();
+      first.get().persist(a);
+      second.get().persist(b);
+      registry.registerCompensation(First.class, new Runnable() {
+        @Override
+        public void run() {
+          compensations++;
+          firstRunner.inTransaction(new TransactionalWork<Void, RuntimeException>() {
+            @Override
+            public Void run() {
+              final EntityManager em = first.get();
+              em.remove(em.find(TransactionTestEntity.class, lastFirstId));
+              return null;
+            }
+          });
+        }
+      });
+      if (fail) {
+        throw new IllegalArgumentException();
+      }
+      return new TransactionTestEntity[] {a, b};
+    }
+
+    @Transactional(maxStatements = 0)
+    public void persistWithoutBudget() {
+      final TransactionTestEntity a = new TransactionTestEntity("first");
+      lastFirstId = a.getId();
+      first.get().persist(a);
+      first.get().flush();
+      second.get().persist(new TransactionTestEntity("second"));
+    }
+
+    @Transactional(onUnits = Second.class)
+    public void persistInSecond(TransactionTestEntity entity) {
+      second.get().persist(entity);
+    }
+
+    @Transactional
+    public boolean exists(UUID firstId, UUID secondId) {
+      return null != first.get().find(TransactionTestEntity.class, firstId)
+          && null != second.get().find(TransactionTestEntity.class, secondId);
+    }
+
+    @Transactional(onUnits = First.class)
+    public boolean existsInFirst(UUID id) {
+      return null != first.get().find(TransactionTestEntity.class, id);
+    }
+  }
+
+}
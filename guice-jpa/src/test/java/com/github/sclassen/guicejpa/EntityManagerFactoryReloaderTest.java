@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManagerFactory;
+
+import junit.framework.TestCase;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Tests replacing the entity manager factory of a running persistence unit.
+ *
+ * @author Stephan Classen
+ */
+public class EntityManagerFactoryReloaderTest extends TestCase {
+
+  private Injector injector;
+  private UnitOfWork unitOfWork;
+  private EntityManagerProvider emProvider;
+  private EntityManagerFactoryReloader reloader;
+  private ExecutorService executor;
+
+  @Override
+  public void setUp() {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit");
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+    unitOfWork = injector.getInstance(UnitOfWork.class);
+    emProvider = injector.getInstance(EntityManagerProvider.class);
+    reloader = injector.getInstance(EntityManagerFactoryReloader.class);
+    executor = Executors.newFixedThreadPool(2);
+  }
+
+  @Override
+  public void tearDown() {
+    executor.shutdownNow();
+    unitOfWork.end();
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testReloadWaitsForActiveUnitsOfWork() throws Exception {
+    // given
+    unitOfWork.begin();
+    final EntityManagerFactory oldEmf = emProvider.get().getEntityManagerFactory();
+
+    // when
+    final Future<Boolean> reload = executor.submit(new Reload(10000));
+    EntityManagerFactory newEmf = oldEmf;
+    final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+    while (oldEmf == newEmf && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+      newEmf = executor.submit(new GetEntityManagerFactory()).get();
+    }
+
+    // then
+    assertNotSame(oldEmf, newEmf);
+    assertFalse(reload.isDone());
+    assertTrue(oldEmf.isOpen());
+
+    // when
+    unitOfWork.end();
+
+    // then
+    assertTrue(reload.get(10, TimeUnit.SECONDS));
+    assertFalse(oldEmf.isOpen());
+    assertTrue(newEmf.isOpen());
+  }
+
+  public void testReloadClosesOldFactoryAfterTimeout() throws Exception {
+    // given
+    unitOfWork.begin();
+    final EntityManagerFactory oldEmf = emProvider.get().getEntityManagerFactory();
+
+    // when
+    final boolean drained = reloader.reload(50, TimeUnit.MILLISECONDS);
+
+    // then
+    assertFalse(drained);
+    assertFalse(oldEmf.isOpen());
+  }
+
+  private class Reload implements Callable<Boolean> {
+    private final long drainTimeoutMillis;
+
+    Reload(long drainTimeoutMillis) {
+      this.drainTimeoutMillis = drainTimeoutMillis;
+    }
+
+    @Override
+    public Boolean call() {
+      return reloader.reload(drainTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private class GetEntityManagerFactory implements Callable<EntityManagerFactory> {
+    @Override
+    public EntityManagerFactory call() {
+      unitOfWork.begin();
+      try {
+        return emProvider.get().getEntityManagerFactory();
+      }
+      finally {
+        unitOfWork.end();
+      }
+    }
+  }
+
+}
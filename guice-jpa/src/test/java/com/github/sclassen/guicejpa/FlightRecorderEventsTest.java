@@ -0,0 +1,167 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Tests the flight recorder events for units of work and transactions. The JFR API is accessed
+ * using reflection. The test does nothing on JVMs without a flight recorder.
+ *
+ * @author Stephan Classen
+ */
+public class FlightRecorderEventsTest extends TestCase {
+
+  private static final String UNIT_OF_WORK = "com.github.sclassen.guicejpa.UnitOfWork";
+  private static final String TRANSACTION = "com.github.sclassen.guicejpa.Transaction";
+
+  private Injector injector;
+
+  @Override
+  public void setUp() {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit");
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+  }
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testNoEventIsBegunWithoutRecording() {
+    assertNull(FlightRecorderEvents.TRANSACTION.begin());
+  }
+
+  public void testEventsAreRecorded() throws Exception {
+    // given
+    final Object recording = startRecording();
+    if (null == recording) {
+      return;
+    }
+
+    // when
+    injector.getInstance(TransactionRunner.class).inTransaction(new NoOp());
+
+    // then
+    final List<String> events = stopRecording(recording);
+    assertTrue(events.toString(), events.contains(UNIT_OF_WORK + " unit=default"));
+    assertTrue(events.toString(), events.contains(TRANSACTION + " unit=default outer=true "
+        + "outcome=committed"));
+  }
+
+  public void testDeferredTransactionReportsItsOutcome() throws Exception {
+    // given
+    final Object recording = startRecording();
+    if (null == recording) {
+      return;
+    }
+    final AsyncService service = injector.getInstance(AsyncService.class);
+    final ListenableFuture<String> result = service.later();
+
+    // when
+    service.future.set("done");
+
+    // then
+    assertEquals("done", result.get());
+    final List<String> events = stopRecording(recording);
+    assertTrue(events.toString(), events.contains(TRANSACTION + " unit=default outer=true "
+        + "outcome=committed"));
+  }
+
+  private Object startRecording() throws Exception {
+    final Class<?> recordingClass;
+    try {
+      recordingClass = Class.forName("jdk.jfr.Recording");
+    }
+    catch (ClassNotFoundException e) {
+      return null;
+    }
+    final Object recording = recordingClass.newInstance();
+    recordingClass.getMethod("enable", String.class).invoke(recording, UNIT_OF_WORK);
+    recordingClass.getMethod("enable", String.class).invoke(recording, TRANSACTION);
+    recordingClass.getMethod("start").invoke(recording);
+    return recording;
+  }
+
+  private List<String> stopRecording(Object recording) throws Exception {
+    final Class<?> recordingClass = recording.getClass();
+    recordingClass.getMethod("stop").invoke(recording);
+    final List<String> events = readEvents(recordingClass, recording);
+    recordingClass.getMethod("close").invoke(recording);
+    return events;
+  }
+
+  private List<String> readEvents(Class<?> recordingClass, Object recording) throws Exception {
+    final File file = File.createTempFile("guice-jpa", ".jfr");
+    try {
+      final Object path = File.class.getMethod("toPath").invoke(file);
+      final Class<?> pathClass = Class.forName("java.nio.file.Path");
+      recordingClass.getMethod("dump", pathClass).invoke(recording, path);
+
+      final Class<?> recordingFile = Class.forName("jdk.jfr.consumer.RecordingFile");
+      final List<?> recordedEvents =
+          (List<?>) recordingFile.getMethod("readAllEvents", pathClass).invoke(null, path);
+      final List<String> result = new ArrayList<String>();
+      for (Object event : recordedEvents) {
+        final Method getValue = event.getClass().getMethod("getValue", String.class);
+        final Object type = event.getClass().getMethod("getEventType").invoke(event);
+        final String name = (String) type.getClass().getMethod("getName").invoke(type);
+        if (UNIT_OF_WORK.equals(name)) {
+          result.add(name + " unit=" + getValue.invoke(event, "unit"));
+        }
+        else if (TRANSACTION.equals(name)) {
+          result.add(name + " unit=" + getValue.invoke(event, "unit")
+              + " outer=" + getValue.invoke(event, "outer")
+              + " outcome=" + getValue.invoke(event, "outcome"));
+        }
+      }
+      return result;
+    }
+    finally {
+      file.delete();
+    }
+  }
+
+  @Transactional
+  public static class AsyncService {
+    final SettableFuture<String> future = SettableFuture.create();
+
+    public ListenableFuture<String> later() {
+      return future;
+    }
+  }
+
+  private static class NoOp implements TransactionalWork<Void, RuntimeException> {
+    @Override
+    public Void run() {
+      return null;
+    }
+  }
+
+}
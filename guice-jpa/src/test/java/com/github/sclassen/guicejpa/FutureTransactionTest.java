@@ -0,0 +1,126 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+
+import javax.persistence.EntityManager;
+
+import junit.framework.TestCase;
+
+import com.github.sclassen.guicejpa.testframework.TransactionTestEntity;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+/**
+ * Tests transactional methods returning a {@link ListenableFuture}.
+ *
+ * @author Stephan Classen
+ */
+public class FutureTransactionTest extends TestCase {
+
+  private Injector injector;
+  private AsyncService service;
+
+  @Override
+  public void setUp() {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit");
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+    service = injector.getInstance(AsyncService.class);
+  }
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testTransactionIsCommittedWhenFutureCompletes() throws Exception {
+    // given
+    final SettableFuture<String> work = SettableFuture.create();
+    final ListenableFuture<String> result = service.persist(work);
+    assertFalse(injector.getInstance(UnitOfWork.class).isActive());
+    assertFalse(result.isDone());
+    assertFalse(service.exists(service.lastId));
+
+    // when
+    work.set("done");
+
+    // then
+    assertEquals("done", result.get());
+    assertTrue(service.exists(service.lastId));
+    assertTrue(service.entityManagerWasAttached);
+  }
+
+  public void testTransactionIsRolledBackWhenFutureFails() throws Exception {
+    // given
+    final SettableFuture<String> work = SettableFuture.create();
+    final ListenableFuture<String> result = service.persist(work);
+
+    // when
+    work.setException(new IllegalArgumentException());
+
+    // then
+    try {
+      result.get();
+      fail("expected ExecutionException");
+    }
+    catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IllegalArgumentException);
+    }
+    assertFalse(service.exists(service.lastId));
+    assertFalse(service.entityManagerWasAttached);
+  }
+
+
+  public static class AsyncService {
+
+    UUID lastId;
+    volatile boolean entityManagerWasAttached;
+
+    @Inject
+    private EntityManagerProvider emProvider;
+    @Inject
+    private TransactionSynchronization sync;
+
+    @Transactional
+    public ListenableFuture<String> persist(ListenableFuture<String> work) {
+      final EntityManager em = emProvider.get();
+      final TransactionTestEntity entity = new TransactionTestEntity("async");
+      lastId = entity.getId();
+      em.persist(entity);
+      sync.afterCommit(new Runnable() {
+        @Override
+        public void run() {
+          entityManagerWasAttached = em == emProvider.get();
+        }
+      });
+      return work;
+    }
+
+    @Transactional
+    public boolean exists(UUID id) {
+      return null != emProvider.get().find(TransactionTestEntity.class, id);
+    }
+  }
+
+}
@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+
+/**
+ * Tests the cached health check of persistence units.
+ *
+ * @author Stephan Classen
+ */
+public class HealthCheckTest extends TestCase {
+
+  private Injector injector;
+
+  private void createInjector(String validationQuery) {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit")
+        .checkHealth(validationQuery, 1, TimeUnit.HOURS);
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+  }
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testHealthyPersistenceUnit() {
+    // given
+    createInjector("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+
+    // when
+    final HealthStatus status = injector.getInstance(PersistenceUnitHealthCheck.class).getStatus();
+    final HealthStatus all = injector.getInstance(
+        Key.get(PersistenceUnitHealthCheck.class, AllPersistenceUnits.class)).getStatus();
+
+    // then
+    assertTrue(status.toString(), status.isHealthy());
+    assertTrue(0 < status.getCheckTimeMillis());
+    assertTrue(0 <= status.getLatencyMillis());
+    assertNull(status.getLastFailure());
+    assertTrue(all.toString(), all.isHealthy());
+  }
+
+  public void testFailingProbeIsReported() {
+    // given
+    createInjector("SELECT 1 FROM NO_SUCH_TABLE");
+
+    // when
+    final HealthStatus status = injector.getInstance(PersistenceUnitHealthCheck.class).getStatus();
+    final HealthStatus all = injector.getInstance(
+        Key.get(PersistenceUnitHealthCheck.class, AllPersistenceUnits.class)).getStatus();
+
+    // then
+    assertFalse(status.isHealthy());
+    assertNotNull(status.getLastFailure());
+    assertFalse(all.isHealthy());
+    assertTrue(all.getLastFailure(), all.getLastFailure().startsWith("default: "));
+  }
+
+  public void testStoppedPersistenceUnitIsNotHealthy() {
+    // given
+    createInjector("SELECT 1 FROM INFORMATION_SCHEMA.SYSTEM_USERS");
+
+    // when
+    injector.getInstance(PersistenceService.class).stop();
+
+    // then
+    assertFalse(injector.getInstance(PersistenceUnitHealthCheck.class).getStatus().isHealthy());
+  }
+
+}
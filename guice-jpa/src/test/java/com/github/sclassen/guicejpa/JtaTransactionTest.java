@@ -0,0 +1,220 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+
+import junit.framework.TestCase;
+
+import com.github.sclassen.guicejpa.testframework.jta.LocalInitialContextFactory;
+import com.github.sclassen.guicejpa.testframework.jta.LocalUserTransaction;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+/**
+ * Tests the interception of methods of a JTA persistence unit using the
+ * {@link LocalUserTransaction}.
+ *
+ * @author Stephan Classen
+ */
+public class JtaTransactionTest extends TestCase {
+
+  private static final String UT_JNDI_NAME = "java:comp/UserTransaction";
+
+  private Injector injector;
+  private LocalUserTransaction ut;
+  private JtaService service;
+
+  @Override
+  public void setUp() {
+    ut = new LocalUserTransaction();
+    LocalInitialContextFactory.install();
+    LocalInitialContextFactory.bind(UT_JNDI_NAME, ut);
+
+    final PersistenceModule pm = new PersistenceModule();
+    pm.setUserTransactionJndiName(UT_JNDI_NAME);
+    pm.addApplicationManagedPersistenceUnit("testUnit").useJtaTransaction();
+    injector = Guice.createInjector(pm, new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(LocalUserTransaction.class).toInstance(ut);
+      }
+    });
+    injector.getInstance(PersistenceService.class).start();
+    service = injector.getInstance(JtaService.class);
+  }
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+    LocalInitialContextFactory.uninstall();
+  }
+
+  public void testTransactionIsCommitted() {
+    // when
+    final int status = service.getStatus();
+
+    // then
+    assertEquals(Status.STATUS_ACTIVE, status);
+    assertEquals(1, ut.getCommitCount());
+    assertEquals(0, ut.getRollbackCount());
+    assertEquals(Status.STATUS_NO_TRANSACTION, ut.getStatus());
+  }
+
+  public void testTransactionIsRolledBackOnException() {
+    // when
+    try {
+      service.fail();
+      fail("expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    // then
+    assertEquals(0, ut.getCommitCount());
+    assertEquals(1, ut.getRollbackCount());
+  }
+
+  public void testFailingNestedTransactionRollsBackOuterTransaction() {
+    // when
+    final int status = service.nestedFailure();
+
+    // then
+    assertEquals(Status.STATUS_MARKED_ROLLBACK, status);
+    assertEquals(0, ut.getCommitCount());
+    assertEquals(1, ut.getRollbackCount());
+  }
+
+  public void testNestedTransactionsWithinUnitOfWorkAreCommittedOnce() {
+    // given
+    final UnitOfWork unitOfWork = injector.getInstance(UnitOfWork.class);
+    unitOfWork.begin();
+
+    // when
+    try {
+      assertEquals(Status.STATUS_ACTIVE, service.nestedSuccess());
+      assertEquals(Status.STATUS_ACTIVE, service.nestedSuccess());
+    }
+    finally {
+      unitOfWork.end();
+    }
+
+    // then
+    assertEquals(2, ut.getCommitCount());
+    assertEquals(0, ut.getRollbackCount());
+  }
+
+  public void testTimedOutTransactionIsRolledBack() {
+    // given
+    ut.setTransactionTimeout(10, TimeUnit.MILLISECONDS);
+
+    // when
+    final int status = service.sleep(50);
+
+    // then
+    assertEquals(Status.STATUS_MARKED_ROLLBACK, status);
+    assertEquals(0, ut.getCommitCount());
+    assertEquals(1, ut.getRollbackCount());
+  }
+
+  public void testCommitOfRollbackOnlyTransactionFails() throws Exception {
+    // given
+    ut.begin();
+    ut.setRollbackOnly();
+
+    // when
+    try {
+      ut.commit();
+      fail("expected RollbackException");
+    }
+    catch (RollbackException e) {
+      // expected
+    }
+
+    // then
+    assertEquals(Status.STATUS_NO_TRANSACTION, ut.getStatus());
+    assertEquals(1, ut.getRollbackCount());
+  }
+
+
+  public static class JtaService {
+
+    @Inject
+    private TransactionRunner runner;
+    @Inject
+    private LocalUserTransaction ut;
+
+    @Transactional
+    public int getStatus() {
+      return ut.getStatus();
+    }
+
+    @Transactional
+    public void fail() {
+      throw new IllegalArgumentException();
+    }
+
+    @Transactional
+    public int nestedFailure() {
+      try {
+        runner.inTransaction(new TransactionalWork<Void, RuntimeException>() {
+          @Override
+          public Void run() {
+            throw new IllegalArgumentException();
+          }
+        });
+      }
+      catch (IllegalArgumentException e) {
+        // expected
+      }
+      return ut.getStatus();
+    }
+
+    @Transactional
+    public int nestedSuccess() {
+      return runner.inTransaction(new TransactionalWork<Integer, RuntimeException>() {
+        @Override
+        public Integer run() {
+          return runner.inTransaction(new TransactionalWork<Integer, RuntimeException>() {
+            @Override
+            public Integer run() {
+              return ut.getStatus();
+            }
+          });
+        }
+      });
+    }
+
+    @Transactional
+    public int sleep(long millis) {
+      try {
+        Thread.sleep(millis);
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      return ut.getStatus();
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import com.github.sclassen.guicejpa.ParallelQueryExecutor.Batch;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Tests the {@link ParallelQueryExecutor}.
+ *
+ * @author Stephan Classen
+ */
+public class ParallelQueryExecutorTest extends TestCase {
+
+  private Injector injector;
+  private UnitOfWork unitOfWork;
+  private EntityManagerProvider emProvider;
+  private ParallelQueryExecutor executor;
+
+  @Override
+  public void setUp() {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit");
+    pm.setParallelQueryThreads(3);
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+    unitOfWork = injector.getInstance(UnitOfWork.class);
+    emProvider = injector.getInstance(EntityManagerProvider.class);
+    executor = injector.getInstance(ParallelQueryExecutor.class);
+  }
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testQueriesRunInParallelInOwnUnitsOfWork() throws Exception {
+    // given
+    final CountDownLatch allRunning = new CountDownLatch(3);
+    final List<Callable<Long>> queries = new ArrayList<Callable<Long>>();
+    for (int i = 0; i < 3; i++) {
+      queries.add(new Callable<Long>() {
+        @Override
+        public Long call() throws Exception {
+          allRunning.countDown();
+          assertTrue(allRunning.await(5, TimeUnit.SECONDS));
+          return (Long) emProvider.get()
+              .createQuery("SELECT COUNT(e) FROM TransactionTestEntity e").getSingleResult();
+        }
+      });
+    }
+
+    // when
+    final List<Long> results = executor.invokeAll(unitOfWork, queries, 10, TimeUnit.SECONDS);
+
+    // then
+    assertEquals(3, results.size());
+    assertEquals(Long.valueOf(0), results.get(0));
+    assertFalse(unitOfWork.isActive());
+  }
+
+  public void testQueriesAreCancelledWhenDeadlineExpires() throws Exception {
+    // given
+    final Batch batch = executor.newBatch(100, TimeUnit.MILLISECONDS);
+    final Future<Object> slow = batch.submit(unitOfWork, new Callable<Object>() {
+      @Override
+      public Object call() throws Exception {
+        Thread.sleep(10000);
+        return null;
+      }
+    });
+
+    // when
+    try {
+      batch.await();
+      fail("expected TimeoutException");
+    }
+    catch (TimeoutException e) {
+      // expected
+    }
+
+    // then
+    assertTrue(slow.isCancelled());
+  }
+
+  public void testFailingQueryIsReported() throws Exception {
+    // given
+    final Batch batch = executor.newBatch(10, TimeUnit.SECONDS);
+    batch.submit(unitOfWork, new Callable<Object>() {
+      @Override
+      public Object call() {
+        throw new IllegalArgumentException();
+      }
+    });
+
+    // when
+    try {
+      batch.await();
+      fail("expected ExecutionException");
+    }
+    catch (ExecutionException e) {
+      // then
+      assertTrue(e.getCause() instanceof IllegalArgumentException);
+    }
+  }
+
+}
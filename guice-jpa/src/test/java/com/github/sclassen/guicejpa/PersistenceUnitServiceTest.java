@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests the life cycle of the services of a persistence unit.
+ *
+ * @author Stephan Classen
+ */
+public class PersistenceUnitServiceTest extends TestCase {
+
+  public void testStartedServicesAreStoppedWhenALaterServiceFailsToStart() {
+    // given
+    final StubService emfService = new StubService(false);
+    final StubService started = new StubService(false);
+    final StubService failing = new StubService(true);
+    final StubService notStarted = new StubService(false);
+    final PersistenceUnitService service = new PersistenceUnitService(emfService);
+    service.add(started);
+    service.add(failing);
+    service.add(notStarted);
+
+    // when
+    try {
+      service.start();
+      fail("expected IllegalStateException");
+    }
+    catch (IllegalStateException e) {
+      // expected
+    }
+
+    // then
+    assertFalse(emfService.isRunning());
+    assertFalse(started.isRunning());
+    assertEquals(1, started.stopCount);
+    assertEquals(0, notStarted.startCount);
+    assertEquals(0, notStarted.stopCount);
+  }
+
+  private static class StubService implements PersistenceService {
+    private final boolean failOnStart;
+    private boolean running;
+    private int startCount;
+    private int stopCount;
+
+    StubService(boolean failOnStart) {
+      this.failOnStart = failOnStart;
+    }
+
+    @Override
+    public void start() {
+      startCount++;
+      if (failOnStart) {
+        throw new IllegalStateException("start failed");
+      }
+      running = true;
+    }
+
+    @Override
+    public boolean isRunning() {
+      return running;
+    }
+
+    @Override
+    public void stop() {
+      stopCount++;
+      running = false;
+    }
+  }
+
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.UUID;
+
+import javax.persistence.EntityManager;
+
+import junit.framework.TestCase;
+
+import com.github.sclassen.guicejpa.testframework.TransactionTestEntity;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+/**
+ * Tests the different {@link Propagation}s of @{@link Transactional}.
+ *
+ * @author Stephan Classen
+ */
+public class PropagationTest extends TestCase {
+
+  private Injector injector;
+
+  @Override
+  public void setUp() {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit");
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+  }
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testRequiresNewCommitsIndependentlyOfOuterTransaction() {
+    // given
+    final PropagatingService service = injector.getInstance(PropagatingService.class);
+
+    // when
+    try {
+      service.outerCallingRequiresNewAndFailing();
+      fail("expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    // then
+    assertFalse(service.exists(service.outerId));
+    assertTrue(service.exists(service.requiresNewId));
+  }
+
+  public void testNotSupportedSuspendsTransaction() {
+    // given
+    final PropagatingService service = injector.getInstance(PropagatingService.class);
+
+    // when
+    service.outerCallingNotSupported();
+
+    // then
+    assertFalse(service.innerTransactionWasActive);
+    assertNotSame(service.outerEm, service.innerEm);
+    assertTrue(service.exists(service.outerId));
+  }
+
+  public void testSupportsWithoutTransaction() {
+    // given
+    final PropagatingService service = injector.getInstance(PropagatingService.class);
+
+    // when
+    service.supports();
+
+    // then
+    assertFalse(service.innerTransactionWasActive);
+    assertFalse(injector.getInstance(UnitOfWork.class).isActive());
+  }
+
+  public void testSupportsJoinsTransaction() {
+    // given
+    final PropagatingService service = injector.getInstance(PropagatingService.class);
+
+    // when
+    service.outerCallingSupports();
+
+    // then
+    assertTrue(service.innerTransactionWasActive);
+    assertSame(service.outerEm, service.innerEm);
+  }
+
+
+  public static class PropagatingService {
+
+    UUID outerId;
+    UUID requiresNewId;
+    EntityManager outerEm;
+    EntityManager innerEm;
+    boolean innerTransactionWasActive;
+
+    @Inject
+    private EntityManagerProvider emProvider;
+    @Inject
+    private PropagatingService self;
+
+    @Transactional
+    public void outerCallingRequiresNewAndFailing() {
+      outerId = store();
+      self.requiresNew();
+      throw new IllegalArgumentException();
+    }
+
+    @Transactional(propagation = Propagation.REQUIRES_NEW)
+    public void requiresNew() {
+      requiresNewId = store();
+    }
+
+    @Transactional
+    public void outerCallingNotSupported() {
+      outerEm = emProvider.get();
+      self.notSupported();
+      assertSame(outerEm, emProvider.get());
+      outerId = store();
+    }
+
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void notSupported() {
+      recordInnerState();
+    }
+
+    @Transactional
+    public void outerCallingSupports() {
+      outerEm = emProvider.get();
+      self.supports();
+    }
+
+    @Transactional(propagation = Propagation.SUPPORTS)
+    public void supports() {
+      recordInnerState();
+    }
+
+    @Transactional
+    public boolean exists(UUID id) {
+      return null != emProvider.get().find(TransactionTestEntity.class, id);
+    }
+
+    private void recordInnerState() {
+      innerEm = emProvider.get();
+      innerTransactionWasActive = innerEm.getTransaction().isActive();
+    }
+
+    private UUID store() {
+      final TransactionTestEntity entity = new TransactionTestEntity();
+      emProvider.get().persist(entity);
+      return entity.getId();
+    }
+  }
+
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.FlushModeType;
+import javax.persistence.Query;
+
+import junit.framework.TestCase;
+
+import com.github.sclassen.guicejpa.testframework.TransactionTestEntity;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+/**
+ * Tests the defaults applied to the entity managers and queries of a persistence unit.
+ *
+ * @author Stephan Classen
+ */
+public class QueryDefaultsTest extends TestCase {
+
+  private Injector injector;
+
+  @Override
+  public void setUp() {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit", new Properties())
+        .defaultFetchSize(50)
+        .defaultQueryTimeout(2, TimeUnit.SECONDS)
+        .readOnlyQueries()
+        .defaultFlushMode(FlushModeType.COMMIT)
+        .jdbcBatchSize(20);
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+  }
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testFlushModeIsSetOnEntityManager() {
+    // given
+    final UnitOfWork unitOfWork = injector.getInstance(UnitOfWork.class);
+    unitOfWork.begin();
+    try {
+      // when
+      final EntityManager em = injector.getInstance(EntityManagerProvider.class).get();
+
+      // then
+      assertEquals(FlushModeType.COMMIT, em.getFlushMode());
+    }
+    finally {
+      unitOfWork.end();
+    }
+  }
+
+  public void testHintsAreSetOnQueries() {
+    // given
+    final UnitOfWork unitOfWork = injector.getInstance(UnitOfWork.class);
+    unitOfWork.begin();
+    try {
+      final EntityManager em = injector.getInstance(EntityManagerProvider.class).get();
+
+      // when
+      final Query query = em.createQuery("SELECT e FROM TransactionTestEntity e");
+
+      // then
+      assertEquals(50, query.getHints().get(QueryDefaults.FETCH_SIZE_HINT));
+      assertEquals(2000, query.getHints().get(QueryDefaults.QUERY_TIMEOUT_HINT));
+      assertEquals(Boolean.TRUE, query.getHints().get(QueryDefaults.READ_ONLY_HINT));
+    }
+    finally {
+      unitOfWork.end();
+    }
+  }
+
+  public void testEntitiesLoadedByQueriesAreReadOnly() {
+    // given
+    final Service service = injector.getInstance(Service.class);
+    final TransactionTestEntity entity = service.persist("original");
+
+    // when
+    service.changeTextOfAll("changed");
+
+    // then
+    assertEquals("original", service.find(entity).getText());
+  }
+
+  public void testJdbcBatchSizeIsPassedToFactory() {
+    // given
+    final UnitOfWork unitOfWork = injector.getInstance(UnitOfWork.class);
+    unitOfWork.begin();
+    try {
+      // when
+      final EntityManager em = injector.getInstance(EntityManagerProvider.class).get();
+
+      // then
+      assertEquals("20", em.getEntityManagerFactory().getProperties()
+          .get(QueryDefaults.JDBC_BATCH_SIZE_PROPERTY));
+    }
+    finally {
+      unitOfWork.end();
+    }
+  }
+
+  public void testJdbcBatchSizeIsNotSupportedForContainerManagedUnits() {
+    // given
+    final PersistenceModule pm = new PersistenceModule();
+    final PersistenceUnitBuilder builder = pm.addContainerManagedPersistenceUnit("emf");
+
+    // when
+    try {
+      builder.jdbcBatchSize(20);
+      fail("expected IllegalStateException");
+    }
+    // then
+    catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+
+  @Transactional
+  public static class Service {
+    @Inject
+    private EntityManagerProvider emProvider;
+
+    public TransactionTestEntity persist(String text) {
+      final TransactionTestEntity entity = new TransactionTestEntity(text);
+      emProvider.get().persist(entity);
+      return entity;
+    }
+
+    public void changeTextOfAll(String text) {
+      for (Object entity : emProvider.get()
+          .createQuery("SELECT e FROM TransactionTestEntity e").getResultList()) {
+        ((TransactionTestEntity) entity).setText(text);
+      }
+    }
+
+    public TransactionTestEntity find(TransactionTestEntity entity) {
+      return emProvider.get().find(TransactionTestEntity.class, entity.getId());
+    }
+  }
+
+}
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.sql.Connection;
+import java.util.UUID;
+
+import javax.persistence.EntityManager;
+
+import junit.framework.TestCase;
+
+import org.hibernate.engine.spi.SessionImplementor;
+
+import com.github.sclassen.guicejpa.testframework.TransactionTestEntity;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+/**
+ * Tests nested transactions using JDBC savepoints.
+ *
+ * @author Stephan Classen
+ */
+public class SavepointTransactionTest extends TestCase {
+
+  private static final JdbcConnectionAccessor HIBERNATE = new JdbcConnectionAccessor() {
+    @Override
+    public Connection getConnection(EntityManager em) {
+      return em.unwrap(SessionImplementor.class).connection();
+    }
+  };
+
+  private Injector injector;
+
+  @Override
+  public void setUp() {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit").useSavepointsForNestedTransactions(HIBERNATE);
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+  }
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testFailingNestedTransactionOnlyRollsBackItsOwnWork() {
+    // given
+    final BatchService service = injector.getInstance(BatchService.class);
+
+    // when
+    service.outer();
+
+    // then
+    assertTrue(service.exists(service.outerId));
+    assertFalse(service.exists(service.failingId));
+    assertTrue(service.exists(service.succeedingId));
+  }
+
+
+  public static class BatchService {
+
+    UUID outerId;
+    UUID failingId;
+    UUID succeedingId;
+
+    @Inject
+    private EntityManagerProvider emProvider;
+    @Inject
+    private BatchService self;
+
+    @Transactional
+    public void outer() {
+      outerId = store();
+      try {
+        self.inner(true);
+      }
+      catch (IllegalArgumentException e) {
+        // expected
+      }
+      self.inner(false);
+    }
+
+    @Transactional
+    public void inner(boolean fail) {
+      if (fail) {
+        failingId = store();
+        throw new IllegalArgumentException();
+      }
+      succeedingId = store();
+    }
+
+    @Transactional
+    public boolean exists(UUID id) {
+      return null != emProvider.get().find(TransactionTestEntity.class, id);
+    }
+
+    private UUID store() {
+      final TransactionTestEntity entity = new TransactionTestEntity();
+      emProvider.get().persist(entity);
+      return entity.getId();
+    }
+  }
+
+}
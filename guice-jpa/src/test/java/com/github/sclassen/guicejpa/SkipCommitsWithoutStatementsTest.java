@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import junit.framework.TestCase;
+
+import org.hsqldb.jdbc.JDBCConnection;
+import org.hsqldb.jdbc.JDBCDataSource;
+
+import com.github.sclassen.guicejpa.testframework.TransactionTestEntity;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+/**
+ * Tests {@link PersistenceUnitBuilder#skipCommitsWithoutStatements()}.
+ *
+ * @author Stephan Classen
+ */
+public class SkipCommitsWithoutStatementsTest extends TestCase {
+
+  private Injector injector;
+  private DataSource dataSource;
+  private final AtomicInteger commits = new AtomicInteger();
+
+  @Override
+  public void setUp() {
+    final JDBCDataSource jdbcDataSource = new JDBCDataSource();
+    jdbcDataSource.setDatabase("jdbc:hsqldb:mem:persistence");
+    jdbcDataSource.setUser("sa");
+    jdbcDataSource.setPassword("sa");
+    dataSource = countCommits(jdbcDataSource);
+
+    final Properties properties = new Properties();
+    properties.put("hibernate.connection.datasource", dataSource);
+
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit", properties)
+        .skipCommitsWithoutStatements();
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+  }
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testTransactionWithoutStatementsIsNotCommitted() {
+    // given
+    final Service service = injector.getInstance(Service.class);
+    commits.set(0);
+
+    // when
+    service.doNothing();
+
+    // then
+    assertEquals(0, commits.get());
+  }
+
+  public void testTransactionWithStatementsIsCommitted() {
+    // given
+    final Service service = injector.getInstance(Service.class);
+    commits.set(0);
+
+    // when
+    final TransactionTestEntity entity = service.persist();
+
+    // then
+    assertEquals(1, commits.get());
+    assertTrue(service.exists(entity));
+  }
+
+  public void testStatementCreatedInEarlierTransactionIsCommitted() throws Exception {
+    // given
+    final JdbcProxy jdbcProxy = new JdbcProxy();
+    jdbcProxy.skipCommitsWithoutStatements();
+    final Connection connection = jdbcProxy.wrap(dataSource).getConnection();
+    try {
+      connection.setAutoCommit(false);
+      final PreparedStatement statement = connection.prepareStatement("VALUES 1");
+      statement.execute();
+      connection.commit();
+      connection.setAutoCommit(true);
+      commits.set(0);
+
+      // when
+      connection.setAutoCommit(false);
+      statement.execute();
+      connection.commit();
+
+      // then
+      assertEquals(1, commits.get());
+      statement.close();
+    }
+    finally {
+      connection.close();
+    }
+  }
+
+  public void testUnwrappedConnectionIsInTransaction() throws Exception {
+    // given
+    final JdbcProxy jdbcProxy = new JdbcProxy();
+    jdbcProxy.skipCommitsWithoutStatements();
+    final Connection connection = jdbcProxy.wrap(dataSource).getConnection();
+    try {
+      connection.setAutoCommit(false);
+      commits.set(0);
+
+      // when
+      final Connection nativeConnection = connection.unwrap(JDBCConnection.class);
+      connection.commit();
+
+      // then
+      assertFalse(nativeConnection.getAutoCommit());
+      assertEquals(1, commits.get());
+    }
+    finally {
+      connection.setAutoCommit(true);
+      connection.close();
+    }
+  }
+
+  private DataSource countCommits(final DataSource dataSource) {
+    return proxy(DataSource.class, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        final Object result = invokeDelegate(dataSource, method, args);
+        if (result instanceof Connection) {
+          final Connection connection = (Connection) result;
+          return proxy(Connection.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+              if ("commit".equals(method.getName())) {
+                commits.incrementAndGet();
+              }
+              if ("unwrap".equals(method.getName())) {
+                // the driver predates the JDBC 4 wrapper methods
+                return ((Class<?>) args[0]).cast(connection);
+              }
+              return invokeDelegate(connection, method, args);
+            }
+          });
+        }
+        return result;
+      }
+    });
+  }
+
+  private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+  }
+
+  private static Object invokeDelegate(Object delegate, Method method, Object[] args)
+    throws Throwable {
+    try {
+      return method.invoke(delegate, args);
+    }
+    catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+
+  @Transactional
+  public static class Service {
+    @Inject
+    private EntityManagerProvider emProvider;
+
+    public void doNothing() {
+      emProvider.get();
+    }
+
+    public TransactionTestEntity persist() {
+      final TransactionTestEntity entity = new TransactionTestEntity("committed");
+      emProvider.get().persist(entity);
+      return entity;
+    }
+
+    public boolean exists(TransactionTestEntity entity) {
+      return null != emProvider.get().find(TransactionTestEntity.class, entity.getId());
+    }
+  }
+
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import com.github.sclassen.guicejpa.testframework.TransactionTestEntity;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+/**
+ * Tests the logging of slow transactions.
+ *
+ * @author Stephan Classen
+ */
+public class SlowTransactionLoggerTest extends TestCase {
+
+  private final Logger logger = Logger.getLogger(SlowTransactionLogger.class.getName());
+  private final RecordingHandler handler = new RecordingHandler();
+
+  private Injector injector;
+
+  @Override
+  public void setUp() {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit").logSlowTransactions(0, TimeUnit.MILLISECONDS);
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+    logger.addHandler(handler);
+  }
+
+  @Override
+  public void tearDown() {
+    logger.removeHandler(handler);
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testOuterTransactionIsLogged() {
+    // when
+    injector.getInstance(SlowService.class).outer();
+
+    // then
+    assertEquals(1, handler.messages.size());
+    final String message = handler.messages.get(0);
+    assertTrue(message, message.contains(SlowService.class.getName() + ".outer"));
+    assertTrue(message, message.contains("rolled back: false"));
+  }
+
+  public void testRollbackOnlyOfNestedTransactionIsLogged() {
+    // when
+    injector.getInstance(SlowService.class).outerWithFailingInner();
+
+    // then
+    assertEquals(1, handler.messages.size());
+    final String message = handler.messages.get(0);
+    assertTrue(message, message.contains("rolled back: true"));
+    assertTrue(message, message.contains("rollbackOnly set by nested transaction: true"));
+  }
+
+
+  public static class SlowService {
+
+    @Inject
+    private EntityManagerProvider emProvider;
+    @Inject
+    private SlowService self;
+
+    @Transactional
+    public void outer() {
+      emProvider.get().persist(new TransactionTestEntity());
+    }
+
+    @Transactional
+    public void outerWithFailingInner() {
+      try {
+        self.failingInner();
+      }
+      catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+
+    @Transactional
+    public void failingInner() {
+      throw new IllegalArgumentException();
+    }
+  }
+
+  private static class RecordingHandler extends Handler {
+
+    private final List<String> messages = new ArrayList<String>();
+
+    @Override
+    public void publish(LogRecord record) {
+      messages.add(record.getMessage());
+    }
+
+    @Override
+    public void flush() {
+      // nop
+    }
+
+    @Override
+    public void close() {
+      // nop
+    }
+  }
+
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+
+import junit.framework.TestCase;
+
+import org.hsqldb.jdbc.JDBCDataSource;
+
+import com.github.sclassen.guicejpa.testframework.TransactionTestEntity;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+/**
+ * Tests the counting of JDBC statements and the statement budget of transactional methods.
+ *
+ * @author Stephan Classen
+ */
+public class StatementCounterTest extends TestCase {
+
+  private final Logger logger = Logger.getLogger(StatementCounter.class.getName());
+  private final RecordingHandler handler = new RecordingHandler();
+
+  private Injector injector;
+
+  private void createInjector(boolean failIfBudgetExceeded) {
+    final JDBCDataSource dataSource = new JDBCDataSource();
+    dataSource.setDatabase("jdbc:hsqldb:mem:persistence");
+    dataSource.setUser("sa");
+    dataSource.setPassword("sa");
+
+    final Properties properties = new Properties();
+    properties.put("hibernate.connection.datasource", dataSource);
+
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit", properties)
+        .countStatements(failIfBudgetExceeded, 3);
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+    logger.addHandler(handler);
+  }
+
+  @Override
+  public void tearDown() {
+    logger.removeHandler(handler);
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testRepeatedStatementsAreReported() {
+    // given
+    createInjector(false);
+
+    // when
+    injector.getInstance(QueryService.class).query(3);
+
+    // then
+    assertEquals(2, handler.messages.size());
+    for (String message : handler.messages) {
+      assertTrue(message, message.startsWith("repeated statements in "));
+      assertTrue(message, message.contains("3x select"));
+    }
+  }
+
+  public void testStatementsBelowThresholdAreNotReported() {
+    // given
+    createInjector(false);
+
+    // when
+    injector.getInstance(QueryService.class).query(2);
+
+    // then
+    assertEquals(0, handler.messages.size());
+  }
+
+  public void testExceededBudgetIsLogged() {
+    // given
+    createInjector(false);
+
+    // when
+    injector.getInstance(QueryService.class).queryWithBudget(2);
+
+    // then
+    final String expected = QueryService.class.getName()
+        + ".queryWithBudget executed 2 statements but its budget is 1";
+    assertTrue(handler.messages.toString(), handler.messages.get(0).contains(expected));
+  }
+
+  public void testExceededBudgetFailsAndRollsBack() {
+    // given
+    createInjector(true);
+    final QueryService service = injector.getInstance(QueryService.class);
+
+    // when
+    try {
+      service.persistWithBudget();
+      fail("expected StatementBudgetExceededException");
+    }
+    catch (StatementBudgetExceededException e) {
+      // expected
+    }
+
+    // then
+    assertEquals(0L, service.count(service.text));
+  }
+
+  public void testBudgetIsNotCheckedIfNotExceeded() {
+    // given
+    createInjector(true);
+
+    // when
+    injector.getInstance(QueryService.class).queryWithBudget(1);
+
+    // then
+    assertEquals(0, handler.messages.size());
+  }
+
+
+  @Transactional
+  public static class QueryService {
+    @Inject
+    private EntityManagerProvider emProvider;
+    String text;
+
+    public void query(int n) {
+      for (int i = 0; i < n; i++) {
+        count("text" + i);
+      }
+    }
+
+    @Transactional(maxStatements = 1)
+    public void queryWithBudget(int n) {
+      query(n);
+    }
+
+    @Transactional(maxStatements = 1)
+    public void persistWithBudget() {
+      text = "budget" + System.nanoTime();
+      final EntityManager em = emProvider.get();
+      em.persist(new TransactionTestEntity(text));
+      em.flush();
+      count(text);
+    }
+
+    public long count(String value) {
+      return emProvider.get().createQuery(
+          "select count(e) from TransactionTestEntity e where e.text = :text", Long.class)
+          .setParameter("text", value).getSingleResult();
+    }
+  }
+
+  private static class RecordingHandler extends Handler {
+    private final List<String> messages = new ArrayList<String>();
+
+    @Override
+    public void publish(LogRecord record) {
+      messages.add(record.getMessage());
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+
+import junit.framework.TestCase;
+
+import com.github.sclassen.guicejpa.ResultPublisher.Subscriber;
+import com.github.sclassen.guicejpa.ResultPublisher.Subscription;
+import com.github.sclassen.guicejpa.StreamingQueries.QueryCreator;
+import com.github.sclassen.guicejpa.testframework.TransactionTestEntity;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Tests the streaming of query results with {@link StreamingQueries}.
+ *
+ * @author Stephan Classen
+ */
+public class StreamingQueriesTest extends TestCase {
+
+  private Injector injector;
+  private ResultPublisher<String> publisher;
+  private final List<String> pagesLoaded = new ArrayList<String>();
+
+  @Override
+  public void setUp() {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit");
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+
+    injector.getInstance(TransactionRunner.class).inTransaction(
+        new TransactionalWork<Void, RuntimeException>() {
+          @Override
+          public Void run() {
+            final EntityManager em = injector.getInstance(EntityManagerProvider.class).get();
+            for (int i = 0; i < 5; i++) {
+              em.persist(new TransactionTestEntity("text" + i));
+            }
+            return null;
+          }
+        });
+
+    publisher = injector.getInstance(StreamingQueries.class).stream(new QueryCreator<String>() {
+      @Override
+      public TypedQuery<String> createQuery(EntityManager em) {
+        synchronized (pagesLoaded) {
+          pagesLoaded.add("page");
+        }
+        return em.createQuery("SELECT e.text FROM TransactionTestEntity e ORDER BY e.text",
+            String.class);
+      }
+    }, 2);
+  }
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testAllResultsArePublished() throws Exception {
+    // given
+    final RecordingSubscriber subscriber = new RecordingSubscriber(Long.MAX_VALUE);
+
+    // when
+    publisher.subscribe(subscriber);
+
+    // then
+    assertTrue(subscriber.terminated.await(5, TimeUnit.SECONDS));
+    assertEquals("[text0, text1, text2, text3, text4, complete]", subscriber.events.toString());
+    assertEquals(3, pagesLoaded.size());
+    assertEquals(0, countOpenEntityManagers());
+  }
+
+  public void testPagesAreLoadedOnDemand() throws Exception {
+    // given
+    final RecordingSubscriber subscriber = new RecordingSubscriber(1);
+
+    // when
+    publisher.subscribe(subscriber);
+    subscriber.received.await(5, TimeUnit.SECONDS);
+    Thread.sleep(50);
+
+    // then
+    assertEquals("[text0]", subscriber.events.toString());
+    assertEquals(1, pagesLoaded.size());
+    assertEquals(1, countOpenEntityManagers());
+
+    // when
+    subscriber.subscription.cancel();
+    Thread.sleep(50);
+
+    // then
+    assertEquals(0, countOpenEntityManagers());
+  }
+
+  private int countOpenEntityManagers() {
+    final EntityManagerProviderImpl emProvider =
+        (EntityManagerProviderImpl) injector.getInstance(EntityManagerProvider.class);
+    return emProvider.countOpenEntityManagers(null);
+  }
+
+  private static class RecordingSubscriber implements Subscriber<String> {
+    final List<String> events = new ArrayList<String>();
+    final CountDownLatch received = new CountDownLatch(1);
+    final CountDownLatch terminated = new CountDownLatch(1);
+    private final long initialRequest;
+    volatile Subscription subscription;
+
+    RecordingSubscriber(long initialRequest) {
+      this.initialRequest = initialRequest;
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {
+      subscription = s;
+      s.request(initialRequest);
+    }
+
+    @Override
+    public synchronized void onNext(String result) {
+      events.add(result);
+      received.countDown();
+    }
+
+    @Override
+    public synchronized void onError(Throwable e) {
+      events.add("error: " + e);
+      terminated.countDown();
+    }
+
+    @Override
+    public synchronized void onComplete() {
+      events.add("complete");
+      terminated.countDown();
+    }
+  }
+
+}
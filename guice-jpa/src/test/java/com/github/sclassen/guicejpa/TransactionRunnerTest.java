@@ -0,0 +1,203 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import javax.persistence.EntityManager;
+
+import junit.framework.TestCase;
+
+import com.github.sclassen.guicejpa.testframework.TransactionTestEntity;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Tests the {@link TransactionRunner}.
+ *
+ * @author Stephan Classen
+ */
+public class TransactionRunnerTest extends TestCase {
+
+  private Injector injector;
+  private TransactionRunner runner;
+  private EntityManagerProvider emProvider;
+  private UnitOfWork unitOfWork;
+
+  @Override
+  public void setUp() {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit");
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+    runner = injector.getInstance(TransactionRunner.class);
+    emProvider = injector.getInstance(EntityManagerProvider.class);
+    unitOfWork = injector.getInstance(UnitOfWork.class);
+  }
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testWorkIsCommitted() {
+    // when
+    final TransactionTestEntity entity = runner.inTransaction(new Persist("committed"));
+
+    // then
+    assertFalse(unitOfWork.isActive());
+    assertTrue(exists(entity));
+  }
+
+  public void testRuntimeExceptionRollsBack() {
+    // given
+    final Persist work = new Persist("rolledBack") {
+      @Override
+      public TransactionTestEntity run() {
+        super.run();
+        throw new IllegalArgumentException();
+      }
+    };
+
+    // when
+    try {
+      runner.inTransaction(work);
+      fail("expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    // then
+    assertFalse(exists(work.entity));
+  }
+
+  public void testCheckedExceptionIsRethrownAndCommitsByDefault() {
+    // given
+    final ThrowingWork work = new ThrowingWork(new IOException());
+
+    // when
+    try {
+      runner.inTransaction(work);
+      fail("expected IOException");
+    }
+    catch (IOException e) {
+      // expected
+    }
+
+    // then
+    assertTrue(exists(work.entity));
+  }
+
+  public void testRollbackOnAndIgnore() throws Exception {
+    // given
+    final TransactionRunner configured = runner.rollbackOn(IOException.class)
+        .ignore(InterruptedIOException.class);
+    final ThrowingWork rolledBack = new ThrowingWork(new IOException());
+    final ThrowingWork committed = new ThrowingWork(new InterruptedIOException());
+
+    // when
+    try {
+      configured.inTransaction(rolledBack);
+      fail("expected IOException");
+    }
+    catch (IOException e) {
+      // expected
+    }
+    try {
+      configured.inTransaction(committed);
+      fail("expected InterruptedIOException");
+    }
+    catch (InterruptedIOException e) {
+      // expected
+    }
+
+    // then
+    assertFalse(exists(rolledBack.entity));
+    assertTrue(exists(committed.entity));
+  }
+
+  public void testWorkJoinsActiveTransaction() {
+    // given
+    final Persist outer = new Persist("outer") {
+      @Override
+      public TransactionTestEntity run() {
+        super.run();
+        runner.inTransaction(new Persist("inner"));
+        throw new IllegalArgumentException();
+      }
+    };
+
+    // when
+    try {
+      runner.inTransaction(outer);
+      fail("expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    // then
+    assertFalse(exists(outer.entity));
+  }
+
+  private boolean exists(final TransactionTestEntity entity) {
+    return runner.inTransaction(new TransactionalWork<Boolean, RuntimeException>() {
+      @Override
+      public Boolean run() {
+        final EntityManager em = emProvider.get();
+        return null != em.find(TransactionTestEntity.class, entity.getId());
+      }
+    });
+  }
+
+
+  private class Persist implements TransactionalWork<TransactionTestEntity, RuntimeException> {
+    private final String text;
+    TransactionTestEntity entity;
+
+    Persist(String text) {
+      this.text = text;
+    }
+
+    @Override
+    public TransactionTestEntity run() {
+      entity = new TransactionTestEntity(text);
+      final EntityManager em = emProvider.get();
+      em.persist(entity);
+      em.flush();
+      return entity;
+    }
+  }
+
+  private class ThrowingWork implements TransactionalWork<Void, IOException> {
+    private final IOException exception;
+    TransactionTestEntity entity;
+
+    ThrowingWork(IOException exception) {
+      this.exception = exception;
+    }
+
+    @Override
+    public Void run() throws IOException {
+      entity = new Persist("throwing").run();
+      throw exception;
+    }
+  }
+
+}
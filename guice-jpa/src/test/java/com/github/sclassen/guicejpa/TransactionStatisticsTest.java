@@ -0,0 +1,132 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import junit.framework.TestCase;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Tests the per method statistics of transactions.
+ *
+ * @author Stephan Classen
+ */
+public class TransactionStatisticsTest extends TestCase {
+
+  private Injector injector;
+
+  @Override
+  public void setUp() {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit").collectTransactionStatistics();
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+  }
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testStatisticsAreListedViaJmx() throws Exception {
+    // given
+    final Service service = injector.getInstance(Service.class);
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(
+        "com.github.sclassen.guicejpa:type=TransactionStatistics,unit=\"default\"");
+    final Object[] params = { 1 };
+    final String[] signature = { int.class.getName() };
+
+    // when
+    service.succeed();
+    service.succeed();
+    service.succeed();
+    try {
+      service.fail();
+    }
+    catch (IllegalStateException e) {
+      // expected
+    }
+
+    // then
+    assertEquals(2, server.getAttribute(name, "MethodCount"));
+    final String[] frequent =
+        (String[]) server.invoke(name, "listMostFrequentMethods", params, signature);
+    assertEquals(1, frequent.length);
+    assertTrue(frequent[0], frequent[0].startsWith(Service.class.getName() + ".succeed: 3 calls, "
+        + "0 rollbacks"));
+    final String[] rolledBack =
+        (String[]) server.invoke(name, "listMostRolledBackMethods", params, signature);
+    assertTrue(rolledBack[0], rolledBack[0].startsWith(Service.class.getName() + ".fail: 1 calls, "
+        + "1 rollbacks"));
+    assertTrue(rolledBack[0], rolledBack[0].contains("java.lang.IllegalStateException=1"));
+  }
+
+  public void testPercentiles() {
+    // given
+    final MethodStatistics statistics = new MethodStatistics("test");
+
+    // when
+    for (int i = 0; i < 99; i++) {
+      statistics.record(1000000, false, null);
+    }
+    statistics.record(100000000, false, null);
+
+    // then
+    assertEquals(100, statistics.getCalls());
+    assertEquals(1990000, statistics.getMeanNanos());
+    final long p50 = statistics.getPercentileNanos(0.5);
+    assertTrue(String.valueOf(p50), 1000000 <= p50 && p50 < 2000000);
+    assertEquals(100000000, statistics.getPercentileNanos(1));
+  }
+
+  public void testSnapshotIsNotAffectedByLaterRecords() {
+    // given
+    final MethodStatistics statistics = new MethodStatistics("test");
+    statistics.record(1000000, true, null);
+    final MethodStatistics.Snapshot snapshot = statistics.snapshot();
+    final String text = snapshot.toString();
+
+    // when
+    statistics.record(100000000, false, null);
+
+    // then
+    assertEquals(1, snapshot.getCalls());
+    assertEquals(1, snapshot.getRollbacks());
+    assertTrue(String.valueOf(snapshot.getP99Nanos()), snapshot.getP99Nanos() < 2000000);
+    assertEquals(text, snapshot.toString());
+    assertTrue(text, text.startsWith("test: 1 calls, 1 rollbacks"));
+  }
+
+  public static class Service {
+    @Transactional
+    public void succeed() {
+    }
+
+    @Transactional
+    public void fail() {
+      throw new IllegalStateException();
+    }
+  }
+
+}
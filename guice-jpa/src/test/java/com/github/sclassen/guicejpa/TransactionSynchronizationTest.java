@@ -0,0 +1,161 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+
+import com.github.sclassen.guicejpa.testframework.TransactionTestEntity;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+/**
+ * Tests the callbacks registered with the {@link TransactionSynchronization}.
+ *
+ * @author Stephan Classen
+ */
+public class TransactionSynchronizationTest extends TestCase {
+
+  private Injector injector;
+
+  @Override
+  public void setUp() {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit");
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+  }
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testCallbacksAfterCommit() {
+    // given
+    final SynchronizedService service = injector.getInstance(SynchronizedService.class);
+
+    // when
+    service.register(false);
+
+    // then
+    assertEquals("[commit, completion:true, executor]", service.events.toString());
+  }
+
+  public void testCallbacksAfterRollback() {
+    // given
+    final SynchronizedService service = injector.getInstance(SynchronizedService.class);
+
+    // when
+    try {
+      service.register(true);
+      fail("expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException e) {
+      // expected
+    }
+
+    // then
+    assertEquals("[completion:false]", service.events.toString());
+  }
+
+  public void testCallbacksOfNestedTransactionRunAfterOuterTransaction() {
+    // given
+    final SynchronizedService service = injector.getInstance(SynchronizedService.class);
+
+    // when
+    service.outer();
+
+    // then
+    assertEquals("[outer done, commit, completion:true, executor]", service.events.toString());
+  }
+
+  public void testRegisteringWithoutTransactionFails() {
+    // given
+    final TransactionSynchronization sync = injector.getInstance(TransactionSynchronization.class);
+
+    // then
+    assertFalse(sync.isTransactionActive());
+    try {
+      sync.afterCommit(new Runnable() {
+        @Override
+        public void run() {
+          // nop
+        }
+      });
+      fail("expected IllegalStateException");
+    }
+    catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+
+  public static class SynchronizedService {
+
+    final List<String> events = new ArrayList<String>();
+
+    @Inject
+    private EntityManagerProvider emProvider;
+    @Inject
+    private TransactionSynchronization sync;
+    @Inject
+    private SynchronizedService self;
+
+    @Transactional
+    public void outer() {
+      self.register(false);
+      events.add("outer done");
+    }
+
+    @Transactional
+    public void register(boolean fail) {
+      emProvider.get().persist(new TransactionTestEntity());
+      sync.afterCommit(new Runnable() {
+        @Override
+        public void run() {
+          events.add("commit");
+        }
+      });
+      sync.afterCompletion(new TransactionCompletionCallback() {
+        @Override
+        public void afterCompletion(boolean committed) {
+          events.add("completion:" + committed);
+        }
+      });
+      sync.afterCommit(new Runnable() {
+        @Override
+        public void run() {
+          events.add("executor");
+        }
+      }, new Executor() {
+        @Override
+        public void execute(Runnable command) {
+          command.run();
+        }
+      });
+      if (fail) {
+        throw new IllegalArgumentException();
+      }
+    }
+  }
+
+}
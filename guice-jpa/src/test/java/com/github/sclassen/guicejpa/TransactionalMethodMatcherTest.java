@@ -0,0 +1,153 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import junit.framework.TestCase;
+
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+/**
+ * Tests which methods are intercepted by the transaction interceptors.
+ *
+ * @author Stephan Classen
+ */
+public class TransactionalMethodMatcherTest extends TestCase {
+
+  private Injector injector;
+
+  private Injector createInjector(String... transactionalPackages) {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit");
+    if (transactionalPackages.length > 0) {
+      pm.setTransactionalPackages(transactionalPackages);
+    }
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+    return injector;
+  }
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testMethodsOfTransactionalClassAreIntercepted() {
+    // given
+    final TransactionalClassService service = createInjector()
+        .getInstance(TransactionalClassService.class);
+
+    // when
+    final boolean active = service.isUnitOfWorkActive();
+
+    // then
+    assertTrue(active);
+  }
+
+  public void testNonTransactionalMethodIsNotIntercepted() {
+    // given
+    final TransactionalClassService service = createInjector()
+        .getInstance(TransactionalClassService.class);
+
+    // when
+    final boolean active = service.isUnitOfWorkActiveInNonTransactionalMethod();
+
+    // then
+    assertFalse(active);
+  }
+
+  public void testObjectMethodsAreNotIntercepted() {
+    // given
+    final TransactionalClassService service = createInjector()
+        .getInstance(TransactionalClassService.class);
+
+    // when
+    final String active = service.toString();
+
+    // then
+    assertEquals("false", active);
+  }
+
+  public void testAnnotatedMethodIsIntercepted() {
+    // given
+    final TransactionalMethodService service = createInjector()
+        .getInstance(TransactionalMethodService.class);
+
+    // when
+    final boolean active = service.isUnitOfWorkActive();
+
+    // then
+    assertTrue(active);
+  }
+
+  public void testClassesOutsideOfTransactionalPackagesAreNotIntercepted() {
+    // given
+    final TransactionalClassService service = createInjector("com.example")
+        .getInstance(TransactionalClassService.class);
+
+    // when
+    final boolean active = service.isUnitOfWorkActive();
+
+    // then
+    assertFalse(active);
+  }
+
+  public void testClassesInTransactionalPackagesAreIntercepted() {
+    // given
+    final TransactionalClassService service = createInjector("com.example", "com.github.sclassen")
+        .getInstance(TransactionalClassService.class);
+
+    // when
+    final boolean active = service.isUnitOfWorkActive();
+
+    // then
+    assertTrue(active);
+  }
+
+
+  @Transactional
+  public static class TransactionalClassService {
+    @Inject
+    private UnitOfWork unitOfWork;
+
+    public boolean isUnitOfWorkActive() {
+      return unitOfWork.isActive();
+    }
+
+    @NonTransactional
+    public boolean isUnitOfWorkActiveInNonTransactionalMethod() {
+      return unitOfWork.isActive();
+    }
+
+    @Override
+    public String toString() {
+      return String.valueOf(unitOfWork.isActive());
+    }
+  }
+
+  public static class TransactionalMethodService {
+    @Inject
+    private UnitOfWork unitOfWork;
+
+    @Transactional
+    public boolean isUnitOfWorkActive() {
+      return unitOfWork.isActive();
+    }
+  }
+
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.io.IOException;
+
+import javax.persistence.EntityManager;
+
+import junit.framework.TestCase;
+
+import com.github.sclassen.guicejpa.testframework.TransactionTestEntity;
+import com.google.inject.Guice;
+import com.google.inject.Inject;
+import com.google.inject.Injector;
+
+/**
+ * Tests the transactional wrappers generated by
+ * {@link com.github.sclassen.guicejpa.processor.TransactionalWrapperProcessor}.
+ *
+ * @author Stephan Classen
+ */
+public class TransactionalWrapperTest extends TestCase {
+
+  private Injector injector;
+
+  @Override
+  public void setUp() {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit");
+    pm.useGeneratedTransactionalWrappers(WrappedService.class);
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+  }
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testServiceIsBoundToGeneratedWrapper() {
+    // when
+    final WrappedService service = injector.getInstance(WrappedService.class);
+
+    // then
+    assertEquals(TransactionalInvoker.getWrapperClassName(WrappedService.class),
+        service.getClass().getName());
+  }
+
+  public void testTransactionalMethodRunsInTransaction() {
+    // given
+    final WrappedService service = injector.getInstance(WrappedService.class);
+
+    // when
+    final TransactionTestEntity entity = service.persist("committed");
+
+    // then
+    assertTrue(service.wasTransactionActive);
+    assertTrue(service.exists(entity));
+  }
+
+  public void testCheckedExceptionRollsBackAndIsRethrown() {
+    // given
+    final WrappedService service = injector.getInstance(WrappedService.class);
+
+    // when
+    try {
+      service.persistAndFail("rolledBack");
+      fail("expected IOException");
+    }
+    catch (IOException e) {
+      // expected
+    }
+
+    // then
+    assertTrue(service.wasTransactionActive);
+    assertFalse(service.exists(service.lastEntity));
+  }
+
+  public void testNonTransactionalMethodIsNotWrapped() {
+    // given
+    final WrappedService service = injector.getInstance(WrappedService.class);
+
+    // when
+    final boolean active = service.isUnitOfWorkActive();
+
+    // then
+    assertFalse(active);
+  }
+
+
+  @Transactional
+  public static class WrappedService {
+    private final EntityManagerProvider emProvider;
+    private final UnitOfWork unitOfWork;
+    boolean wasTransactionActive;
+    TransactionTestEntity lastEntity;
+
+    @Inject
+    public WrappedService(EntityManagerProvider emProvider, UnitOfWork unitOfWork) {
+      this.emProvider = emProvider;
+      this.unitOfWork = unitOfWork;
+    }
+
+    public TransactionTestEntity persist(String text) {
+      final EntityManager em = emProvider.get();
+      wasTransactionActive = em.getTransaction().isActive();
+      lastEntity = new TransactionTestEntity();
+      lastEntity.setText(text);
+      em.persist(lastEntity);
+      return lastEntity;
+    }
+
+    @Transactional(rollbackOn = IOException.class)
+    public void persistAndFail(String text) throws IOException {
+      persist(text);
+      emProvider.get().flush();
+      throw new IOException();
+    }
+
+    public boolean exists(TransactionTestEntity entity) {
+      return null != emProvider.get().find(TransactionTestEntity.class, entity.getId());
+    }
+
+    @NonTransactional
+    public boolean isUnitOfWorkActive() {
+      return unitOfWork.isActive();
+    }
+  }
+
+}
@@ -0,0 +1,242 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+import java.lang.annotation.Retention;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import junit.framework.TestCase;
+
+import com.google.inject.BindingAnnotation;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+
+/**
+ * Tests draining the active units of work when a persistence unit is stopped.
+ *
+ * @author Stephan Classen
+ */
+public class UnitOfWorkDrainerTest extends TestCase {
+
+  private final Logger logger = Logger.getLogger(UnitOfWorkDrainer.class.getName());
+  private final RecordingHandler handler = new RecordingHandler();
+
+  private Injector injector;
+  private UnitOfWork unitOfWork;
+  private PersistenceService persistenceService;
+  private ExecutorService executor;
+  private final CountDownLatch begun = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+
+  private void createInjector(long drainTimeoutMillis) {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit")
+        .drainUnitsOfWorkOnStop(drainTimeoutMillis, TimeUnit.MILLISECONDS);
+    injector = Guice.createInjector(pm);
+    persistenceService = injector.getInstance(PersistenceService.class);
+    persistenceService.start();
+    unitOfWork = injector.getInstance(UnitOfWork.class);
+    executor = Executors.newFixedThreadPool(2);
+    logger.addHandler(handler);
+  }
+
+  private static Properties url(String database) {
+    final Properties properties = new Properties();
+    properties.setProperty("hibernate.connection.url", "jdbc:hsqldb:mem:" + database);
+    return properties;
+  }
+
+  @Override
+  public void tearDown() {
+    logger.removeHandler(handler);
+    release.countDown();
+    executor.shutdownNow();
+    persistenceService.stop();
+    injector = null;
+  }
+
+  public void testStopWaitsForActiveUnitsOfWork() throws Exception {
+    // given
+    createInjector(10000);
+    final Future<Void> work = executor.submit(new LongUnitOfWork());
+    begun.await();
+
+    // when
+    final Future<Void> stop = executor.submit(new Stop());
+    Thread.sleep(100);
+
+    // then
+    assertFalse(stop.isDone());
+    try {
+      unitOfWork.begin();
+      fail("expected UnitOfWorkRejectedException");
+    }
+    catch (UnitOfWorkRejectedException e) {
+      // expected
+    }
+
+    // when
+    release.countDown();
+
+    // then
+    work.get(10, TimeUnit.SECONDS);
+    stop.get(10, TimeUnit.SECONDS);
+    assertFalse(persistenceService.isRunning());
+    assertTrue(handler.messages.isEmpty());
+  }
+
+  public void testUnitsOfWorkStillActiveAfterTimeoutAreReported() throws Exception {
+    // given
+    createInjector(50);
+    final Future<Void> work = executor.submit(new LongUnitOfWork());
+    begun.await();
+
+    // when
+    persistenceService.stop();
+
+    // then
+    assertFalse(persistenceService.isRunning());
+    assertEquals(1, handler.messages.size());
+    assertTrue(handler.messages.get(0), handler.messages.get(0).contains("1 units of work"));
+    release.countDown();
+    try {
+      work.get(10, TimeUnit.SECONDS);
+    }
+    catch (ExecutionException e) {
+      // the entity manager has been closed with its factory
+    }
+  }
+
+  public void testPersistenceUnitsShareOneDrainDeadline() throws Exception {
+    // given
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit", url("drainFirst"))
+        .annotatedWith(First.class).drainUnitsOfWorkOnStop(500, TimeUnit.MILLISECONDS);
+    pm.addApplicationManagedPersistenceUnit("testUnit", url("drainSecond"))
+        .annotatedWith(Second.class).drainUnitsOfWorkOnStop(500, TimeUnit.MILLISECONDS);
+    injector = Guice.createInjector(pm);
+    persistenceService = injector.getInstance(
+        Key.get(PersistenceService.class, AllPersistenceUnits.class));
+    persistenceService.start();
+    executor = Executors.newFixedThreadPool(2);
+    logger.addHandler(handler);
+    final CountDownLatch bothBegun = new CountDownLatch(2);
+    final Future<Void> first = executor.submit(new LongUnitOfWork(
+        injector.getInstance(Key.get(UnitOfWork.class, First.class)), bothBegun));
+    final Future<Void> second = executor.submit(new LongUnitOfWork(
+        injector.getInstance(Key.get(UnitOfWork.class, Second.class)), bothBegun));
+    bothBegun.await();
+
+    // when
+    final long start = System.nanoTime();
+    persistenceService.stop();
+    final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+    // then
+    assertTrue("stopping took " + elapsedMillis + " ms", elapsedMillis < 900);
+    assertEquals(2, handler.messages.size());
+    release.countDown();
+    awaitEnded(first);
+    awaitEnded(second);
+  }
+
+  private static void awaitEnded(Future<Void> work) throws Exception {
+    try {
+      work.get(10, TimeUnit.SECONDS);
+    }
+    catch (ExecutionException e) {
+      // the entity manager has been closed with its factory
+    }
+  }
+
+  private class LongUnitOfWork implements Callable<Void> {
+    private final UnitOfWork uow;
+    private final CountDownLatch started;
+
+    LongUnitOfWork() {
+      this(unitOfWork, begun);
+    }
+
+    LongUnitOfWork(UnitOfWork uow, CountDownLatch started) {
+      this.uow = uow;
+      this.started = started;
+    }
+
+    @Override
+    public Void call() throws InterruptedException {
+      uow.begin();
+      try {
+        started.countDown();
+        release.await();
+        return null;
+      }
+      finally {
+        uow.end();
+      }
+    }
+  }
+
+  private class Stop implements Callable<Void> {
+    @Override
+    public Void call() {
+      persistenceService.stop();
+      return null;
+    }
+  }
+
+  @Retention(RUNTIME)
+  @BindingAnnotation
+  public @interface First {
+  }
+
+  @Retention(RUNTIME)
+  @BindingAnnotation
+  public @interface Second {
+  }
+
+  private static class RecordingHandler extends Handler {
+    private final List<String> messages = new ArrayList<String>();
+
+    @Override
+    public void publish(LogRecord record) {
+      messages.add(record.getMessage());
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+}
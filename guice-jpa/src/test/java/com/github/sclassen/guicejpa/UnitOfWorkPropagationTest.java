@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.persistence.EntityManager;
+
+import junit.framework.TestCase;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Tests the propagation of the unit of work to tasks executed by other threads.
+ *
+ * @author Stephan Classen
+ */
+public class UnitOfWorkPropagationTest extends TestCase {
+
+  private Injector injector;
+  private UnitOfWork unitOfWork;
+  private EntityManagerProvider emProvider;
+  private ExecutorService pool;
+  private ExecutorService executor;
+
+  @Override
+  public void setUp() {
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit");
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+    unitOfWork = injector.getInstance(UnitOfWork.class);
+    emProvider = injector.getInstance(EntityManagerProvider.class);
+    pool = Executors.newSingleThreadExecutor();
+    executor = injector.getInstance(UnitOfWorkPropagation.class).wrap(pool);
+  }
+
+  @Override
+  public void tearDown() {
+    executor.shutdownNow();
+    unitOfWork.end();
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testTaskRunsInFreshUnitOfWork() throws Exception {
+    // given
+    unitOfWork.begin();
+    final EntityManager submitterEm = emProvider.get();
+
+    // when
+    final EntityManager taskEm = executor.submit(new Callable<EntityManager>() {
+      @Override
+      public EntityManager call() {
+        return emProvider.get();
+      }
+    }).get();
+
+    // then
+    assertNotNull(taskEm);
+    assertNotSame(submitterEm, taskEm);
+    assertFalse(taskEm.isOpen());
+    assertFalse(pool.submit(new IsActive()).get());
+  }
+
+  public void testUnitOfWorkOfSubmittedRunnableHasEndedWhenFutureCompletes() throws Exception {
+    // given
+    unitOfWork.begin();
+    final AtomicReference<EntityManager> taskEm = new AtomicReference<EntityManager>();
+
+    // when
+    executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        taskEm.set(emProvider.get());
+      }
+    }, null).get();
+
+    // then
+    assertFalse(taskEm.get().isOpen());
+  }
+
+  public void testNoUnitOfWorkIsBegunIfSubmitterHasNone() throws Exception {
+    // when
+    final boolean active = executor.submit(new IsActive()).get();
+
+    // then
+    assertFalse(active);
+  }
+
+  public void testPriorityIsPropagated() throws Exception {
+    // given
+    UnitOfWorkPriority.setCurrent(UnitOfWorkPriority.BACKGROUND);
+
+    // when
+    final UnitOfWorkPriority priority;
+    try {
+      priority = executor.submit(new Callable<UnitOfWorkPriority>() {
+        @Override
+        public UnitOfWorkPriority call() {
+          return UnitOfWorkPriority.getCurrent();
+        }
+      }).get();
+    }
+    finally {
+      UnitOfWorkPriority.setCurrent(UnitOfWorkPriority.INTERACTIVE);
+    }
+
+    // then
+    assertEquals(UnitOfWorkPriority.BACKGROUND, priority);
+    assertEquals(UnitOfWorkPriority.INTERACTIVE, pool.submit(new Callable<UnitOfWorkPriority>() {
+      @Override
+      public UnitOfWorkPriority call() {
+        return UnitOfWorkPriority.getCurrent();
+      }
+    }).get());
+  }
+
+  private class IsActive implements Callable<Boolean> {
+    @Override
+    public Boolean call() {
+      return unitOfWork.isActive();
+    }
+  }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.persistence.EntityManager;
+
+import junit.framework.TestCase;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Tests the tracking and reaping of active units of work.
+ *
+ * @author Stephan Classen
+ */
+public class UnitOfWorkRegistryTest extends TestCase {
+
+  private Injector injector;
+
+  @Override
+  public void tearDown() {
+    injector.getInstance(UnitOfWork.class).end();
+    injector.getInstance(PersistenceService.class).stop();
+    injector = null;
+  }
+
+  public void testActiveUnitsOfWorkAreListedViaJmx() throws Exception {
+    // given
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit").trackUnitsOfWork(true);
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final ObjectName name = new ObjectName(
+        "com.github.sclassen.guicejpa:type=UnitOfWorkRegistry,unit=\"default\"");
+
+    // when
+    injector.getInstance(UnitOfWork.class).begin();
+
+    // then
+    assertEquals(1, server.getAttribute(name, "ActiveUnitOfWorkCount"));
+    final String[] units = (String[]) server.invoke(name, "listActiveUnitsOfWork", null, null);
+    assertEquals(1, units.length);
+    assertTrue(units[0], units[0].contains(Thread.currentThread().getName()));
+    assertTrue(units[0], units[0].contains(UnitOfWorkRegistryTest.class.getName()));
+
+    // when
+    injector.getInstance(UnitOfWork.class).end();
+
+    // then
+    assertEquals(0, server.getAttribute(name, "ActiveUnitOfWorkCount"));
+  }
+
+  public void testExpiredUnitOfWorkIsClosedByReaper() throws Exception {
+    // given
+    final PersistenceModule pm = new PersistenceModule();
+    pm.addApplicationManagedPersistenceUnit("testUnit")
+        .reapUnitsOfWork(10, TimeUnit.MILLISECONDS, true);
+    injector = Guice.createInjector(pm);
+    injector.getInstance(PersistenceService.class).start();
+    final UnitOfWork unitOfWork = injector.getInstance(UnitOfWork.class);
+    final EntityManagerProvider emProvider = injector.getInstance(EntityManagerProvider.class);
+
+    // when
+    unitOfWork.begin();
+    final EntityManager em = emProvider.get();
+    Thread.sleep(200);
+
+    // then
+    assertFalse(em.isOpen());
+    assertFalse(unitOfWork.isActive());
+    try {
+      emProvider.get();
+      fail("expected IllegalStateException");
+    }
+    catch (IllegalStateException e) {
+      // expected
+    }
+
+    // a new unit of work can be started on the same thread
+    unitOfWork.end();
+    unitOfWork.begin();
+    assertTrue(emProvider.get().isOpen());
+  }
+
+}
@@ -0,0 +1,92 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa.testframework.jta;
+
+import com.github.sclassen.guicejpa.PersistenceModule;
+import com.github.sclassen.guicejpa.PersistenceService;
+import com.github.sclassen.guicejpa.Transactional;
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Measures the overhead of intercepting a transactional method of a JTA persistence unit and
+ * compares it to a resource local persistence unit. The {@link LocalUserTransaction} is used so
+ * that no container is required.
+ * <p/>
+ * Run the main method with the test classpath. The optional argument is the number of
+ * invocations per measurement.
+ *
+ * @author Stephan Classen
+ */
+public final class JtaInterceptionBenchmark {
+
+  private static final String UT_JNDI_NAME = "java:comp/UserTransaction";
+
+  private JtaInterceptionBenchmark() {
+    // main class
+  }
+
+  public static void main(String[] args) {
+    final int iterations = 0 < args.length ? Integer.parseInt(args[0]) : 200000;
+    LocalInitialContextFactory.install();
+    LocalInitialContextFactory.bind(UT_JNDI_NAME, new LocalUserTransaction());
+    try {
+      final PersistenceModule jta = new PersistenceModule();
+      jta.setUserTransactionJndiName(UT_JNDI_NAME);
+      jta.addApplicationManagedPersistenceUnit("testUnit").useJtaTransaction();
+      final PersistenceModule local = new PersistenceModule();
+      local.addApplicationManagedPersistenceUnit("testUnit");
+
+      measure("jta", jta, iterations);
+      measure("resource local", local, iterations);
+    }
+    finally {
+      LocalInitialContextFactory.uninstall();
+    }
+  }
+
+  private static void measure(String name, PersistenceModule module, int iterations) {
+    final Injector injector = Guice.createInjector(module);
+    final PersistenceService persistenceService = injector.getInstance(PersistenceService.class);
+    persistenceService.start();
+    try {
+      final EmptyService service = injector.getInstance(EmptyService.class);
+      // warm up
+      run(service, iterations);
+      final long start = System.nanoTime();
+      run(service, iterations);
+      final long nanos = System.nanoTime() - start;
+      System.out.println(name + ": " + nanos / iterations + " ns per transaction");
+    }
+    finally {
+      persistenceService.stop();
+    }
+  }
+
+  private static void run(EmptyService service, int iterations) {
+    for (int i = 0; i < iterations; i++) {
+      service.doNothing();
+    }
+  }
+
+  public static class EmptyService {
+    @Transactional
+    public void doNothing() {
+      // nop
+    }
+  }
+
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa.testframework.jta;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Hashtable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.OperationNotSupportedException;
+import javax.naming.spi.InitialContextFactory;
+
+/**
+ * In memory JNDI stand-in for tests and benchmarks.
+ * <p/>
+ * Activate it by calling {@link #install()} before the injector is created. Objects are bound by
+ * {@link #bind(String, Object)}. The returned context supports lookup, bind, rebind and unbind
+ * with string names. All other operations throw an {@link OperationNotSupportedException}.
+ *
+ * @author Stephan Classen
+ */
+public final class LocalInitialContextFactory implements InitialContextFactory {
+
+  // ---- Members
+
+  private static final ConcurrentMap<String, Object> BINDINGS =
+      new ConcurrentHashMap<String, Object>();
+
+
+  // ---- Methods
+
+  /**
+   * Makes this class the initial context factory of the JVM.
+   */
+  public static void install() {
+    System.setProperty(Context.INITIAL_CONTEXT_FACTORY, LocalInitialContextFactory.class.getName());
+  }
+
+  /**
+   * Removes all bindings and restores the default initial context factory.
+   */
+  public static void uninstall() {
+    BINDINGS.clear();
+    System.clearProperty(Context.INITIAL_CONTEXT_FACTORY);
+  }
+
+  /**
+   * Binds an object.
+   *
+   * @param name the JNDI name.
+   * @param object the object to bind.
+   */
+  public static void bind(String name, Object object) {
+    BINDINGS.put(name, object);
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public Context getInitialContext(final Hashtable<?, ?> environment) {
+    return (Context) Proxy.newProxyInstance(Context.class.getClassLoader(),
+        new Class<?>[] {Context.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+            final String name = method.getName();
+            final boolean stringName = null != args && 0 < args.length
+                && args[0] instanceof String;
+            if ("lookup".equals(name) && stringName) {
+              final Object object = BINDINGS.get(args[0]);
+              if (null == object) {
+                throw new NameNotFoundException((String) args[0]);
+              }
+              return object;
+            }
+            if (("bind".equals(name) || "rebind".equals(name)) && stringName) {
+              BINDINGS.put((String) args[0], args[1]);
+              return null;
+            }
+            if ("unbind".equals(name) && stringName) {
+              BINDINGS.remove(args[0]);
+              return null;
+            }
+            if ("close".equals(name)) {
+              return null;
+            }
+            if ("getEnvironment".equals(name)) {
+              return new Hashtable<Object, Object>(environment);
+            }
+            if ("hashCode".equals(name)) {
+              return System.identityHashCode(proxy);
+            }
+            if ("equals".equals(name)) {
+              return proxy == args[0];
+            }
+            if ("toString".equals(name)) {
+              return "LocalInitialContext" + BINDINGS.keySet();
+            }
+            throw new OperationNotSupportedException(name);
+          }
+        });
+  }
+
+}
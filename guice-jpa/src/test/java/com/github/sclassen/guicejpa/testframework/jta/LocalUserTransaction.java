@@ -0,0 +1,176 @@
+/**
+ * Copyright (C) 2012 Stephan Classen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.sclassen.guicejpa.testframework.jta;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.NotSupportedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.SystemException;
+import javax.transaction.UserTransaction;
+
+/**
+ * In memory {@link UserTransaction} for tests and benchmarks of JTA persistence units.
+ * <p/>
+ * The transaction is bound to the current thread. It supports the status of the transaction,
+ * the rollbackOnly flag and timeouts. A transaction which exceeds its timeout is marked as
+ * rollbackOnly and rolled back on commit. No resources are enlisted. The number of commits and
+ * rollbacks is counted.
+ *
+ * @author Stephan Classen
+ */
+public final class LocalUserTransaction implements UserTransaction {
+
+  // ---- Members
+
+  /** The transaction of the current thread. {@code null} if none is active. */
+  private final ThreadLocal<LocalTransaction> current = new ThreadLocal<LocalTransaction>();
+
+  /** The timeout for transactions begun by the current thread. 0 means no timeout. */
+  private final ThreadLocal<Long> timeoutNanos = new ThreadLocal<Long>();
+
+  private final AtomicInteger commitCount = new AtomicInteger();
+  private final AtomicInteger rollbackCount = new AtomicInteger();
+
+
+  // ---- Methods
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void begin() throws NotSupportedException {
+    if (null != current.get()) {
+      throw new NotSupportedException("nested transactions are not supported.");
+    }
+    final Long timeout = timeoutNanos.get();
+    current.set(new LocalTransaction(null == timeout ? 0 : timeout.longValue()));
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void commit() throws RollbackException {
+    final LocalTransaction txn = getTransaction();
+    current.remove();
+    if (Status.STATUS_MARKED_ROLLBACK == txn.getStatus()) {
+      rollbackCount.incrementAndGet();
+      throw new RollbackException(txn.timedOut() ? "the transaction timed out."
+          : "the transaction is marked as rollbackOnly.");
+    }
+    commitCount.incrementAndGet();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void rollback() {
+    getTransaction();
+    current.remove();
+    rollbackCount.incrementAndGet();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void setRollbackOnly() {
+    getTransaction().rollbackOnly = true;
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public int getStatus() {
+    final LocalTransaction txn = current.get();
+    return null == txn ? Status.STATUS_NO_TRANSACTION : txn.getStatus();
+  }
+
+  /**
+   * {@inheritDoc}
+   */
+  @Override
+  public void setTransactionTimeout(int seconds) throws SystemException {
+    if (seconds < 0) {
+      throw new SystemException("the timeout must not be negative.");
+    }
+    setTransactionTimeout(seconds, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Sets the timeout for the transactions begun by the current thread.
+   *
+   * @param timeout the timeout. 0 means no timeout.
+   * @param unit the unit of the timeout.
+   */
+  public void setTransactionTimeout(long timeout, TimeUnit unit) {
+    timeoutNanos.set(unit.toNanos(timeout));
+  }
+
+  /**
+   * @return the number of committed transactions.
+   */
+  public int getCommitCount() {
+    return commitCount.get();
+  }
+
+  /**
+   * @return the number of rolled back transactions including the ones rolled back on commit.
+   */
+  public int getRollbackCount() {
+    return rollbackCount.get();
+  }
+
+  private LocalTransaction getTransaction() {
+    final LocalTransaction txn = current.get();
+    if (null == txn) {
+      throw new IllegalStateException("no transaction is active.");
+    }
+    return txn;
+  }
+
+
+  // ---- Inner Classes
+
+  /**
+   * State of an active transaction.
+   */
+  private static final class LocalTransaction {
+    private final long deadline;
+    private boolean rollbackOnly;
+
+    LocalTransaction(long timeoutNanos) {
+      this.deadline = 0 == timeoutNanos ? 0 : System.nanoTime() + timeoutNanos;
+    }
+
+    boolean timedOut() {
+      return 0 != deadline && System.nanoTime() - deadline > 0;
+    }
+
+    int getStatus() {
+      if (rollbackOnly || timedOut()) {
+        return Status.STATUS_MARKED_ROLLBACK;
+      }
+      return Status.STATUS_ACTIVE;
+    }
+  }
+
+}